@@ -0,0 +1,106 @@
+// BenchSignals.java
+
+package snded;
+
+import mcve.audio.SimpleAudioConversion;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+
+// Synthetic input signals shared by the benchmarks.
+//
+// The signals are deterministic so that results are comparable from
+// run to run.  They consist of a low noise floor with bursts of tones
+// interspersed, which roughly resembles speech with pauses, so that
+// detection finds a realistic number of sounds.
+//
+public class BenchSignals {
+  // Frame rate used for all synthetic clips.
+  public static final float FRAME_RATE = 48000.0f;
+
+  // Return the format for signed PCM (or float, for 32 and 64 bits)
+  // with the given depth and channel count.
+  public static AudioFormat makeFormat(int bitDepth, int numChannels)
+  {
+    AudioFormat.Encoding encoding = (
+      bitDepth >= 32?
+        AudioFormat.Encoding.PCM_FLOAT :
+        bitDepth == 8?
+          AudioFormat.Encoding.PCM_UNSIGNED :
+          AudioFormat.Encoding.PCM_SIGNED
+    );
+    int frameSize =
+      SimpleAudioConversion.bytesPerSample(bitDepth) * numChannels;
+
+    return new AudioFormat(encoding, FRAME_RATE, bitDepth,
+      numChannels, frameSize, FRAME_RATE, false /*bigEndian*/);
+  }
+
+  // Return interleaved samples for `numFrames` frames of
+  // `numChannels` channels.
+  public static float[] makeSamples(long numFrames, int numChannels)
+  {
+    Random rand = new Random(1);
+    float[] samples = new float[Math.toIntExact(numFrames * numChannels)];
+
+    // Frame at which the current burst ends, and the next starts.
+    long burstEnd = 0;
+    long nextBurst = 0;
+    double freq = 0;
+
+    for (long f=0; f < numFrames; ++f) {
+      if (f == nextBurst) {
+        // Bursts of 50 to 500 ms, separated by up to a second.
+        burstEnd = f + (long)(FRAME_RATE * (0.05 + rand.nextDouble() * 0.45));
+        nextBurst = burstEnd + (long)(FRAME_RATE * rand.nextDouble());
+        freq = 200 + rand.nextDouble() * 6000;
+      }
+
+      double v = rand.nextGaussian() * 0.0003;
+      if (f < burstEnd) {
+        v += 0.3 * Math.sin(2 * Math.PI * freq * f / FRAME_RATE);
+      }
+
+      for (int c=0; c < numChannels; ++c) {
+        samples[Math.toIntExact(f * numChannels + c)] = (float)v;
+      }
+    }
+
+    return samples;
+  }
+
+  // Encode `samples` as bytes in `format`.
+  public static byte[] encode(float[] samples, AudioFormat format)
+  {
+    byte[] bytes = new byte[samples.length *
+      SimpleAudioConversion.bytesPerSample(format.getSampleSizeInBits())];
+    SimpleAudioConversion.encode(samples, bytes, samples.length, format);
+    return bytes;
+  }
+
+  // Make a clip with the given characteristics, going through the
+  // same decoding path as a file would.
+  public static AudioClip makeClip(
+    double seconds,
+    int numChannels,
+    int bitDepth)
+      throws IOException
+  {
+    AudioFormat format = makeFormat(bitDepth, numChannels);
+    long numFrames = (long)(seconds * FRAME_RATE);
+    byte[] bytes = encode(makeSamples(numFrames, numChannels), format);
+
+    try (AudioInputStream ais = new AudioInputStream(
+           new ByteArrayInputStream(bytes), format, numFrames)) {
+      return new AudioClip(ais);
+    }
+  }
+}
+
+
+// EOF
@@ -0,0 +1,70 @@
+// CodecBenchmark.java
+
+package snded;
+
+import mcve.audio.SimpleAudioConversion;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+// Benchmark `SimpleAudioConversion` decoding and encoding.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+  @Param({ "8", "16", "24", "32" })
+  public int bitDepth;
+
+  @Param({ "1", "2", "8" })
+  public int numChannels;
+
+  @Param({ "1", "10" })
+  public double clipSeconds;
+
+  private AudioFormat m_format;
+  private float[] m_samples;
+  private byte[] m_bytes;
+
+  @Setup
+  public void setup()
+  {
+    m_format = BenchSignals.makeFormat(bitDepth, numChannels);
+    m_samples = BenchSignals.makeSamples(
+      (long)(clipSeconds * BenchSignals.FRAME_RATE), numChannels);
+    m_bytes = BenchSignals.encode(m_samples, m_format);
+  }
+
+  @Benchmark
+  public int decode()
+  {
+    return SimpleAudioConversion.decode(
+      m_bytes, m_samples, m_bytes.length, m_format);
+  }
+
+  @Benchmark
+  public int encode()
+  {
+    return SimpleAudioConversion.encode(
+      m_samples, m_bytes, m_samples.length, m_format);
+  }
+}
+
+
+// EOF
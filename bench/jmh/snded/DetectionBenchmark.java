@@ -0,0 +1,91 @@
+// DetectionBenchmark.java
+
+package snded;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+// Benchmark sound detection, `SoundEdit.findSounds`, and its parts.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DetectionBenchmark {
+  @Param({ "1", "2", "8" })
+  public int numChannels;
+
+  @Param({ "10", "60" })
+  public double clipSeconds;
+
+  @Param({ "-40", "-60" })
+  public float loud_dB;
+
+  private AudioClip m_clip;
+  private PeakPyramid m_pyramid;
+  private SoundPartitionParams m_params;
+  private SoundPartitionParams m_envelopeParams;
+
+  @Setup
+  public void setup()
+    throws IOException
+  {
+    m_clip = BenchSignals.makeClip(clipSeconds, numChannels, 16);
+    m_pyramid = new PeakPyramid(m_clip);
+
+    m_params = new SoundPartitionParams();
+    m_params.m_loudnessThreshold_dB = loud_dB;
+
+    m_envelopeParams = new SoundPartitionParams();
+    m_envelopeParams.m_loudnessThreshold_dB = loud_dB;
+    m_envelopeParams.m_envelopeRate_Hz = 1000;
+  }
+
+  // Complete detection, including spectra, with a prebuilt pyramid.
+  @Benchmark
+  public SoundTable findSounds()
+  {
+    return SoundEdit.findSounds(m_clip, m_params, m_pyramid);
+  }
+
+  // Complete detection using the envelope detector.
+  @Benchmark
+  public SoundTable findSoundsEnvelope()
+  {
+    return SoundEdit.findSounds(m_clip, m_envelopeParams, null);
+  }
+
+  // Just building the pyramid.
+  @Benchmark
+  public PeakPyramid buildPyramid()
+  {
+    return new PeakPyramid(m_clip);
+  }
+
+  // Just partitioning, without spectra.
+  @Benchmark
+  public SoundTable partition()
+  {
+    SoundPartitioner partitioner = new SoundPartitioner(
+      m_params.closenessThresholdFrames(m_clip.getFrameRate()));
+    m_pyramid.forEachLoudFrame(m_clip, loud_dB, partitioner::addLoudFrame);
+    return partitioner.finish();
+  }
+}
+
+
+// EOF
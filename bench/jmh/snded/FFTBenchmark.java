@@ -0,0 +1,67 @@
+// FFTBenchmark.java
+
+package snded;
+
+import hedoluna.FFTbase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+// Benchmark `FFTbase` on a single window.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FFTBenchmark {
+  @Param({ "256", "1024", "4096" })
+  public int windowSize;
+
+  private double[] m_inputReal;
+  private double[] m_inputImag;
+  private FFTbase.WorkingStorage m_storage;
+
+  @Setup
+  public void setup()
+  {
+    Random rand = new Random(1);
+    m_inputReal = new double[windowSize];
+    m_inputImag = new double[windowSize];
+    for (int i=0; i < windowSize; ++i) {
+      m_inputReal[i] = rand.nextGaussian();
+    }
+    m_storage = new FFTbase.WorkingStorage(windowSize);
+  }
+
+  // The variant `PowerSpectrum` uses, which reuses its storage.
+  @Benchmark
+  public double[] fftNoAlloc()
+  {
+    return FFTbase.fft_no_alloc(
+      m_inputReal, m_inputImag, true /*direct*/, m_storage);
+  }
+
+  // The allocating variant, for comparison.
+  @Benchmark
+  public double[] fftAlloc()
+  {
+    return FFTbase.fft(m_inputReal, m_inputImag, true /*direct*/);
+  }
+}
+
+
+// EOF
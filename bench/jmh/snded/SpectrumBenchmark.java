@@ -0,0 +1,64 @@
+// SpectrumBenchmark.java
+
+package snded;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+// Benchmark `PowerSpectrum.computeSpectrum` over a whole clip, and
+// the binning applied to its result.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpectrumBenchmark {
+  @Param({ "256", "1024", "4096" })
+  public int windowSize;
+
+  @Param({ "1", "2", "8" })
+  public int numChannels;
+
+  @Param({ "1", "10" })
+  public double clipSeconds;
+
+  private AudioClip m_clip;
+  private PowerSpectrum m_spectrum;
+
+  @Setup
+  public void setup()
+    throws IOException
+  {
+    m_clip = BenchSignals.makeClip(clipSeconds, numChannels, 16);
+    m_spectrum = new PowerSpectrum(m_clip, windowSize);
+  }
+
+  @Benchmark
+  public PowerSpectrum powerSpectrum()
+  {
+    return new PowerSpectrum(m_clip, windowSize);
+  }
+
+  @Benchmark
+  public BinnedPowerSpectrum binnedPowerSpectrum()
+  {
+    return new BinnedPowerSpectrum(m_spectrum);
+  }
+}
+
+
+// EOF
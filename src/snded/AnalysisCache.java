@@ -0,0 +1,344 @@
+// AnalysisCache.java
+
+package snded;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+
+// Persistent, on-disk cache of the results of `SoundEdit.findSounds`.
+//
+// Detection and spectral analysis only depend on the sample data and
+// the `SoundPartitionParams`, whereas the `SoundClassifier` parameters
+// are applied afterward.  So, when tuning the latter, the expensive
+// part can be skipped entirely (including decoding the input) by
+// reusing what was computed the last time.
+//
+// Entries are keyed by a hash of the input file contents plus the
+// partition parameters, and stored one per file in the cache
+// directory.  When the total size exceeds a limit, the least recently
+// used entries are deleted.  The file modification time records the
+// time of last use.
+//
+public class AnalysisCache {
+  // --------------------------- Public data ---------------------------
+  // Identifies a file as a sounds cache entry.
+  public static final int SOUNDS_MAGIC = 0x534e4443;     // "SNDC"
+
+  // Format version.  Increment when the format changes so that stale
+  // entries are ignored rather than misinterpreted.
+  public static final int SOUNDS_VERSION = 2;
+
+  // -------------------------- Private data ---------------------------
+  // Directory containing the cache entries.
+  private File m_directory;
+
+  // Maximum total size of all entries, in bytes.
+  private long m_maxBytes;
+
+  // Name of the file, within `m_directory`, that records previously
+  // computed input file hashes, so we do not have to re-read a large
+  // input just to learn that it has not changed.  Each line has the
+  // form "<hash> <size> <mtime> <path>".
+  private static final String HASHES_FNAME = "file-hashes.txt";
+
+  // Contents of `HASHES_FNAME`, mapping from canonical path to the
+  // line's fields.
+  private Map<String, String[]> m_fileHashes = null;
+
+  // ------------------------- Public methods --------------------------
+  public AnalysisCache(File directory, long maxBytes)
+  {
+    m_directory = directory;
+    m_maxBytes = maxBytes;
+  }
+
+  // Create a cache as specified by `argMap`, or return null if the
+  // user did not ask for one.
+  public static AnalysisCache fromArgs(ArgMap argMap)
+  {
+    String dir = argMap.getOptionalString("cache");
+    if (dir == null) {
+      return null;
+    }
+
+    int maxMB = argMap.getInt("cacheMax_MB", 256);
+    return new AnalysisCache(new File(dir), maxMB * 1024L * 1024L);
+  }
+
+  public File getDirectory()
+  {
+    return m_directory;
+  }
+
+  // Return a hex string hash of the contents of `file`.
+  public String getFileHash(File file)
+    throws IOException
+  {
+    loadFileHashes();
+
+    String path = file.getCanonicalPath();
+    String size = Long.toString(file.length());
+    String mtime = Long.toString(file.lastModified());
+
+    String[] fields = m_fileHashes.get(path);
+    if (fields != null &&
+        fields[1].equals(size) &&
+        fields[2].equals(mtime)) {
+      return fields[0];
+    }
+
+    String hash = computeFileHash(file);
+    m_fileHashes.put(path, new String[] { hash, size, mtime, path });
+    saveFileHashes();
+    return hash;
+  }
+
+  // Return the cache key for the sounds found in `inputFile` using
+  // `params`.
+  public String makeSoundsKey(File inputFile, SoundPartitionParams params)
+    throws IOException
+  {
+    return getFileHash(inputFile) + "-" + params.getKeyString();
+  }
+
+  // Return the previously stored sounds for `key`, or null if there
+  // are none.
+  public SoundTable loadSounds(String key)
+    throws IOException
+  {
+    File entry = entryFile(key, ".sounds");
+    if (!entry.exists()) {
+      return null;
+    }
+
+    SoundTable sounds;
+    try (DataInputStream in = new DataInputStream(
+           new BufferedInputStream(new FileInputStream(entry)))) {
+      if (in.readInt() != SOUNDS_MAGIC ||
+          in.readInt() != SOUNDS_VERSION) {
+        // Written by some other version.  Treat as a miss; the entry
+        // will be overwritten.
+        return null;
+      }
+
+      int numSounds = in.readInt();
+      sounds = new SoundTable(numSounds);
+
+      float[] bins = new float[SoundTable.NUM_BINS];
+      for (int i=0; i < numSounds; ++i) {
+        sounds.add(in.readLong(), in.readLong(), in.readDouble());
+
+        if (in.readBoolean()) {
+          for (int b=0; b < bins.length; ++b) {
+            bins[b] = in.readFloat();
+          }
+          sounds.setSpectrum(i, bins, in.readDouble());
+        }
+      }
+    }
+
+    // Record the use for LRU purposes.
+    entry.setLastModified(System.currentTimeMillis());
+
+    return sounds;
+  }
+
+  // Store `sounds` under `key`, then evict old entries if necessary.
+  public void storeSounds(String key, SoundTable sounds)
+    throws IOException
+  {
+    m_directory.mkdirs();
+    File entry = entryFile(key, ".sounds");
+
+    // Write to a temporary file first, so a concurrent reader or a
+    // crash never sees a partial entry.
+    File tmp = new File(m_directory, entry.getName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+           new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(SOUNDS_MAGIC);
+      out.writeInt(SOUNDS_VERSION);
+      out.writeInt(sounds.size());
+
+      for (int i=0; i < sounds.size(); ++i) {
+        out.writeLong(sounds.getStartFrame(i));
+        out.writeLong(sounds.getEndFrame(i));
+        out.writeDouble(sounds.getMaxLoudness_dB(i));
+
+        out.writeBoolean(sounds.hasSpectrum(i));
+        if (sounds.hasSpectrum(i)) {
+          for (int b=0; b < SoundTable.NUM_BINS; ++b) {
+            out.writeFloat(sounds.getBinDecibels(i, b));
+          }
+          out.writeDouble(sounds.getExcessLow_dB(i));
+        }
+      }
+    }
+
+    Files.move(tmp.toPath(), entry.toPath(),
+      StandardCopyOption.REPLACE_EXISTING);
+
+    evict();
+  }
+
+  // Return the stored peak pyramid for the file whose hash is
+  // `fileHash`, or null if there is none.
+  public PeakPyramid loadPeakPyramid(String fileHash)
+    throws IOException
+  {
+    File entry = entryFile(fileHash, ".peaks");
+    if (!entry.exists()) {
+      return null;
+    }
+
+    PeakPyramid pyramid;
+    try (DataInputStream in = new DataInputStream(
+           new BufferedInputStream(new FileInputStream(entry)))) {
+      pyramid = new PeakPyramid(in);
+    }
+    catch (IOException e) {
+      // Unreadable or from another version.  Treat as a miss.
+      return null;
+    }
+
+    entry.setLastModified(System.currentTimeMillis());
+    return pyramid;
+  }
+
+  public void storePeakPyramid(String fileHash, PeakPyramid pyramid)
+    throws IOException
+  {
+    m_directory.mkdirs();
+    File entry = entryFile(fileHash, ".peaks");
+
+    File tmp = new File(m_directory, entry.getName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+           new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      pyramid.write(out);
+    }
+
+    Files.move(tmp.toPath(), entry.toPath(),
+      StandardCopyOption.REPLACE_EXISTING);
+
+    evict();
+  }
+
+  // ------------------------- Private methods -------------------------
+  private File entryFile(String key, String extension)
+  {
+    return new File(m_directory, key + extension);
+  }
+
+  // Delete least recently used entries until the total size is within
+  // `m_maxBytes`.
+  private void evict()
+  {
+    File[] files = m_directory.listFiles(
+      f -> f.isFile() && !f.getName().equals(HASHES_FNAME));
+    if (files == null) {
+      return;
+    }
+
+    long totalBytes = 0;
+    for (File f : files) {
+      totalBytes += f.length();
+    }
+
+    // Oldest first.
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+
+    for (File f : files) {
+      if (totalBytes <= m_maxBytes) {
+        break;
+      }
+      long len = f.length();
+      if (f.delete()) {
+        SoundEdit.progressReport("cache: evicted " + f.getName());
+        totalBytes -= len;
+      }
+    }
+  }
+
+  // Compute the SHA-256 of the contents of `file`.
+  private static String computeFileHash(File file)
+    throws IOException
+  {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      // Every Java implementation is required to provide SHA-256.
+      throw new RuntimeException(e);
+    }
+
+    SoundEdit.progressReport("cache: hashing " + file);
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buffer = new byte[1 << 16];
+      int len;
+      while ((len = in.read(buffer)) > 0) {
+        md.update(buffer, 0, len);
+      }
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (byte b : md.digest()) {
+      sb.append(String.format("%1$02x", b));
+    }
+    return sb.toString();
+  }
+
+  private void loadFileHashes()
+    throws IOException
+  {
+    if (m_fileHashes != null) {
+      return;
+    }
+    m_fileHashes = new HashMap<String, String[]>();
+
+    File f = new File(m_directory, HASHES_FNAME);
+    if (!f.exists()) {
+      return;
+    }
+
+    for (String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) {
+      // The path comes last since it might contain spaces.
+      String[] fields = line.split(" ", 4);
+      if (fields.length == 4) {
+        m_fileHashes.put(fields[3], fields);
+      }
+    }
+  }
+
+  private void saveFileHashes()
+    throws IOException
+  {
+    m_directory.mkdirs();
+    File f = new File(m_directory, HASHES_FNAME);
+    try (PrintWriter pw = new PrintWriter(f, StandardCharsets.UTF_8)) {
+      for (String[] fields : m_fileHashes.values()) {
+        pw.println(String.join(" ", fields));
+      }
+    }
+  }
+}
+
+
+// EOF
@@ -0,0 +1,164 @@
+// AnalysisEvents.java
+
+package snded;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+// Java Flight Recorder events emitted by the analysis pipeline.
+//
+// These let a recording taken with, e.g.,
+//
+//   java -XX:StartFlightRecording=filename=snded.jfr ...
+//
+// show, in JDK Mission Control, which regions of the input and which
+// sounds were costly, rather than just the methods that were.  Each
+// event's duration is that of the work it describes.
+//
+// The events are all enabled by default when recording.  The
+// per-sound `Classify` events can be numerous on noisy input; they
+// can be turned off with `snded.Classify#enabled=false`.
+//
+// When no recording is active, constructing and committing an event
+// costs very little, so the call sites do not check for that.
+//
+public class AnalysisEvents {
+  // Decoding the bytes of an input into samples.
+  @Name("snded.Decode")
+  @Label("Decode")
+  @Category({"snded", "Input"})
+  @Description("Conversion of sample bytes to floating-point samples")
+  @StackTrace(false)
+  public static class Decode extends Event {
+    @Label("Frames")
+    public long frames;
+
+    @Label("Channels")
+    public int channels;
+
+    @Label("Bits per Sample")
+    public int bitsPerSample;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+  }
+
+  // Scanning one chunk of the input for loud frames.  A chunk is a
+  // block at the coarsest level of the `PeakPyramid`, or a run of
+  // envelope blocks of similar size for `EnvelopeDetector`.
+  @Name("snded.FindSoundsChunk")
+  @Label("Find Sounds Chunk")
+  @Category({"snded", "Analysis"})
+  @Description("Detection of loud frames within one chunk of the input")
+  @StackTrace(false)
+  public static class FindSoundsChunk extends Event {
+    @Label("Start Frame")
+    public long startFrame;
+
+    // Exclusive.
+    @Label("End Frame")
+    public long endFrame;
+
+    @Label("Loud Frames Reported")
+    public long loudFrames;
+
+    @Label("Frames Examined")
+    @Description("Frames whose loudness was computed individually")
+    public long framesExamined;
+  }
+
+  // Computing one `PowerSpectrum`.
+  @Name("snded.PowerSpectrum")
+  @Label("Power Spectrum")
+  @Category({"snded", "Analysis"})
+  @Description("Computation of the power spectrum of a frame range")
+  @StackTrace(false)
+  public static class Spectrum extends Event {
+    @Label("Window Size")
+    public int windowSize;
+
+    @Label("Start Frame")
+    public long startFrame;
+
+    // Inclusive.
+    @Label("End Frame")
+    public long endFrame;
+
+    @Label("Window Count")
+    @Description("Number of window-sized FFTs, over all channels")
+    public int windowCount;
+  }
+
+  // The classifier's decision about one sound.
+  @Name("snded.Classify")
+  @Label("Classify Sound")
+  @Category({"snded", "Analysis"})
+  @Description("Decision whether to retain one detected sound")
+  @StackTrace(false)
+  public static class Classify extends Event {
+    @Label("Sound Index")
+    public int soundIndex;
+
+    @Label("Start Frame")
+    public long startFrame;
+
+    // Inclusive.
+    @Label("End Frame")
+    public long endFrame;
+
+    @Label("Max Loudness (dB)")
+    public double maxLoudness_dB;
+
+    @Label("Used Spectrum")
+    public boolean usedSpectrum;
+
+    @Label("Likely Click")
+    public boolean likelyClick;
+
+    @Label("Retain")
+    public boolean retain;
+  }
+
+  // Applying the declick gain to one block of frames.
+  @Name("snded.RenderBlock")
+  @Label("Render Block")
+  @Category({"snded", "Output"})
+  @Description("Application of the declick gain to a block of frames")
+  @StackTrace(false)
+  public static class RenderBlock extends Event {
+    @Label("Start Frame")
+    public long startFrame;
+
+    // Exclusive.
+    @Label("End Frame")
+    public long endFrame;
+
+    @Label("Silenced Frames")
+    public long silencedFrames;
+  }
+
+  // Encoding samples back into bytes.
+  @Name("snded.Encode")
+  @Label("Encode")
+  @Category({"snded", "Output"})
+  @Description("Conversion of floating-point samples to sample bytes")
+  @StackTrace(false)
+  public static class Encode extends Event {
+    @Label("Frames")
+    public long frames;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+  }
+}
+
+
+// EOF
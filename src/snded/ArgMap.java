@@ -4,6 +4,7 @@ package snded;
 
 import util.StringUtil;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -60,6 +61,54 @@ public class ArgMap {
     }
   }
 
+  // Get a boolean, written as "true" or "false".
+  public boolean getBoolean(String name, boolean defaultValue)
+  {
+    if (m_argMap.containsKey(name)) {
+      String value = m_argMap.get(name);
+      if (!value.equals("true") && !value.equals("false")) {
+        throw new RuntimeException(
+          "Argument " + StringUtil.doubleQuote(name) +
+          " must be \"true\" or \"false\"");
+      }
+      return value.equals("true");
+    }
+    else {
+      System.out.println(
+        "using default " + StringUtil.doubleQuote(name) +
+        " (boolean): " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  // Get a comma-separated list of floats.
+  public float[] getFloatList(String name, float[] defaultValue)
+  {
+    if (m_argMap.containsKey(name)) {
+      String[] elements = m_argMap.get(name).split(",");
+      float[] ret = new float[elements.length];
+      for (int i=0; i < elements.length; ++i) {
+        ret[i] = Float.valueOf(elements[i]);
+      }
+      return ret;
+    }
+    else {
+      System.out.println(
+        "using default " + StringUtil.doubleQuote(name) +
+        " (float list): " + Arrays.toString(defaultValue));
+      return defaultValue;
+    }
+  }
+
+  // Return the value for `name`, or null if it was not specified.
+  // Unlike the other getters, this does not announce the default,
+  // since it is meant for optional features that are off unless
+  // requested.
+  public String getOptionalString(String name)
+  {
+    return m_argMap.get(name);
+  }
+
   public String getRequiredString(String name)
   {
     if (m_argMap.containsKey(name)) {
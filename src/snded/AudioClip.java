@@ -24,46 +24,235 @@ import java.io.IOException;
 // call, whereas all consumers of `AudioInputStream` potentially throw
 // it.
 //
+// A clip can be a view of a range of frames and a subset of the
+// channels of another clip, made by `slice` and `selectChannels`,
+// without copying the samples.  Like `List.subList`, a view reflects
+// later changes made through the clip it came from.  Changing a view,
+// however, first gives it its own copy of the samples it covers, so
+// the original is unaffected.  Consequently, any number of threads can
+// read views of one clip, for example each analyzing its own region,
+// as long as the original is not modified meanwhile.
+//
 public class AudioClip {
+  // ---- public types ----
+  // How the samples are arranged in memory.
+  //
+  // WAV files, and hence decoding and encoding, use interleaved frames.
+  // That suits per-frame work, but reading one channel of it is a
+  // strided access that uses only one sample from each cache line once
+  // there are more than a few channels.  The planar layout keeps each
+  // channel contiguous instead, so per-channel work (spectra, peaks) is
+  // unit-stride, at the cost of converting to and from interleaved a
+  // block at a time.
+  //
+  public enum Layout {
+    INTERLEAVED,
+    PLANAR
+  }
+
+  // Receives a run of consecutive frames from `forEachBlock`.  The
+  // frames are in `samples[offset]` through `samples[offset +
+  // numFrames*numChannels() - 1]`, interleaved, and the first of them
+  // is `startFrame`.
+  public interface BlockVisitor {
+    void visit(long startFrame, int numFrames, float[] samples, int offset);
+  }
+
+  // ---- private types ----
+  // Sample arrays, which several clips can share.
+  private static class Storage {
+    // Sample data as a sequence of frames.  Each frame is a sequence
+    // of samples, one per channel.  Stereo data has two channels, left
+    // then right.  A sample is a floating-point amplitude, nominally
+    // in [-1,1].
+    //
+    // Although this is currently one array, a Java array is limited
+    // in size, so this interface anticipates replacing this with a
+    // sequence of arrays at some point.
+    //
+    // Null if the layout is `PLANAR`.
+    //
+    public float[] m_samples;
+
+    // With the `PLANAR` layout, the samples of each channel, one per
+    // frame.  Otherwise null.
+    public float[][] m_planes;
+
+    public int m_numChannels;
+    public int m_numFrames;
+
+    public Storage(Layout layout, int numChannels, int numFrames)
+    {
+      m_numChannels = numChannels;
+      m_numFrames = numFrames;
+      if (layout == Layout.PLANAR) {
+        m_planes = new float[numChannels][numFrames];
+      }
+      else {
+        m_samples = new float[numChannels * numFrames];
+      }
+    }
+
+    public Storage(float[] samples, int numChannels)
+    {
+      m_samples = samples;
+      m_numChannels = numChannels;
+      m_numFrames = samples.length / numChannels;
+    }
+  }
+
   // ---- private data ----
+  // Number of frames converted at a time between the planar layout and
+  // interleaved bytes.
+  private static final int CONVERSION_BLOCK_FRAMES = 8192;
+
   // How to interpret the sample data.  Never null.
   private AudioFormat m_format;
 
-  // Sample data as a sequence of frames.  Each frame is a sequence of
-  // samples, one per channel.  Stereo data has two channels, left then
-  // right.  A sample is a floating-point amplitude, nominally in
-  // [-1,1].
-  //
-  // Although this is currently one array, a Java array is limited in
-  // size, so this interface anticipates replacing this with a sequence
-  // of arrays at some point.
-  //
-  private float[] m_samples;
+  // The samples, possibly shared with other clips.  Never null.
+  private Storage m_storage;
+
+  // True if this is a view of another clip's `m_storage`.
+  private boolean m_view = false;
+
+  // Frame of `m_storage` that is frame 0 of this clip, and the number
+  // of frames in this clip.
+  private int m_firstFrame;
+  private int m_numFrames;
+
+  // For each channel of this clip, the channel of `m_storage` it is.
+  private int[] m_channelMap;
+
+  // True if the frames of this clip are contiguous and complete in
+  // `m_storage.m_samples`, which is the case when it is interleaved
+  // and this clip has all of its channels in order.
+  private boolean m_contiguous;
 
   // ---- public methods ----
-  // Read details from `audio`.
+  // Read details from `audio`, storing the samples interleaved.
   public AudioClip(AudioInputStream audio)
     throws IOException
+  {
+    this(audio, Layout.INTERLEAVED);
+  }
+
+  // Read details from `audio`, storing the samples in `layout`.
+  public AudioClip(AudioInputStream audio, Layout layout)
+    throws IOException
   {
     m_format = audio.getFormat();
     assert(m_format != null);
 
     int bytesPerSample = bytesPerSample();
 
-    int numBytesAvail = audio.available();
-    byte[] bytes = new byte[numBytesAvail];
-    int numBytesRead = audio.read(bytes);
-    assert(numBytesRead == numBytesAvail);
+    byte[] bytes;
+    int numBytesRead;
+    try (Phases.Scope phase = Phases.begin("read")) {
+      int numBytesAvail = audio.available();
+      bytes = new byte[numBytesAvail];
+      numBytesRead = audio.read(bytes);
+      assert(numBytesRead == numBytesAvail);
+      phase.addBytes(numBytesRead);
+    }
 
     int numSamples = numBytesRead / bytesPerSample;
 
-    m_samples = new float[numSamples];
-    int numConvertedSamples = SimpleAudioConversion.decode(
-      bytes,
-      m_samples,
-      numBytesRead,
+    try (Phases.Scope phase = Phases.begin("decode")) {
+      AnalysisEvents.Decode event = new AnalysisEvents.Decode();
+      event.begin();
+
+      if (layout == Layout.PLANAR) {
+        setStorage(new Storage(Layout.PLANAR,
+          m_format.getChannels(), numSamples / m_format.getChannels()));
+        decodePlanar(bytes);
+      }
+      else {
+        float[] samples = new float[numSamples];
+        int numConvertedSamples = SimpleAudioConversion.decode(
+          bytes,
+          samples,
+          numBytesRead,
+          m_format);
+        assert(numConvertedSamples == numSamples);
+        setStorage(new Storage(samples, m_format.getChannels()));
+      }
+
+      event.frames = numFrames();
+      event.channels = numChannels();
+      event.bitsPerSample = m_format.getSampleSizeInBits();
+      event.bytes = numBytesRead;
+      event.commit();
+
+      Metrics.DECODED_FRAMES.add(numFrames());
+      Metrics.DECODED_BYTES.add(numBytesRead);
+
+      phase.addFrames(numFrames());
+      phase.addBytes(numBytesRead);
+    }
+  }
+
+  // Make a clip of `samples`, interleaved, without copying them.
+  public AudioClip(AudioFormat format, float[] samples)
+  {
+    m_format = format;
+    setStorage(new Storage(samples, format.getChannels()));
+  }
+
+  // Make an independent copy of `other`, in the same layout.
+  public AudioClip(AudioClip other)
+  {
+    m_format = other.m_format;
+    setStorage(other.copyStorage());
+  }
+
+  // Return a view of frames [`startFrame`, `endFrame`) of this clip.
+  public AudioClip slice(long startFrame, long endFrame)
+  {
+    checkFrameRange(startFrame, endFrame - startFrame);
+
+    return new AudioClip(this,
+      m_firstFrame + (int)startFrame,
+      (int)(endFrame - startFrame),
+      m_channelMap,
       m_format);
-    assert(numConvertedSamples == numSamples);
+  }
+
+  // Return a view of the listed channels of this clip, in the order
+  // listed.
+  public AudioClip selectChannels(int... channels)
+  {
+    assert(channels.length > 0);
+
+    int[] channelMap = new int[channels.length];
+    for (int i=0; i < channels.length; ++i) {
+      assert(0 <= channels[i] && channels[i] < numChannels());
+      channelMap[i] = m_channelMap[channels[i]];
+    }
+
+    AudioFormat format = new AudioFormat(
+      m_format.getEncoding(),
+      m_format.getSampleRate(),
+      m_format.getSampleSizeInBits(),
+      channels.length,
+      m_format.getFrameSize() / m_format.getChannels() * channels.length,
+      m_format.getFrameRate(),
+      m_format.isBigEndian());
+
+    return new AudioClip(this, m_firstFrame, m_numFrames, channelMap, format);
+  }
+
+  // Return the layout to use, absent an explicit choice, for a clip
+  // with `numChannels`.  This is interleaved for now: decoding to
+  // planar is about 40% slower, and detection and spectra showed no
+  // measurable gain from it, even with many channels.
+  public static Layout defaultLayout(int numChannels)
+  {
+    return Layout.INTERLEAVED;
+  }
+
+  public Layout getLayout()
+  {
+    return m_storage.m_planes != null? Layout.PLANAR : Layout.INTERLEAVED;
   }
 
   AudioFormat getFormat()
@@ -73,27 +262,31 @@ public class AudioClip {
 
   public long numSamples()
   {
-    return m_samples.length;
+    return (long)m_numFrames * numChannels();
   }
 
+  // Get sample by its index in the interleaved order, regardless of
+  // the layout.
   public float getSample(long sampleIndex)
   {
-    return m_samples[Math.toIntExact(sampleIndex)];
+    return getFCSample(sampleIndex / numChannels(),
+      (int)(sampleIndex % numChannels()));
   }
 
   public void setSample(long sampleIndex, float newValue)
   {
-    m_samples[Math.toIntExact(sampleIndex)] = newValue;
+    setFCSample(sampleIndex / numChannels(),
+      (int)(sampleIndex % numChannels()), newValue);
   }
 
   public int numChannels()
   {
-    return m_format.getChannels();
+    return m_channelMap.length;
   }
 
   public long numFrames()
   {
-    return numSamples() / numChannels();
+    return m_numFrames;
   }
 
   // First valid frame index (if the sequence is not empty).
@@ -114,7 +307,12 @@ public class AudioClip {
     assert(0 <= frameIndex && frameIndex < numFrames());
     assert(0 <= channel && channel < numChannels());
 
-    return m_samples[Math.toIntExact(frameIndex * numChannels() + channel)];
+    Storage s = m_storage;
+    int frame = m_firstFrame + (int)frameIndex;
+    if (s.m_planes != null) {
+      return s.m_planes[m_channelMap[channel]][frame];
+    }
+    return s.m_samples[frame * s.m_numChannels + m_channelMap[channel]];
   }
 
   public void setFCSample(long frameIndex, int channel, float newValue)
@@ -122,7 +320,235 @@ public class AudioClip {
     assert(0 <= frameIndex && frameIndex < numFrames());
     assert(0 <= channel && channel < numChannels());
 
-    m_samples[Math.toIntExact(frameIndex * numChannels() + channel)] = newValue;
+    Storage s = prepareToModify();
+    int frame = m_firstFrame + (int)frameIndex;
+    if (s.m_planes != null) {
+      s.m_planes[m_channelMap[channel]][frame] = newValue;
+      return;
+    }
+    s.m_samples[frame * s.m_numChannels + m_channelMap[channel]] = newValue;
+  }
+
+  // Copy `count` samples of `channel`, starting with frame
+  // `frameStart`, into `dst[off]` and onward.
+  public void readChannel(
+    long frameStart,
+    int count,
+    int channel,
+    float[] dst,
+    int off)
+  {
+    checkFrameRange(frameStart, count);
+    assert(0 <= channel && channel < numChannels());
+
+    Storage s = m_storage;
+    int frame = m_firstFrame + (int)frameStart;
+    if (s.m_planes != null) {
+      System.arraycopy(s.m_planes[m_channelMap[channel]], frame,
+        dst, off, count);
+      return;
+    }
+
+    int stride = s.m_numChannels;
+    int src = frame * stride + m_channelMap[channel];
+    float[] samples = s.m_samples;
+    for (int i=0; i < count; ++i) {
+      dst[off + i] = samples[src];
+      src += stride;
+    }
+  }
+
+  // Store `count` samples from `src[off]` onward into `channel`,
+  // starting with frame `frameStart`.
+  public void writeChannel(
+    long frameStart,
+    int count,
+    int channel,
+    float[] src,
+    int off)
+  {
+    checkFrameRange(frameStart, count);
+    assert(0 <= channel && channel < numChannels());
+
+    Storage s = prepareToModify();
+    int frame = m_firstFrame + (int)frameStart;
+    if (s.m_planes != null) {
+      System.arraycopy(src, off,
+        s.m_planes[m_channelMap[channel]], frame, count);
+      return;
+    }
+
+    int stride = s.m_numChannels;
+    int dst = frame * stride + m_channelMap[channel];
+    float[] samples = s.m_samples;
+    for (int i=0; i < count; ++i) {
+      samples[dst] = src[off + i];
+      dst += stride;
+    }
+  }
+
+  // Copy `count` whole frames, starting with `frameStart`, into
+  // `dst[off]` and onward, interleaved.
+  public void readFrames(long frameStart, int count, float[] dst, int off)
+  {
+    checkFrameRange(frameStart, count);
+
+    Storage s = m_storage;
+    int numChannels = numChannels();
+    int frame = m_firstFrame + (int)frameStart;
+    if (m_contiguous) {
+      System.arraycopy(
+        s.m_samples, frame * numChannels,
+        dst, off,
+        count * numChannels);
+      return;
+    }
+
+    for (int c=0; c < numChannels; ++c) {
+      if (s.m_planes != null) {
+        float[] plane = s.m_planes[m_channelMap[c]];
+        for (int i=0; i < count; ++i) {
+          dst[off + i*numChannels + c] = plane[frame + i];
+        }
+      }
+      else {
+        int stride = s.m_numChannels;
+        int src = frame * stride + m_channelMap[c];
+        for (int i=0; i < count; ++i) {
+          dst[off + i*numChannels + c] = s.m_samples[src + i*stride];
+        }
+      }
+    }
+  }
+
+  // Store `count` whole frames from `src[off]` onward, interleaved,
+  // starting with frame `frameStart`.
+  public void writeFrames(long frameStart, int count, float[] src, int off)
+  {
+    checkFrameRange(frameStart, count);
+
+    Storage s = prepareToModify();
+    int numChannels = numChannels();
+    int frame = m_firstFrame + (int)frameStart;
+    if (m_contiguous) {
+      System.arraycopy(
+        src, off,
+        s.m_samples, frame * numChannels,
+        count * numChannels);
+      return;
+    }
+
+    for (int c=0; c < numChannels; ++c) {
+      if (s.m_planes != null) {
+        float[] plane = s.m_planes[m_channelMap[c]];
+        for (int i=0; i < count; ++i) {
+          plane[frame + i] = src[off + i*numChannels + c];
+        }
+      }
+      else {
+        int stride = s.m_numChannels;
+        int dst = frame * stride + m_channelMap[c];
+        for (int i=0; i < count; ++i) {
+          s.m_samples[dst + i*stride] = src[off + i*numChannels + c];
+        }
+      }
+    }
+  }
+
+  // Pass the frames in [`frameStart`, `frameEnd`) to `visitor` in runs
+  // of at most `blockFrames`, in order.  Runs begin at `frameStart`
+  // plus multiples of `blockFrames`, except that a run may be split
+  // further where the underlying storage is discontiguous, so a run
+  // never spans two such boundaries.
+  //
+  // The visitor must neither modify the samples nor retain the array.
+  // When the frames are stored contiguously, it sees the stored samples
+  // themselves; otherwise, an interleaved copy of each run.
+  //
+  public void forEachBlock(
+    long frameStart,
+    long frameEnd,
+    int blockFrames,
+    BlockVisitor visitor)
+  {
+    assert(blockFrames > 0);
+    checkFrameRange(frameStart, frameEnd - frameStart);
+
+    int numChannels = numChannels();
+    if (!m_contiguous) {
+      float[] block = new float[
+        (int)Math.min(blockFrames, frameEnd - frameStart) * numChannels];
+      for (long start = frameStart; start < frameEnd; start += blockFrames) {
+        int count = (int)Math.min(blockFrames, frameEnd - start);
+        readFrames(start, count, block, 0);
+        visitor.visit(start, count, block, 0);
+      }
+      return;
+    }
+
+    float[] samples = m_storage.m_samples;
+    for (long start = frameStart; start < frameEnd; start += blockFrames) {
+      int count = (int)Math.min(blockFrames, frameEnd - start);
+      visitor.visit(
+        start,
+        count,
+        samples,
+        (m_firstFrame + (int)start) * numChannels);
+    }
+  }
+
+  // Return the largest absolute value of any sample in the `count`
+  // frames starting with `frameStart`, or 0 if `count` is 0.
+  public float peakAmplitude(long frameStart, int count)
+  {
+    checkFrameRange(frameStart, count);
+
+    Storage s = m_storage;
+    int frame = m_firstFrame + (int)frameStart;
+    float peak = 0;
+    if (m_contiguous) {
+      int numChannels = numChannels();
+      int start = frame * numChannels;
+      int end = start + count * numChannels;
+      float[] samples = s.m_samples;
+      for (int i = start; i < end; ++i) {
+        peak = Math.max(peak, Math.abs(samples[i]));
+      }
+    }
+    else if (s.m_planes != null) {
+      for (int channel : m_channelMap) {
+        float[] plane = s.m_planes[channel];
+        for (int i = frame; i < frame + count; ++i) {
+          peak = Math.max(peak, Math.abs(plane[i]));
+        }
+      }
+    }
+    else {
+      int stride = s.m_numChannels;
+      for (int channel : m_channelMap) {
+        int start = frame * stride + channel;
+        int end = start + count * stride;
+        for (int i = start; i < end; i += stride) {
+          peak = Math.max(peak, Math.abs(s.m_samples[i]));
+        }
+      }
+    }
+    return peak;
+  }
+
+  // Return the loudness of the frame whose first sample is
+  // `samples[offset]`, like `getFrameDecibels`.  This is for use by
+  // `BlockVisitor`s.
+  public static double frameDecibels(
+    float[] samples,
+    int offset,
+    int numChannels)
+  {
+    double dB = linearAmplitudeToDecibels(samples[offset]);
+    for (int c=1; c < numChannels; ++c) {
+      dB = Math.max(dB, linearAmplitudeToDecibels(samples[offset + c]));
+    }
+    return dB;
   }
 
   // Return the decibel level for the given frame and channel.
@@ -131,6 +557,17 @@ public class AudioClip {
     return linearAmplitudeToDecibels(getFCSample(frameIndex, channel));
   }
 
+  // Return the loudness of a frame, as the maximum decibel level over
+  // all of its channels.
+  public double getFrameDecibels(long frameIndex)
+  {
+    double dB = getFCDecibels(frameIndex, 0);
+    for (int c=1; c < numChannels(); ++c) {
+      dB = Math.max(dB, getFCDecibels(frameIndex, c));
+    }
+    return dB;
+  }
+
   // Bytes for one sample.  For 16-bit audio, which is very common, this
   // is 2.  Always positive.
   public int bytesPerSample()
@@ -182,8 +619,13 @@ public class AudioClip {
     int bytesPerSample = bytesPerSample();
     int numBytes = Math.toIntExact(numSamples() * bytesPerSample);
     byte[] bytes = new byte[numBytes];
+    if (!m_contiguous || m_firstFrame != 0) {
+      encodeBlocks(bytes);
+      return bytes;
+    }
+
     int numConvertedBytes = SimpleAudioConversion.encode(
-      m_samples,
+      m_storage.m_samples,
       bytes,
       Math.toIntExact(numSamples()),
       m_format);
@@ -197,19 +639,152 @@ public class AudioClip {
     throws IOException
   {
     // Convert floats back into bytes.
-    byte[] bytes = encodeSampleBytes();
+    byte[] bytes;
+    try (Phases.Scope phase = Phases.begin("encode")) {
+      AnalysisEvents.Encode event = new AnalysisEvents.Encode();
+      event.begin();
+      bytes = encodeSampleBytes();
+      event.frames = numFrames();
+      event.bytes = bytes.length;
+      event.commit();
+
+      phase.addFrames(numFrames());
+      phase.addBytes(bytes.length);
+    }
 
     // Wrap the bytes in streams to provide them.
-    try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
-      try (AudioInputStream ais = new AudioInputStream(bais, m_format, bytes.length)) {
+    try (Phases.Scope phase = Phases.begin("write");
+         ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
+      try (AudioInputStream ais = new AudioInputStream(bais, m_format, numFrames())) {
 
         // Write the output file.
         AudioSystem.write(ais, AudioFileFormat.Type.WAVE, new File(outFname));
       }
+      phase.addBytes(bytes.length);
+    }
+  }
+
+  // ---- private methods ----
+  // Make a view of `source`'s samples.  `firstFrame` and `channelMap`
+  // refer to the storage, not to `source`.
+  private AudioClip(
+    AudioClip source,
+    int firstFrame,
+    int numFrames,
+    int[] channelMap,
+    AudioFormat format)
+  {
+    m_format = format;
+    m_storage = source.m_storage;
+    m_view = true;
+    m_firstFrame = firstFrame;
+    m_numFrames = numFrames;
+    m_channelMap = channelMap;
+    m_contiguous = isContiguous();
+  }
+
+  // Make this clip all of `storage`.
+  private void setStorage(Storage storage)
+  {
+    m_storage = storage;
+    m_firstFrame = 0;
+    m_numFrames = storage.m_numFrames;
+    m_channelMap = new int[storage.m_numChannels];
+    for (int c=0; c < m_channelMap.length; ++c) {
+      m_channelMap[c] = c;
+    }
+    m_contiguous = isContiguous();
+  }
+
+  private boolean isContiguous()
+  {
+    if (m_storage.m_samples == null ||
+        m_channelMap.length != m_storage.m_numChannels) {
+      return false;
+    }
+    for (int c=0; c < m_channelMap.length; ++c) {
+      if (m_channelMap[c] != c) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Return new storage, in the same layout, with a copy of just the
+  // samples of this clip.
+  private Storage copyStorage()
+  {
+    Storage copy = new Storage(getLayout(), numChannels(), m_numFrames);
+    if (copy.m_planes != null) {
+      for (int c=0; c < numChannels(); ++c) {
+        readChannel(0, m_numFrames, c, copy.m_planes[c], 0);
+      }
+    }
+    else {
+      readFrames(0, m_numFrames, copy.m_samples, 0);
     }
+    return copy;
   }
 
+  // Return `m_storage` after making sure this clip owns it, copying
+  // the samples of a view, so it can be modified.
+  private Storage prepareToModify()
+  {
+    if (m_view) {
+      setStorage(copyStorage());
+      m_view = false;
+    }
+    return m_storage;
+  }
 
+  // Decode the interleaved `bytes` into the frames of `m_storage`,
+  // which is planar, a block at a time so the interleaved floats never
+  // all exist at once.
+  private void decodePlanar(byte[] bytes)
+  {
+    int numChannels = numChannels();
+    int bytesPerFrame = bytesPerSample() * numChannels;
+
+    int blockFrames = Math.min(CONVERSION_BLOCK_FRAMES, m_numFrames);
+    byte[] blockBytes = new byte[blockFrames * bytesPerFrame];
+    float[] block = new float[blockFrames * numChannels];
+
+    for (int start=0; start < m_numFrames; start += blockFrames) {
+      int count = Math.min(blockFrames, m_numFrames - start);
+      System.arraycopy(bytes, start * bytesPerFrame,
+        blockBytes, 0, count * bytesPerFrame);
+      SimpleAudioConversion.decode(
+        blockBytes, block, count * bytesPerFrame, m_format);
+      writeFrames(start, count, block, 0);
+    }
+  }
+
+  // Encode the frames of this clip as interleaved `bytes`, a block at a
+  // time.
+  private void encodeBlocks(byte[] bytes)
+  {
+    int numChannels = numChannels();
+    int bytesPerFrame = bytesPerSample() * numChannels;
+
+    int blockFrames = Math.min(CONVERSION_BLOCK_FRAMES, m_numFrames);
+    byte[] blockBytes = new byte[blockFrames * bytesPerFrame];
+    float[] block = new float[blockFrames * numChannels];
+
+    for (int start=0; start < m_numFrames; start += blockFrames) {
+      int count = Math.min(blockFrames, m_numFrames - start);
+      readFrames(start, count, block, 0);
+      SimpleAudioConversion.encode(
+        block, blockBytes, count * numChannels, m_format);
+      System.arraycopy(blockBytes, 0,
+        bytes, start * bytesPerFrame, count * bytesPerFrame);
+    }
+  }
+
+  private void checkFrameRange(long frameStart, long count)
+  {
+    assert(0 <= frameStart && 0 <= count &&
+           frameStart + count <= numFrames());
+  }
 }
 
 
@@ -0,0 +1,625 @@
+// BatchRunner.java
+
+package snded;
+
+import util.Util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+
+// Runs `declick` or `sounds` on many input files in one JVM.
+//
+// The inputs are the WAV files under a directory, or those listed in
+// a manifest file, one per line.  Each file goes through three stages:
+//
+//   read:    Open, read and decode the input.
+//   analyze: Run the command, up to the point of writing its output.
+//   write:   Encode and write the output, if any.
+//
+// Reading and writing mostly wait on the disk (or the network, for
+// archives on NFS), so they run on their own threads: a virtual thread
+// per stage when the JVM has them, otherwise a cached pool of platform
+// threads.  Analysis runs on a `ForkJoinPool` of `threads` workers, so
+// the CPUs stay busy with it while other files are being read and
+// written.  At most `maxClips` files are between the start of reading
+// and the end of writing at once, which bounds the number of decoded
+// clips in memory; the next file is only started when one finishes.
+//
+// Files are started largest first, so a long file does not end up
+// running alone at the end.  Files of at least `largeFile_MB` also
+// compute their spectra in parallel; those subtasks go to the same
+// `ForkJoinPool`, where workers that have run out of files steal them.
+//
+// For an input named <name> (its path relative to the input directory
+// or manifest), the outputs in the output directory are:
+//
+//   <name>             The declicked file, for `declick`.
+//   <name>.sounds.txt  The report, for `sounds`.
+//   <name>.log         Everything else the command printed, including
+//                      the error if it failed.
+//
+// A failure affects only the file it happened in.  Each file that
+// succeeds is recorded in a journal, so rerunning the same batch after
+// an interruption skips those, unless they or the command and its
+// parameters have changed since.  Files not in the journal may have
+// incomplete outputs.
+//
+public class BatchRunner {
+  // -------------------------- Private types --------------------------
+  // One input file.
+  private static class Input {
+    // Path to read.
+    public File m_file;
+
+    // Name relative to the input directory or manifest, used to name
+    // the outputs.
+    public String m_name;
+
+    // Size and modification time, to tell whether the file changed
+    // since it was recorded in the journal.
+    public long m_bytes;
+    public long m_modified;
+
+    public Input(File file, String name)
+    {
+      m_file = file;
+      m_name = name;
+      m_bytes = file.length();
+      m_modified = file.lastModified();
+    }
+
+    // Key identifying this version of the file, processed by the
+    // command that `commandKey` identifies, in the journal.
+    public String journalKey(String commandKey)
+    {
+      return m_bytes + " " + m_modified + " " + commandKey + " " + m_name;
+    }
+  }
+
+  // Body of one stage of a `Job`.
+  private interface Stage {
+    void run() throws Exception;
+  }
+
+  // The processing of one input as it moves through the stages.
+  private class Job {
+    private Input m_input;
+
+    // Log of the command's stderr, and destination of its stdout.
+    // These are the same for `declick`.  Both are opened by the first
+    // stage.
+    private PrintStream m_log = null;
+    private PrintStream m_out = null;
+
+    // Command arguments, including the output file, if any.
+    private String[] m_args;
+
+    // The command's state between stages, or null before the first
+    // and after the last.
+    private SoundEdit m_soundEdit = null;
+
+    private long m_start_ns = System.nanoTime();
+
+    public Job(Input input)
+    {
+      m_input = input;
+    }
+
+    public void read()
+      throws Exception
+    {
+      File outFile = new File(m_outDir, m_input.m_name);
+      List<String> args = new ArrayList<String>(m_commandArgs);
+      if (m_command.equals("declick")) {
+        if (outFile.getCanonicalFile().equals(m_input.m_file.getCanonicalFile())) {
+          throw new RuntimeException("Output would overwrite the input.");
+        }
+        args.add("out:" + outFile.getPath());
+      }
+      m_args = args.toArray(new String[0]);
+
+      m_soundEdit = SoundEdit.open(m_input.m_file.getPath(),
+        null /*residentClips*/, m_input.m_bytes >= m_largeFileBytes);
+      m_soundEdit.decode(m_args);
+    }
+
+    public void analyze()
+      throws Exception
+    {
+      m_soundEdit.deferWrites();
+      m_soundEdit.parseCommand(m_command, m_args);
+    }
+
+    public void write()
+      throws Exception
+    {
+      m_soundEdit.writeDeferred();
+      m_soundEdit.close();
+      m_soundEdit = null;
+    }
+
+    // Run `stage` with `System.out` and `System.err` going to this
+    // job's files.  Exceptions are passed on as `CompletionException`.
+    public void runStage(Stage stage)
+    {
+      // A `ForkJoinPool` thread may be helping with another file's
+      // subtasks while that file waits for them, so restore its
+      // routing afterward.
+      PrintStream savedOut = s_threadOut.get();
+      PrintStream savedErr = s_threadErr.get();
+
+      try {
+        if (m_log == null) {
+          openOutputs();
+        }
+        s_threadOut.set(m_out);
+        s_threadErr.set(m_log);
+        stage.run();
+      }
+      catch (CompletionException e) {
+        throw e;
+      }
+      catch (Throwable t) {
+        throw new CompletionException(t);
+      }
+      finally {
+        s_threadOut.set(savedOut);
+        s_threadErr.set(savedErr);
+      }
+    }
+
+    // Clean up after the last stage, or after the one that failed with
+    // `t`, and record the outcome.  This does not throw.
+    public void finish(Throwable t)
+    {
+      while (t instanceof CompletionException && t.getCause() != null) {
+        t = t.getCause();
+      }
+
+      if (t != null) {
+        // This includes errors like running out of memory, which only
+        // affect this file.
+        String message = (t instanceof Exception?
+          Util.getExceptionMessage((Exception)t) : t.toString());
+        if (m_log != null) {
+          m_log.println(message);
+        }
+        else {
+          m_consoleErr.println("batch: " + m_input.m_name + ": " + message);
+        }
+      }
+
+      if (m_soundEdit != null) {
+        try {
+          m_soundEdit.close();
+        }
+        catch (IOException e) {
+          // It has already failed.
+        }
+        m_soundEdit = null;
+      }
+      if (m_out != null && m_out != m_log) {
+        m_out.close();
+      }
+      if (m_log != null) {
+        m_log.close();
+      }
+
+      recordFinished(m_input, t == null,
+        (System.nanoTime() - m_start_ns) / 1e9);
+    }
+
+    private void openOutputs()
+      throws IOException
+    {
+      File logFile = new File(m_outDir, m_input.m_name + ".log");
+      logFile.getParentFile().mkdirs();
+      m_log = new PrintStream(new FileOutputStream(logFile), true /*autoFlush*/);
+
+      if (m_command.equals("declick")) {
+        m_out = m_log;
+      }
+      else {
+        m_out = new PrintStream(new FileOutputStream(
+          new File(m_outDir, m_input.m_name + ".sounds.txt")));
+      }
+    }
+  }
+
+  // -------------------------- Private data ---------------------------
+  // Parameters consumed by the batch itself rather than passed on to
+  // the command run on each file.
+  private static final Set<String> BATCH_PARAMS = Set.of(
+    "out", "command", "threads", "maxClips", "largeFile_MB", "journal",
+    "metricsPort", "phases");
+
+  // Journal line prefixes.
+  private static final String JOURNAL_DONE = "done ";
+  private static final String JOURNAL_FAILED = "failed ";
+
+  // Per-thread destinations of `System.out` and `System.err` while a
+  // file is being processed.  Null means the console.
+  private static ThreadLocal<PrintStream> s_threadOut =
+    new ThreadLocal<PrintStream>();
+  private static ThreadLocal<PrintStream> s_threadErr =
+    new ThreadLocal<PrintStream>();
+
+  // Input directory or manifest file.
+  private File m_source;
+
+  // Output directory.
+  private File m_outDir;
+
+  // "declick" or "sounds".
+  private String m_command;
+
+  // Parameters to pass to `m_command`.
+  private List<String> m_commandArgs = new ArrayList<String>();
+
+  // `m_command` and `m_commandArgs`, in a canonical order, so the
+  // journal only skips files done with the same settings.
+  private String m_commandKey;
+
+  // Number of threads doing analysis.
+  private int m_numThreads;
+
+  // Maximum number of files in progress at once.
+  private int m_maxClips;
+
+  // Inputs at least this size are analyzed in parallel.
+  private long m_largeFileBytes;
+
+  private File m_journalFile;
+
+  // Port on which to serve `Metrics`, or null for none.
+  private String m_metricsPort;
+
+  // True if the read and write stages run on virtual threads.
+  private boolean m_virtualIo;
+
+  // Where `System.out` and `System.err` went before the batch started.
+  private PrintStream m_consoleOut;
+  private PrintStream m_consoleErr;
+
+  // Open journal, appended to as files finish.
+  private PrintWriter m_journal;
+
+  // Number of files started, finished and failed so far.
+  private int m_numPending = 0;
+  private int m_numFinished = 0;
+  private int m_numFailed = 0;
+
+  // ------------------------- Public methods --------------------------
+  // Usage: <source> batch out:string command:string
+  //          [threads:int(<cores>)] [maxClips:int(<2*threads>)]
+  //          [largeFile_MB:int(64)]
+  //          [journal:string(<out>/batch-journal.txt)] [metricsPort:int]
+  //          [<params for command>]
+  public BatchRunner(String source, String[] args)
+  {
+    ArgMap argMap = new ArgMap(args);
+
+    m_source = new File(source);
+    m_outDir = new File(argMap.getRequiredString("out"));
+    m_command = argMap.getRequiredString("command");
+    if (!m_command.equals("declick") && !m_command.equals("sounds")) {
+      throw new RuntimeException(
+        "Batch command must be \"declick\" or \"sounds\", not \"" +
+        m_command + "\"");
+    }
+
+    m_numThreads = argMap.getInt("threads",
+      Runtime.getRuntime().availableProcessors());
+    m_maxClips = argMap.getInt("maxClips", 2 * m_numThreads);
+    if (m_numThreads < 1 || m_maxClips < 1) {
+      throw new RuntimeException("threads and maxClips must be positive");
+    }
+    m_largeFileBytes = (long)argMap.getInt("largeFile_MB", 64) << 20;
+
+    String journal = argMap.getOptionalString("journal");
+    m_journalFile = (journal != null?
+      new File(journal) : new File(m_outDir, "batch-journal.txt"));
+
+    m_metricsPort = argMap.getOptionalString("metricsPort");
+
+    for (String arg : args) {
+      String name = arg.substring(0, arg.indexOf(':'));
+      if (!BATCH_PARAMS.contains(name)) {
+        m_commandArgs.add(arg);
+      }
+    }
+
+    List<String> sortedArgs = new ArrayList<String>(m_commandArgs);
+    Collections.sort(sortedArgs);
+    m_commandKey = "[" + m_command +
+      (sortedArgs.isEmpty()? "" : " " + String.join(" ", sortedArgs)) + "]";
+  }
+
+  // Process every input.  Return 0 if all succeeded, 1 otherwise.
+  public int run()
+    throws IOException
+  {
+    List<Input> inputs = findInputs();
+    Set<String> alreadyDone = readJournal();
+
+    List<Input> pending = new ArrayList<Input>();
+    for (Input input : inputs) {
+      if (!alreadyDone.contains(input.journalKey(m_commandKey))) {
+        pending.add(input);
+      }
+    }
+    pending.sort(Comparator.comparingLong((Input in) -> in.m_bytes).reversed());
+    m_numPending = pending.size();
+
+    ExecutorService io = newIoExecutor();
+
+    m_consoleOut = System.out;
+    m_consoleErr = System.err;
+    m_consoleErr.println("batch: " + inputs.size() + " files, " +
+      (inputs.size() - pending.size()) + " already done, " +
+      m_numThreads + " analysis threads, " +
+      m_maxClips + " files in memory, " +
+      (m_virtualIo? "virtual" : "platform") + " threads for I/O");
+
+    boolean startedMetrics = false;
+    if (m_metricsPort != null && !Metrics.isServing()) {
+      Metrics.startServer(Integer.parseInt(m_metricsPort));
+      startedMetrics = true;
+    }
+    Metrics.QUEUE_DEPTH.add(pending.size());
+
+    m_outDir.mkdirs();
+    m_journal = new PrintWriter(new FileWriter(m_journalFile, true /*append*/));
+
+    System.setOut(new PrintStream(
+      new RoutedOutputStream(s_threadOut, m_consoleOut), true /*autoFlush*/));
+    System.setErr(new PrintStream(
+      new RoutedOutputStream(s_threadErr, m_consoleErr), true /*autoFlush*/));
+
+    long start_ns = System.nanoTime();
+    ForkJoinPool compute = new ForkJoinPool(m_numThreads);
+    Semaphore clips = new Semaphore(m_maxClips);
+    try {
+      List<CompletableFuture<Void>> jobs = new ArrayList<CompletableFuture<Void>>();
+      for (Input input : pending) {
+        // Wait until there is room for another decoded clip.
+        clips.acquireUninterruptibly();
+
+        Job job = new Job(input);
+        jobs.add(CompletableFuture
+          .runAsync(() -> job.runStage(job::read), io)
+          .thenRunAsync(() -> job.runStage(job::analyze), compute)
+          .thenRunAsync(() -> job.runStage(job::write), io)
+          .whenComplete((v, t) -> {
+            job.finish(t);
+            clips.release();
+          }));
+      }
+
+      for (CompletableFuture<Void> job : jobs) {
+        try {
+          job.join();
+        }
+        catch (CompletionException e) {
+          // Already reported by `finish`.
+        }
+      }
+    }
+    finally {
+      compute.shutdown();
+      io.shutdown();
+      System.setOut(m_consoleOut);
+      System.setErr(m_consoleErr);
+      m_journal.close();
+      if (startedMetrics) {
+        Metrics.stopServer();
+      }
+    }
+
+    m_consoleOut.printf("batch: %1$d files: %2$d done, %3$d already done, %4$d failed (%5$.1f s)\n",
+      inputs.size(),
+      pending.size() - m_numFailed,
+      inputs.size() - pending.size(),
+      m_numFailed,
+      (System.nanoTime() - start_ns) / 1e9);
+
+    return m_numFailed == 0? 0 : 1;
+  }
+
+  // ------------------------- Private methods -------------------------
+  // Return an executor that runs each task on a new virtual thread, if
+  // this JVM has them (Java 21 and later), or else a cached pool of
+  // platform threads, and set `m_virtualIo` accordingly.  Either way,
+  // there is no fixed limit on threads; the number of I/O tasks at once
+  // is bounded by `m_maxClips`.
+  //
+  // This goes through reflection so that it still compiles for, and
+  // runs on, Java 17.
+  private ExecutorService newIoExecutor()
+  {
+    try {
+      Method method =
+        Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      ExecutorService ret = (ExecutorService)method.invoke(null);
+      m_virtualIo = true;
+      return ret;
+    }
+    catch (ReflectiveOperationException e) {
+      // This includes versions where they are only a preview feature,
+      // and the method throws.
+      m_virtualIo = false;
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  // List the inputs in `m_source`.
+  private List<Input> findInputs()
+    throws IOException
+  {
+    List<Input> inputs = new ArrayList<Input>();
+
+    if (m_source.isDirectory()) {
+      Path base = m_source.toPath();
+
+      // On a rerun, do not pick up earlier outputs.
+      Path outDir = m_outDir.getCanonicalFile().toPath();
+
+      try (Stream<Path> paths = Files.walk(base)) {
+        paths
+          .filter(p -> Files.isRegularFile(p))
+          .filter(p -> p.getFileName().toString().toLowerCase().endsWith(".wav"))
+          .sorted()
+          .forEach(p -> {
+            File f = p.toFile();
+            try {
+              if (!f.getCanonicalFile().toPath().startsWith(outDir)) {
+                inputs.add(new Input(f, base.relativize(p).toString()));
+              }
+            }
+            catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          });
+      }
+    }
+    else {
+      // Relative paths in the manifest are relative to its directory.
+      File base = m_source.getAbsoluteFile().getParentFile();
+
+      try (BufferedReader reader = new BufferedReader(new FileReader(m_source))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+
+          File f = Util.getFileRelativeTo(base, line);
+          Path p = f.toPath().normalize();
+          String name = (p.startsWith(base.toPath())?
+            base.toPath().relativize(p).toString() : f.getName());
+          inputs.add(new Input(f, name));
+        }
+      }
+    }
+
+    Set<String> names = new HashSet<String>();
+    for (Input input : inputs) {
+      if (!names.add(input.m_name)) {
+        throw new RuntimeException(
+          "Two inputs would have the same output name: " + input.m_name);
+      }
+    }
+
+    return inputs;
+  }
+
+  // Return the keys of the inputs the journal records as done.
+  private Set<String> readJournal()
+    throws IOException
+  {
+    Set<String> done = new HashSet<String>();
+    if (m_journalFile.exists()) {
+      try (BufferedReader reader = new BufferedReader(new FileReader(m_journalFile))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith(JOURNAL_DONE)) {
+            done.add(line.substring(JOURNAL_DONE.length()));
+          }
+        }
+      }
+    }
+    return done;
+  }
+
+  // Record that `input` finished, successfully if `ok`.
+  private synchronized void recordFinished(
+    Input input, boolean ok, double seconds)
+  {
+    ++m_numFinished;
+    if (ok) {
+      m_journal.println(JOURNAL_DONE + input.journalKey(m_commandKey));
+      Metrics.FILES_PROCESSED.inc();
+    }
+    else {
+      ++m_numFailed;
+      m_journal.println(JOURNAL_FAILED + input.journalKey(m_commandKey));
+      Metrics.FILES_FAILED.inc();
+    }
+    m_journal.flush();
+    Metrics.QUEUE_DEPTH.add(-1);
+
+    m_consoleErr.printf("batch: [%1$d/%2$d] %3$s %4$s (%5$.1f s)%6$s\n",
+      m_numFinished,
+      m_numPending,
+      ok? "done" : "FAILED",
+      input.m_name,
+      seconds,
+      ok? "" : "; see " + input.m_name + ".log");
+  }
+
+  // ------------------------- Private classes -------------------------
+  // Stream that writes to the current thread's destination in `route`,
+  // or to `fallback` if it has none.
+  private static class RoutedOutputStream extends OutputStream {
+    private ThreadLocal<PrintStream> m_route;
+    private PrintStream m_fallback;
+
+    public RoutedOutputStream(ThreadLocal<PrintStream> route, PrintStream fallback)
+    {
+      m_route = route;
+      m_fallback = fallback;
+    }
+
+    private PrintStream target()
+    {
+      PrintStream dest = m_route.get();
+      return dest != null? dest : m_fallback;
+    }
+
+    @Override
+    public void write(int b)
+    {
+      target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      target().write(b, off, len);
+    }
+
+    @Override
+    public void flush()
+    {
+      target().flush();
+    }
+  }
+}
+
+
+// EOF
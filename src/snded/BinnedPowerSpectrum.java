@@ -55,19 +55,13 @@ public class BinnedPowerSpectrum {
       }
     }
 
-    // below 1000 Hz
-    double lowFreqMax_dB = getMaxForBin(2);
-
-    // above 1000 Hz
-    double highFreqMax_dB = getMaxForBin(3);
-
-    // Ratio of those two.  My hypothesis is that, for very short
-    // sounds (less than 0.2 s), I can use this to distinguish between
-    // voice and clicks, the latter having a negative value due to
-    // more high-frequency power.
-    m_excessLow_dB = lowFreqMax_dB - highFreqMax_dB;
+    computeClassification();
+  }
 
-    m_likelyClick = (m_excessLow_dB < 0);
+  // Number of bins.
+  public int numBins()
+  {
+    return m_numBins;
   }
 
   // Return the measured maximum decibels for `bin`.
@@ -98,6 +92,25 @@ public class BinnedPowerSpectrum {
         upperFreq, m_maxDecibelsForBin[fbin]);
     }
   }
+
+  // ------------------------- Private methods -------------------------
+  // Compute `m_excessLow_dB` and `m_likelyClick` from the bins.
+  private void computeClassification()
+  {
+    // below 1000 Hz
+    double lowFreqMax_dB = getMaxForBin(2);
+
+    // above 1000 Hz
+    double highFreqMax_dB = getMaxForBin(3);
+
+    // Ratio of those two.  My hypothesis is that, for very short
+    // sounds (less than 0.2 s), I can use this to distinguish between
+    // voice and clicks, the latter having a negative value due to
+    // more high-frequency power.
+    m_excessLow_dB = lowFreqMax_dB - highFreqMax_dB;
+
+    m_likelyClick = (m_excessLow_dB < 0);
+  }
 }
 
 
@@ -0,0 +1,159 @@
+// DeclickCheckpoint.java
+
+package snded;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Point from which `DeclickPipeline` can resume after being
+// interrupted.
+//
+// It records how much of the output is known to be on disk, and the
+// state that the stages after reading had when they got there, which
+// is all that later output depends on besides the input itself:
+//
+//   * Detection had processed the input up to `m_restartFrame`, with
+//     `m_openSound` still in progress.
+//
+//   * Rendering had written `m_renderedFrames` frames of output, and
+//     the retained sounds that can still affect later frames were
+//     `m_sounds`.  Earlier sounds are too far behind to matter.
+//
+//   * Every sound starting before `m_frontier` had been passed on.
+//
+// Resuming reads the input again from the first block that rendering
+// or classification still needs, which is at most a sound's length
+// before `m_restartFrame`.
+//
+public class DeclickCheckpoint {
+  // --------------------------- Public data ---------------------------
+  // Identifies a serialized checkpoint.
+  public static final int MAGIC = 0x534e444b;     // "SNDK"
+
+  // Serialization format version.
+  public static final int VERSION = 1;
+
+  // Identifies the input and parameters the checkpoint is for, so it is
+  // not used to resume a different job.
+  public String m_jobKey;
+
+  // Input frame at which detection resumes.
+  public long m_restartFrame;
+
+  // Sound detection had in progress at `m_restartFrame`, or null.
+  public Sound m_openSound;
+
+  // Every sound that starts before this frame was passed on before
+  // `m_restartFrame`.
+  public long m_frontier;
+
+  // Retained sounds still relevant to rendering, in order, starting
+  // with the one nearest the next frame to render.
+  public List<Sound> m_sounds = new ArrayList<Sound>();
+
+  // Number of frames of output written.
+  public long m_renderedFrames;
+
+  // Length of the output file, header included, that holds those
+  // frames.
+  public long m_outputBytes;
+
+  // ------------------------- Public methods --------------------------
+  public DeclickCheckpoint(String jobKey)
+  {
+    m_jobKey = jobKey;
+  }
+
+  // Read the checkpoint in `file`, throwing if it is not one in the
+  // current format.
+  public static DeclickCheckpoint load(File file)
+    throws IOException
+  {
+    try (DataInputStream in = new DataInputStream(
+           new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(
+          file + " is not a declick checkpoint in the current format.");
+      }
+
+      DeclickCheckpoint ckpt = new DeclickCheckpoint(in.readUTF());
+      ckpt.m_restartFrame = in.readLong();
+      if (in.readBoolean()) {
+        ckpt.m_openSound = readSound(in);
+      }
+      ckpt.m_frontier = in.readLong();
+
+      int numSounds = in.readInt();
+      for (int i=0; i < numSounds; ++i) {
+        ckpt.m_sounds.add(readSound(in));
+      }
+
+      ckpt.m_renderedFrames = in.readLong();
+      ckpt.m_outputBytes = in.readLong();
+      return ckpt;
+    }
+  }
+
+  // Write this checkpoint to `file`, replacing the previous one only
+  // once it is completely on disk, so a crash leaves one or the other.
+  public void store(File file)
+    throws IOException
+  {
+    File tmp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(tmp);
+         DataOutputStream out = new DataOutputStream(fos)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(m_jobKey);
+      out.writeLong(m_restartFrame);
+      out.writeBoolean(m_openSound != null);
+      if (m_openSound != null) {
+        writeSound(out, m_openSound);
+      }
+      out.writeLong(m_frontier);
+
+      out.writeInt(m_sounds.size());
+      for (Sound s : m_sounds) {
+        writeSound(out, s);
+      }
+
+      out.writeLong(m_renderedFrames);
+      out.writeLong(m_outputBytes);
+
+      out.flush();
+      fos.getFD().sync();
+    }
+
+    Files.move(tmp.toPath(), file.toPath(),
+      StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // ------------------------- Private methods -------------------------
+  private static Sound readSound(DataInputStream in)
+    throws IOException
+  {
+    return new Sound(in.readLong(), in.readLong(), in.readDouble());
+  }
+
+  private static void writeSound(DataOutputStream out, Sound s)
+    throws IOException
+  {
+    out.writeLong(s.m_startFrame);
+    out.writeLong(s.m_endFrame);
+    out.writeDouble(s.m_maxLoudness_dB);
+  }
+}
+
+
+// EOF
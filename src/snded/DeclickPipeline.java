@@ -0,0 +1,872 @@
+// DeclickPipeline.java
+
+package snded;
+
+import mcve.audio.SimpleAudioConversion;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+
+// Streaming implementation of the `declick` command.
+//
+// `SoundEdit.declick` decodes the whole input, then finds the sounds in
+// all of it, then classifies them, then renders, encodes and writes the
+// whole output, so its time is the sum of those steps.  This instead
+// runs each step on its own thread, passing blocks of frames along:
+//
+//   read -> decode -> detect -> classify -> render -> encode -> write
+//
+// so its time approaches that of the slowest step, and the memory used
+// does not grow with the length of the input.  Neighboring stages are
+// joined by `SpscRingBuffer`s of a few blocks each, so a slow stage
+// makes the ones before it wait rather than letting blocks pile up.
+//
+// The output is identical to that of `SoundEdit.declick`.  The stages
+// work as follows:
+//
+//   detect: Find loud frames and group them into sounds as
+//   `SoundPartitioner` does.  A sound is passed on as soon as no later
+//   frame could extend it.  Each block also carries the "frontier":
+//   every sound that starts before it has been passed on.
+//
+//   classify: Keep the blocks from the frontier on, so the spectrum of
+//   each sound, where the classifier needs one, can be computed from
+//   them.  Pass on the sounds to retain.
+//
+//   render: Hold each block until the frontier is more than the
+//   closeness threshold past its end, since only retained sounds within
+//   that distance affect its frames, then apply the same gain as
+//   `declick`.
+//
+// A sound is only passed on once it ends, so the classify and render
+// stages hold on to the blocks spanning the sound in progress; memory
+// use grows with the length of the longest sound.
+//
+// If any stage fails, all of the rings are aborted, and `run` throws
+// the first failure.
+//
+// With `enableCheckpoints`, the run periodically records a
+// `DeclickCheckpoint`, so that a later run can resume from it rather
+// than from the beginning, with the same output.  The state it needs
+// is spread over the stages, which work on different blocks at any
+// moment, so each records its part in the block it passes on: detect
+// notes the sound in progress after each block, and render, after it
+// has rendered up to some block, combines that with its own state
+// into a checkpoint carried by the last block rendered.  The writer
+// stores the checkpoint once that block's bytes are synced to disk.
+//
+public class DeclickPipeline {
+  // -------------------------- Private types --------------------------
+  // A block of consecutive frames, along with what the stages learn
+  // about the input up to its end.  The stages fill in the fields as
+  // it goes along; samples are not modified once decoded.
+  private static class Block {
+    // Frame number of the first frame.
+    public long m_startFrame;
+
+    public int m_numFrames;
+
+    // Sample bytes as read, then as encoded.
+    public byte[] m_bytes;
+
+    // Interleaved samples as decoded, then as rendered.
+    public float[] m_samples;
+
+    // Sounds that ended before or in this block and were not passed on
+    // with an earlier one: from detect, all of them; from classify,
+    // those to retain.
+    public List<Sound> m_sounds = new ArrayList<Sound>();
+
+    // Every sound starting before this frame has been passed on with
+    // this block or an earlier one.
+    public long m_frontier;
+
+    // When checkpointing, a copy of the sound detect had in progress
+    // after this block, or null if none.
+    public Sound m_openSound;
+
+    // Checkpoint to store once this block has been written, or null.
+    public DeclickCheckpoint m_checkpoint;
+
+    public Block(long startFrame, int numFrames)
+    {
+      m_startFrame = startFrame;
+      m_numFrames = numFrames;
+    }
+
+    public long endFrame()
+    {
+      return m_startFrame + m_numFrames;
+    }
+  }
+
+  // Body of a stage's thread.
+  private interface StageBody {
+    void run() throws Exception;
+  }
+
+  // -------------------------- Private data ---------------------------
+  // Frames per block.
+  private static final int BLOCK_FRAMES = 16384;
+
+  // Blocks each ring between stages holds.
+  private static final int RING_BLOCKS = 8;
+
+  // Frontier after the last block.
+  private static final long END_FRONTIER = Long.MAX_VALUE;
+
+  private AudioInputStream m_input;
+  private AudioFormat m_format;
+
+  // Format in which to encode the output: `m_format`, or, when
+  // checkpointing, the WAV equivalent that `waveHeader` describes.
+  private AudioFormat m_outFormat;
+  private int m_numChannels;
+  private float m_frameRate;
+  private long m_numFrames;
+
+  private SoundPartitionParams m_params;
+  private SoundClassifier m_classifier;
+  private String m_outFname;
+
+  // See `SoundPartitioner`.
+  private int m_closenessThreshold_frames;
+
+  // Rings between the stages, named for the stage that consumes them.
+  private SpscRingBuffer<Block> m_toDecode =
+    new SpscRingBuffer<Block>(RING_BLOCKS);
+  private SpscRingBuffer<Block> m_toDetect =
+    new SpscRingBuffer<Block>(RING_BLOCKS);
+  private SpscRingBuffer<Block> m_toClassify =
+    new SpscRingBuffer<Block>(RING_BLOCKS);
+  private SpscRingBuffer<Block> m_toRender =
+    new SpscRingBuffer<Block>(RING_BLOCKS);
+  private SpscRingBuffer<Block> m_toEncode =
+    new SpscRingBuffer<Block>(RING_BLOCKS);
+  private SpscRingBuffer<Block> m_toWrite =
+    new SpscRingBuffer<Block>(RING_BLOCKS);
+
+  // First failure of any stage, or null.
+  private Throwable m_failure = null;
+
+  // File in which to store checkpoints, or null if not checkpointing.
+  private File m_checkpointFile = null;
+
+  // Input frames between checkpoints.
+  private long m_checkpointPeriod_frames;
+
+  // See `DeclickCheckpoint.m_jobKey`.
+  private String m_jobKey;
+
+  // Checkpoint being resumed from, or null if starting from the
+  // beginning.
+  private DeclickCheckpoint m_resume = null;
+
+  // First frame to read: 0, or the start of the first block that is
+  // needed to resume from `m_resume`.
+  private long m_firstFrame = 0;
+
+  // ------------------------- Public methods --------------------------
+  // Prepare to declick `input`, whose header has been read, writing
+  // the result to `outFname`.
+  public DeclickPipeline(
+    AudioInputStream input,
+    SoundPartitionParams params,
+    SoundClassifier classifier,
+    String outFname)
+  {
+    m_input = input;
+    m_format = input.getFormat();
+    m_outFormat = m_format;
+    m_numChannels = m_format.getChannels();
+    m_frameRate = m_format.getFrameRate();
+    m_numFrames = input.getFrameLength();
+    if (m_numFrames == AudioSystem.NOT_SPECIFIED) {
+      throw new RuntimeException(
+        "Streaming requires an input whose header gives its length.");
+    }
+
+    m_params = params;
+    m_classifier = classifier;
+    m_outFname = outFname;
+    m_closenessThreshold_frames = params.closenessThresholdFrames(m_frameRate);
+  }
+
+  // Store a checkpoint in `file` about every `period_s` seconds of
+  // input.  `jobKey` identifies the input and parameters.  If `resume`
+  // and `file` holds a checkpoint, continue from there, appending to
+  // the output file written so far.  The checkpoint is deleted when
+  // the run completes.
+  public void enableCheckpoints(
+    File file,
+    float period_s,
+    String jobKey,
+    boolean resume)
+      throws IOException
+  {
+    // The output is written without `AudioSystem` converting it to
+    // what a WAV file holds, so encode it that way to begin with.
+    AudioFormat.Encoding encoding = m_format.getEncoding();
+    if (encoding != AudioFormat.Encoding.PCM_SIGNED &&
+        encoding != AudioFormat.Encoding.PCM_UNSIGNED) {
+      throw new RuntimeException(
+        "Checkpoints need PCM input, not " + encoding + ".");
+    }
+    int bits = m_format.getSampleSizeInBits();
+    m_outFormat = new AudioFormat(
+      bits <= 8? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED,
+      m_frameRate, bits, m_numChannels, m_format.getFrameSize(),
+      m_frameRate, false /*bigEndian*/);
+
+    m_checkpointFile = file;
+    m_checkpointPeriod_frames = Math.max(1, (long)(period_s * m_frameRate));
+    m_jobKey = jobKey;
+
+    if (!resume) {
+      return;
+    }
+    if (!file.exists()) {
+      SoundEdit.progressReport("declick: no checkpoint in " + file +
+        "; starting from the beginning");
+      return;
+    }
+
+    DeclickCheckpoint ckpt = DeclickCheckpoint.load(file);
+    if (!ckpt.m_jobKey.equals(jobKey)) {
+      throw new RuntimeException("The checkpoint in " + file +
+        " is for a different input or different parameters.");
+    }
+
+    // Rendering needs the blocks from the first one not yet written,
+    // and classification those from the start of the sound in
+    // progress.
+    m_resume = ckpt;
+    m_firstFrame = Math.min(ckpt.m_renderedFrames, ckpt.m_frontier) /
+      BLOCK_FRAMES * BLOCK_FRAMES;
+    SoundEdit.progressReport("declick: resuming after frame " +
+      ckpt.m_renderedFrames + " of output, reading from frame " +
+      m_firstFrame);
+  }
+
+  // Estimate the heap bytes used by the blocks in flight when
+  // declicking input in `format`: those in the rings, plus one being
+  // worked on by each stage, each with its bytes, decoded samples and
+  // rendered samples.  The classify and render stages also hold the
+  // blocks spanning the longest sound, which this cannot know.
+  public static long estimateBytes(AudioFormat format)
+  {
+    long numBlocks = 6 * RING_BLOCKS + 7;
+    long bytesPerFrame = format.getChannels() *
+      (SimpleAudioConversion.bytesPerSample(format.getSampleSizeInBits()) +
+       2 * Float.BYTES);
+    return numBlocks * BLOCK_FRAMES * bytesPerFrame;
+  }
+
+  // Run all of the stages to completion.
+  public void run()
+    throws IOException
+  {
+    List<Thread> threads = new ArrayList<Thread>();
+    threads.add(startStage("read", this::read));
+    threads.add(startStage("decode", this::decode));
+    threads.add(startStage("detect", this::detect));
+    threads.add(startStage("classify", this::classify));
+    threads.add(startStage("render", this::render));
+    threads.add(startStage("encode", this::encode));
+    threads.add(startStage("write", this::write));
+
+    for (Thread t : threads) {
+      try {
+        t.join();
+      }
+      catch (InterruptedException e) {
+        fail(e);
+      }
+    }
+
+    synchronized (this) {
+      if (m_failure instanceof IOException) {
+        throw (IOException)m_failure;
+      }
+      else if (m_failure instanceof RuntimeException) {
+        throw (RuntimeException)m_failure;
+      }
+      else if (m_failure instanceof Error) {
+        throw (Error)m_failure;
+      }
+      else if (m_failure != null) {
+        throw new RuntimeException(m_failure);
+      }
+    }
+
+    // The output is complete, so there is nothing to resume.
+    if (m_checkpointFile != null) {
+      m_checkpointFile.delete();
+    }
+  }
+
+  // ------------------------- Private methods -------------------------
+  private Thread startStage(String name, StageBody body)
+  {
+    Thread thread = new Thread(() -> {
+      try {
+        body.run();
+      }
+      catch (Throwable t) {
+        fail(t);
+      }
+    }, "snded-" + name);
+    thread.start();
+    return thread;
+  }
+
+  // Record `t`, unless something failed first, and stop all stages.
+  private synchronized void fail(Throwable t)
+  {
+    if (m_failure == null) {
+      m_failure = t;
+    }
+    for (SpscRingBuffer<Block> ring : List.of(m_toDecode, m_toDetect,
+           m_toClassify, m_toRender, m_toEncode, m_toWrite)) {
+      ring.abort();
+    }
+  }
+
+  // Read the sample bytes in blocks.
+  private void read()
+    throws IOException
+  {
+    int frameSize = m_format.getFrameSize();
+    if (m_firstFrame > 0) {
+      try (Phases.Scope phase = Phases.begin("read")) {
+        m_input.skipNBytes(m_firstFrame * frameSize);
+        phase.addBytes(m_firstFrame * frameSize);
+      }
+    }
+
+    for (long start = m_firstFrame; start < m_numFrames; start += BLOCK_FRAMES) {
+      Block block = new Block(start,
+        (int)Math.min(BLOCK_FRAMES, m_numFrames - start));
+      try (Phases.Scope phase = Phases.begin("read")) {
+        block.m_bytes = m_input.readNBytes(block.m_numFrames * frameSize);
+        phase.addBytes(block.m_bytes.length);
+      }
+      if (block.m_bytes.length < block.m_numFrames * frameSize) {
+        throw new IOException("Input ended after " +
+          (start + block.m_bytes.length / frameSize) + " of " +
+          m_numFrames + " frames.");
+      }
+      m_toDecode.put(block);
+    }
+    m_toDecode.close();
+  }
+
+  private void decode()
+  {
+    for (Block block; (block = m_toDecode.take()) != null; ) {
+      try (Phases.Scope phase = Phases.begin("decode")) {
+        block.m_samples = new float[block.m_numFrames * m_numChannels];
+        SimpleAudioConversion.decode(block.m_bytes, block.m_samples,
+          block.m_bytes.length, m_format);
+        phase.addFrames(block.m_numFrames);
+        phase.addBytes(block.m_bytes.length);
+      }
+      Metrics.DECODED_FRAMES.add(block.m_numFrames);
+      Metrics.DECODED_BYTES.add(block.m_bytes.length);
+      block.m_bytes = null;
+      m_toDetect.put(block);
+    }
+    m_toDetect.close();
+  }
+
+  // Find the sounds, as `SoundEdit.findSounds` and `SoundPartitioner`
+  // do.
+  private void detect()
+  {
+    double threshold_dB = m_params.m_loudnessThreshold_dB;
+
+    // Sound still being accumulated, if any.
+    Sound cur = null;
+
+    // Frame from which to detect.  Blocks before it were already
+    // processed before the checkpoint being resumed from.
+    long restartFrame = 0;
+    if (m_resume != null) {
+      cur = copySound(m_resume.m_openSound);
+      restartFrame = m_resume.m_restartFrame;
+    }
+
+    for (Block block; (block = m_toDetect.take()) != null; ) {
+      if (block.m_startFrame < restartFrame) {
+        block.m_frontier = m_resume.m_frontier;
+        m_toClassify.put(block);
+        continue;
+      }
+
+      try (Phases.Scope phase = Phases.begin("detect")) {
+        float[] samples = block.m_samples;
+
+        // Skip quiet blocks and frames the same way `PeakPyramid`
+        // does, computing the loudness exactly only when it might
+        // exceed the threshold.
+        float blockPeak = 0;
+        for (float s : samples) {
+          blockPeak = Math.max(blockPeak, Math.abs(s));
+        }
+
+        if (PeakPyramid.loudnessUpperBound(blockPeak) > threshold_dB) {
+          for (int f=0; f < block.m_numFrames; ++f) {
+            int base = f * m_numChannels;
+            float framePeak = 0;
+            for (int c=0; c < m_numChannels; ++c) {
+              framePeak = Math.max(framePeak, Math.abs(samples[base+c]));
+            }
+            if (PeakPyramid.loudnessUpperBound(framePeak) <= threshold_dB) {
+              continue;
+            }
+
+            // As in `AudioClip.getFrameDecibels`.
+            double dB = AudioClip.linearAmplitudeToDecibels(samples[base]);
+            for (int c=1; c < m_numChannels; ++c) {
+              dB = Math.max(dB,
+                AudioClip.linearAmplitudeToDecibels(samples[base+c]));
+            }
+            if (dB <= threshold_dB) {
+              continue;
+            }
+
+            long frameNum = block.m_startFrame + f;
+            if (cur != null &&
+                frameNum - cur.m_endFrame <= m_closenessThreshold_frames) {
+              cur.extend(frameNum, dB);
+            }
+            else {
+              if (cur != null) {
+                block.m_sounds.add(cur);
+              }
+              cur = new Sound(frameNum, frameNum, dB);
+            }
+          }
+        }
+
+        // Pass on the current sound if no later frame could extend it.
+        if (cur != null &&
+            block.endFrame() - cur.m_endFrame > m_closenessThreshold_frames) {
+          block.m_sounds.add(cur);
+          cur = null;
+        }
+        block.m_frontier = (cur != null? cur.m_startFrame : block.endFrame());
+        if (m_checkpointFile != null) {
+          block.m_openSound = copySound(cur);
+        }
+        phase.addFrames(block.m_numFrames);
+      }
+
+      Metrics.SOUNDS_DETECTED.add(block.m_sounds.size());
+      m_toClassify.put(block);
+    }
+
+    // There is nothing left to extend the last sound, so pass it on in
+    // an empty block.
+    Block last = new Block(m_numFrames, 0);
+    last.m_samples = new float[0];
+    if (cur != null) {
+      last.m_sounds.add(cur);
+      Metrics.SOUNDS_DETECTED.inc();
+    }
+    last.m_frontier = END_FRONTIER;
+    m_toClassify.put(last);
+    m_toClassify.close();
+  }
+
+  // Decide which sounds to retain, as `SoundEdit.filterSounds` does.
+  private void classify()
+  {
+    // Blocks that might contain sounds not yet passed on.
+    Deque<Block> window = new ArrayDeque<Block>();
+
+    for (Block block; (block = m_toClassify.take()) != null; ) {
+      window.addLast(block);
+
+      List<Sound> retained = new ArrayList<Sound>();
+      try (Phases.Scope phase = Phases.begin("classify")) {
+        for (Sound s : block.m_sounds) {
+          SoundTable table = new SoundTable(1);
+          table.add(s);
+
+          if (m_classifier.needsSpectrum(table, 0, m_frameRate)) {
+            table.setSpectrum(0, computeSpectrum(window, s));
+          }
+
+          if (m_classifier.shouldRetain(table, 0, m_frameRate, true /*useSpectrum*/)) {
+            retained.add(s);
+          }
+          else if (table.hasSpectrum(0)) {
+            Metrics.SOUNDS_DISCARDED_AS_CLICKS.inc();
+          }
+          phase.addFrames(s.frameDuration());
+        }
+      }
+      block.m_sounds = retained;
+
+      // Later sounds all start at or after the frontier.
+      while (!window.isEmpty() &&
+             window.peekFirst().endFrame() <= block.m_frontier) {
+        window.removeFirst();
+      }
+
+      m_toRender.put(block);
+    }
+    m_toRender.close();
+  }
+
+  // Compute the binned spectrum of `sound`, whose frames are in
+  // `window`.
+  private BinnedPowerSpectrum computeSpectrum(Deque<Block> window, Sound sound)
+  {
+    try (Phases.Scope phase = Phases.begin("spectra")) {
+      // Copy the frames of the sound into a clip of their own.
+      int numFrames = Math.toIntExact(sound.frameDuration());
+      float[] samples = new float[numFrames * m_numChannels];
+      for (Block b : window) {
+        long start = Math.max(b.m_startFrame, sound.m_startFrame);
+        long end = Math.min(b.endFrame(), sound.m_endFrame + 1);
+        if (start < end) {
+          System.arraycopy(
+            b.m_samples, (int)(start - b.m_startFrame) * m_numChannels,
+            samples, (int)(start - sound.m_startFrame) * m_numChannels,
+            (int)(end - start) * m_numChannels);
+        }
+      }
+
+      phase.addFrames(numFrames);
+      return new BinnedPowerSpectrum(new PowerSpectrum(
+        new AudioClip(m_format, samples),
+        m_params.m_spectrumWindowSize, 0, numFrames - 1));
+    }
+  }
+
+  // Apply the declick gain, as `SoundEdit.declick` does.
+  private void render()
+  {
+    int thr = m_closenessThreshold_frames;
+
+    // Report progress every this many frames.
+    long progressPeriod_frames = (long)(60.0 * m_frameRate);
+
+    // Blocks received but not yet rendered.
+    Deque<Block> pending = new ArrayDeque<Block>();
+
+    // Retained sounds received so far, starting with the one rendering
+    // has reached, and the frontier of the latest block.
+    List<Sound> sounds = new ArrayList<Sound>();
+    long frontier = 0;
+
+    // Index in `sounds` of the one we are closest to, or -1 if none.
+    int curSound = -1;
+
+    // Blocks ending at or before this frame were rendered before the
+    // checkpoint being resumed from.
+    long renderedFrames = 0;
+
+    // Input frame after which to make the next checkpoint.
+    long nextCheckpoint = m_checkpointPeriod_frames;
+
+    if (m_resume != null) {
+      sounds.addAll(m_resume.m_sounds);
+      frontier = m_resume.m_frontier;
+      renderedFrames = m_resume.m_renderedFrames;
+      nextCheckpoint = m_resume.m_restartFrame + m_checkpointPeriod_frames;
+    }
+
+    while (true) {
+      Block block = m_toRender.take();
+      if (block != null) {
+        if (block.endFrame() > renderedFrames) {
+          pending.addLast(block);
+        }
+        sounds.addAll(block.m_sounds);
+        frontier = block.m_frontier;
+      }
+
+      // Last block rendered below, held back until it is known whether
+      // it carries a checkpoint.
+      Block lastRendered = null;
+
+      // A block can be rendered once every retained sound that starts
+      // within the threshold of its last frame is known.
+      while (!pending.isEmpty() &&
+             (block == null ||
+              pending.peekFirst().endFrame() - 1 + thr < frontier)) {
+        Block b = pending.removeFirst();
+        if (b.m_numFrames == 0) {
+          continue;
+        }
+
+        try (Phases.Scope phase = Phases.begin("render")) {
+          float[] out = new float[b.m_samples.length];
+          for (int f=0; f < b.m_numFrames; ++f) {
+            long frameNum = b.m_startFrame + f;
+            if (frameNum % progressPeriod_frames == 0) {
+              SoundEdit.progressReport("declick: processing frame " +
+                frameNum + " of " + m_numFrames);
+            }
+
+            if (curSound < 0 && !sounds.isEmpty()) {
+              curSound = 0;
+            }
+
+            // Advance to next sound?
+            if (curSound >= 0 && curSound+1 < sounds.size() &&
+                sounds.get(curSound).distanceToEndpoint(frameNum) >
+                  sounds.get(curSound+1).distanceToEndpoint(frameNum)) {
+              ++curSound;
+            }
+
+            float amplification;
+            if (curSound >= 0) {
+              long distance = sounds.get(curSound).distanceToEndpoint(frameNum);
+              if (distance < thr/2) {
+                amplification = 1.0f;
+              }
+              else if (distance > thr) {
+                amplification = 0.0f;
+              }
+              else {
+                amplification = ((thr - distance) * 2) / (float)thr;
+              }
+            }
+            else {
+              amplification = 0.0f;
+            }
+
+            int base = f * m_numChannels;
+            for (int c=0; c < m_numChannels; ++c) {
+              out[base+c] = b.m_samples[base+c] * amplification;
+            }
+          }
+          b.m_samples = out;
+          phase.addFrames(b.m_numFrames);
+        }
+
+        // Rendering only moves forward, so the sounds before the current
+        // one are no longer needed.
+        if (curSound > 0) {
+          sounds.subList(0, curSound).clear();
+          curSound = 0;
+        }
+
+        if (lastRendered != null) {
+          m_toEncode.put(lastRendered);
+        }
+        lastRendered = b;
+      }
+
+      if (lastRendered != null) {
+        if (m_checkpointFile != null && block != null &&
+            block.m_numFrames > 0 && block.endFrame() >= nextCheckpoint) {
+          // Detection and classification have gone through `block`,
+          // and rendering through `lastRendered`.
+          DeclickCheckpoint ckpt = new DeclickCheckpoint(m_jobKey);
+          ckpt.m_restartFrame = block.endFrame();
+          ckpt.m_openSound = block.m_openSound;
+          ckpt.m_frontier = frontier;
+          ckpt.m_sounds.addAll(
+            sounds.subList(Math.max(curSound, 0), sounds.size()));
+          ckpt.m_renderedFrames = lastRendered.endFrame();
+          lastRendered.m_checkpoint = ckpt;
+
+          nextCheckpoint = block.endFrame() + m_checkpointPeriod_frames;
+        }
+        m_toEncode.put(lastRendered);
+      }
+
+      if (block == null) {
+        break;
+      }
+    }
+    m_toEncode.close();
+  }
+
+  private void encode()
+  {
+    int bytesPerSample = SimpleAudioConversion.bytesPerSample(
+      m_format.getSampleSizeInBits());
+
+    for (Block block; (block = m_toEncode.take()) != null; ) {
+      try (Phases.Scope phase = Phases.begin("encode")) {
+        block.m_bytes = new byte[block.m_samples.length * bytesPerSample];
+        SimpleAudioConversion.encode(block.m_samples, block.m_bytes,
+          block.m_samples.length, m_outFormat);
+        phase.addFrames(block.m_numFrames);
+        phase.addBytes(block.m_bytes.length);
+      }
+      block.m_samples = null;
+      m_toWrite.put(block);
+    }
+    m_toWrite.close();
+  }
+
+  private void write()
+    throws IOException
+  {
+    SoundEdit.progressReport("writing " + m_outFname);
+    if (m_checkpointFile != null) {
+      writeWithCheckpoints();
+      return;
+    }
+
+    try (AudioInputStream ais = new AudioInputStream(
+           new RingInputStream(m_toWrite), m_format, m_numFrames)) {
+      AudioSystem.write(ais, AudioFileFormat.Type.WAVE, new File(m_outFname));
+    }
+  }
+
+  // Write the output file directly, rather than through `AudioSystem`,
+  // so it can be synced before each checkpoint is stored, and appended
+  // to when resuming.
+  private void writeWithCheckpoints()
+    throws IOException
+  {
+    try (FileChannel out = FileChannel.open(Path.of(m_outFname),
+           StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      if (m_resume != null) {
+        // Drop anything written after the checkpoint.
+        if (out.size() < m_resume.m_outputBytes) {
+          throw new IOException(m_outFname +
+            " is shorter than when the checkpoint was made.");
+        }
+        out.truncate(m_resume.m_outputBytes);
+        out.position(m_resume.m_outputBytes);
+      }
+      else {
+        out.truncate(0);
+        writeFully(out, waveHeader());
+      }
+
+      for (Block block; (block = m_toWrite.take()) != null; ) {
+        try (Phases.Scope phase = Phases.begin("write")) {
+          writeFully(out, block.m_bytes);
+          phase.addBytes(block.m_bytes.length);
+        }
+
+        if (block.m_checkpoint != null) {
+          out.force(false);
+          block.m_checkpoint.m_outputBytes = out.position();
+          block.m_checkpoint.store(m_checkpointFile);
+        }
+      }
+    }
+  }
+
+  // Return the header `AudioSystem` writes for the output, which it
+  // writes in full before the samples since the length is known.
+  private byte[] waveHeader()
+    throws IOException
+  {
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    try (AudioInputStream ais = new AudioInputStream(
+           new ByteArrayInputStream(new byte[0]), m_outFormat, m_numFrames)) {
+      AudioSystem.write(ais, AudioFileFormat.Type.WAVE, header);
+    }
+    return header.toByteArray();
+  }
+
+  private static void writeFully(FileChannel out, byte[] bytes)
+    throws IOException
+  {
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    while (buf.hasRemaining()) {
+      out.write(buf);
+    }
+  }
+
+  // Return a copy of `s`, which may be null.
+  private static Sound copySound(Sound s)
+  {
+    return s == null? null :
+      new Sound(s.m_startFrame, s.m_endFrame, s.m_maxLoudness_dB);
+  }
+
+  // ------------------------- Private classes -------------------------
+  // Stream of the bytes of the blocks in a ring.
+  //
+  // The "write" phase of each block runs from when it is taken from
+  // the ring until the next one is requested, which is when the writer
+  // is done with it, so waiting for blocks is not counted.
+  private static class RingInputStream extends InputStream {
+    private SpscRingBuffer<Block> m_ring;
+
+    // Block being read, and the position in it.
+    private Block m_block = null;
+    private int m_pos = 0;
+
+    private Phases.Scope m_phase = null;
+
+    public RingInputStream(SpscRingBuffer<Block> ring)
+    {
+      m_ring = ring;
+    }
+
+    @Override
+    public int read()
+    {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] dest, int off, int len)
+    {
+      while (m_block == null || m_pos == m_block.m_bytes.length) {
+        endPhase();
+        m_block = m_ring.take();
+        m_pos = 0;
+        if (m_block == null) {
+          return -1;
+        }
+        m_phase = Phases.begin("write");
+        m_phase.addBytes(m_block.m_bytes.length);
+      }
+
+      int n = Math.min(len, m_block.m_bytes.length - m_pos);
+      System.arraycopy(m_block.m_bytes, m_pos, dest, off, n);
+      m_pos += n;
+      return n;
+    }
+
+    @Override
+    public void close()
+    {
+      endPhase();
+    }
+
+    private void endPhase()
+    {
+      if (m_phase != null) {
+        m_phase.close();
+        m_phase = null;
+      }
+    }
+  }
+}
+
+
+// EOF
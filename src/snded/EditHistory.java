@@ -0,0 +1,455 @@
+// EditHistory.java
+
+package snded;
+
+import javax.sound.sampled.AudioFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+// Sequence of versions of a clip produced by successive edits, for
+// undo and redo.
+//
+// Keeping a full copy of the clip per version would multiply the
+// memory needed by the number of edits.  Instead, each version is an
+// array of fixed-size blocks of frames, and blocks are shared between
+// versions: an edit gets a scratch copy of each block in turn, and
+// only the blocks it actually changes become new blocks of the new
+// version.  The blocks of the first version are views of the original
+// clip, so they take no memory of their own.  Each block counts the
+// versions that refer to it, and is freed when the last goes away,
+// which happens to the undone versions when a new edit is made.
+//
+// The blocks of the current version are always in memory.  When the
+// other blocks held in memory exceed the budget, those of the versions
+// farthest from the current one are spilled to a temporary file, and
+// read back when an undo or redo makes them current again.  A block
+// keeps its place in the file once written, so spilling it again is
+// free.
+//
+// Edits cannot change the number of frames; `PieceTable` is the tool
+// for that.
+//
+// This is not thread-safe.
+//
+public class EditHistory implements AutoCloseable {
+  // --------------------------- Public types --------------------------
+  // Makes one edit, a block at a time.  `samples` holds `numFrames`
+  // interleaved frames, starting with `startFrame`, which the editor
+  // modifies in place.  It returns false if it left them unchanged.
+  // Blocks are visited in order.
+  public interface BlockEditor {
+    boolean edit(long startFrame, int numFrames, float[] samples);
+  }
+
+  // --------------------------- Public data ---------------------------
+  // Default budget, in megabytes, for the "history_MB" parameter.
+  public static final int DEFAULT_BUDGET_MB = 256;
+
+  // -------------------------- Private types --------------------------
+  // Samples of one block, shared by the versions that contain it.
+  private static class Block {
+    // For a block of the original clip, a view of it; otherwise null.
+    public AudioClip m_original;
+
+    // Interleaved samples of a block made by an edit, or null if it is
+    // an original block or has been spilled.
+    public float[] m_samples;
+
+    // Number of samples in the block.
+    public int m_numSamples;
+
+    // Offset of the block in the spill file, or -1 if it has not been
+    // written there.
+    public long m_spillOffset = -1;
+
+    // Number of versions that contain this block.
+    public int m_refs = 0;
+  }
+
+  private static class Version {
+    // What the edit that made this version did.
+    public String m_description;
+
+    // Blocks of the version, in order.
+    public Block[] m_blocks;
+
+    // Number of blocks the edit changed.
+    public int m_numChanged;
+  }
+
+  // -------------------------- Private data ---------------------------
+  // Frames per block.  This matches the block size used for rendering
+  // and encoding elsewhere.
+  private static final int BLOCK_FRAMES = 65536;
+
+  // Format of every version.
+  private AudioFormat m_format;
+
+  private long m_numFrames;
+
+  // All versions, oldest first.
+  private List<Version> m_versions = new ArrayList<Version>();
+
+  // Index in `m_versions` of the current version.  Those after it have
+  // been undone, and can be redone.
+  private int m_current = 0;
+
+  // Budget for the bytes of edited blocks held in memory.
+  private long m_maxBytes;
+
+  // Bytes of edited blocks in memory, and of those in the spill file.
+  private long m_heapBytes = 0;
+  private long m_spilledBytes = 0;
+
+  // Temporary file holding spilled blocks, or null until the first
+  // spill.
+  private File m_spillFile = null;
+  private FileChannel m_spill = null;
+
+  // End of the used part of the spill file.
+  private long m_spillEnd = 0;
+
+  // Offsets in the spill file of slots freed by blocks that are gone,
+  // keyed by the number of samples they hold.
+  private Map<Integer, ArrayDeque<Long>> m_freeSlots =
+    new HashMap<Integer, ArrayDeque<Long>>();
+
+  // ------------------------- Public methods --------------------------
+  // Begin a history whose first version is `clip`, keeping at most
+  // `maxBytes` of edited blocks in memory, beyond those of the current
+  // version.  `clip` must not be modified while the history exists.
+  public EditHistory(AudioClip clip, long maxBytes)
+  {
+    m_format = clip.getFormat();
+    m_numFrames = clip.numFrames();
+    m_maxBytes = maxBytes;
+
+    Block[] blocks = new Block[numBlocks()];
+    for (int b=0; b < blocks.length; ++b) {
+      long start = (long)b * BLOCK_FRAMES;
+      blocks[b] = new Block();
+      blocks[b].m_original = clip.slice(start, start + blockFrames(b));
+      blocks[b].m_numSamples = blockFrames(b) * clip.numChannels();
+    }
+    addVersion("original", blocks, 0);
+  }
+
+  public AudioFormat getFormat()
+  {
+    return m_format;
+  }
+
+  public long numFrames()
+  {
+    return m_numFrames;
+  }
+
+  public int numVersions()
+  {
+    return m_versions.size();
+  }
+
+  // Index of the current version; 0 is the original.
+  public int currentVersion()
+  {
+    return m_current;
+  }
+
+  public String getDescription(int version)
+  {
+    return m_versions.get(version).m_description;
+  }
+
+  // Number of blocks changed by the edit that made `version`.
+  public int numChangedBlocks(int version)
+  {
+    return m_versions.get(version).m_numChanged;
+  }
+
+  public int numBlocks()
+  {
+    return (int)((m_numFrames + BLOCK_FRAMES - 1) / BLOCK_FRAMES);
+  }
+
+  // Bytes of edited blocks in memory, including those of the current
+  // version.
+  public long heapBytes()
+  {
+    return m_heapBytes;
+  }
+
+  // Bytes of blocks in the spill file.
+  public long spilledBytes()
+  {
+    return m_spilledBytes;
+  }
+
+  public void setMaxBytes(long maxBytes)
+    throws IOException
+  {
+    m_maxBytes = maxBytes;
+    enforceBudget();
+  }
+
+  // Make a new current version by running `editor` over the current
+  // one.  Any undone versions are discarded.
+  public void apply(String description, BlockEditor editor)
+    throws IOException
+  {
+    while (m_versions.size() > m_current + 1) {
+      removeLastVersion();
+    }
+
+    Block[] blocks = m_versions.get(m_current).m_blocks.clone();
+    int numChannels = m_format.getChannels();
+    float[] scratch = new float[BLOCK_FRAMES * numChannels];
+    int numChanged = 0;
+
+    for (int b=0; b < blocks.length; ++b) {
+      int n = blockFrames(b);
+      readBlock(blocks[b], scratch);
+      if (editor.edit((long)b * BLOCK_FRAMES, n, scratch)) {
+        Block changed = new Block();
+        changed.m_numSamples = n * numChannels;
+        changed.m_samples = Arrays.copyOf(scratch, changed.m_numSamples);
+        m_heapBytes += (long)changed.m_numSamples * Float.BYTES;
+        blocks[b] = changed;
+        ++numChanged;
+      }
+    }
+
+    addVersion(description, blocks, numChanged);
+    m_current = m_versions.size() - 1;
+    enforceBudget();
+  }
+
+  // Make the previous version current.  Return false if the current
+  // one is the original.
+  public boolean undo()
+    throws IOException
+  {
+    if (m_current == 0) {
+      return false;
+    }
+    setCurrent(m_current - 1);
+    return true;
+  }
+
+  // Make the next version current again after an `undo`.  Return false
+  // if there is none.
+  public boolean redo()
+    throws IOException
+  {
+    if (m_current == m_versions.size() - 1) {
+      return false;
+    }
+    setCurrent(m_current + 1);
+    return true;
+  }
+
+  // Return a table of the frames of the current version, referring to
+  // its blocks.  It stays valid after later edits, undo and redo.
+  public PieceTable toPieceTable()
+  {
+    Block[] blocks = m_versions.get(m_current).m_blocks;
+    List<AudioClip> pieces = new ArrayList<AudioClip>(blocks.length);
+    for (Block block : blocks) {
+      pieces.add(block.m_original != null?
+        block.m_original : new AudioClip(m_format, block.m_samples));
+    }
+    return new PieceTable(m_format, pieces);
+  }
+
+  // Delete the spill file.
+  @Override
+  public void close()
+    throws IOException
+  {
+    if (m_spill != null) {
+      m_spill.close();
+      m_spill = null;
+      m_spillFile.delete();
+    }
+  }
+
+  // ------------------------- Private methods -------------------------
+  private int blockFrames(int block)
+  {
+    return (int)Math.min(BLOCK_FRAMES, m_numFrames - (long)block * BLOCK_FRAMES);
+  }
+
+  private void addVersion(String description, Block[] blocks, int numChanged)
+  {
+    Version v = new Version();
+    v.m_description = description;
+    v.m_blocks = blocks;
+    v.m_numChanged = numChanged;
+    for (Block block : blocks) {
+      block.m_refs++;
+    }
+    m_versions.add(v);
+  }
+
+  private void removeLastVersion()
+  {
+    Version v = m_versions.remove(m_versions.size() - 1);
+    for (Block block : v.m_blocks) {
+      if (--block.m_refs == 0) {
+        freeBlock(block);
+      }
+    }
+  }
+
+  // Release the memory and spill slot of `block`, which no version
+  // contains any longer.
+  private void freeBlock(Block block)
+  {
+    if (block.m_samples != null) {
+      m_heapBytes -= (long)block.m_numSamples * Float.BYTES;
+      block.m_samples = null;
+    }
+    if (block.m_spillOffset >= 0) {
+      m_freeSlots.computeIfAbsent(block.m_numSamples,
+        k -> new ArrayDeque<Long>()).push(block.m_spillOffset);
+      m_spilledBytes -= (long)block.m_numSamples * Float.BYTES;
+      block.m_spillOffset = -1;
+    }
+  }
+
+  private void setCurrent(int version)
+    throws IOException
+  {
+    m_current = version;
+    for (Block block : m_versions.get(version).m_blocks) {
+      loadBlock(block);
+    }
+    enforceBudget();
+  }
+
+  // Copy the samples of `block` into `dst`.  The block must be in
+  // memory.
+  private void readBlock(Block block, float[] dst)
+  {
+    if (block.m_original != null) {
+      block.m_original.readFrames(0, (int)block.m_original.numFrames(),
+        dst, 0);
+    }
+    else {
+      System.arraycopy(block.m_samples, 0, dst, 0, block.m_numSamples);
+    }
+  }
+
+  // Spill edited blocks not in the current version until the heap
+  // bytes are within the budget, starting with the versions farthest
+  // from the current one, since they are the least likely to be
+  // needed by the next undo or redo.
+  private void enforceBudget()
+    throws IOException
+  {
+    if (m_heapBytes <= m_maxBytes) {
+      return;
+    }
+
+    Set<Block> current =
+      Collections.newSetFromMap(new IdentityHashMap<Block, Boolean>());
+    Collections.addAll(current, m_versions.get(m_current).m_blocks);
+
+    int farthest = Math.max(m_current, m_versions.size() - 1 - m_current);
+    for (int d = farthest; d > 0; --d) {
+      for (int v : new int[] { m_current - d, m_current + d }) {
+        if (v < 0 || v >= m_versions.size()) {
+          continue;
+        }
+        for (Block block : m_versions.get(v).m_blocks) {
+          if (block.m_samples != null && !current.contains(block)) {
+            spillBlock(block);
+            if (m_heapBytes <= m_maxBytes) {
+              return;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void spillBlock(Block block)
+    throws IOException
+  {
+    if (block.m_spillOffset < 0) {
+      block.m_spillOffset = allocateSlot(block.m_numSamples);
+      m_spilledBytes += (long)block.m_numSamples * Float.BYTES;
+
+      ByteBuffer buf = ByteBuffer.allocate(block.m_numSamples * Float.BYTES)
+        .order(ByteOrder.nativeOrder());
+      buf.asFloatBuffer().put(block.m_samples, 0, block.m_numSamples);
+      while (buf.hasRemaining()) {
+        m_spill.write(buf, block.m_spillOffset + buf.position());
+      }
+    }
+
+    block.m_samples = null;
+    m_heapBytes -= (long)block.m_numSamples * Float.BYTES;
+  }
+
+  // Bring `block` back into memory if it was spilled.
+  private void loadBlock(Block block)
+    throws IOException
+  {
+    if (block.m_original != null || block.m_samples != null) {
+      return;
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate(block.m_numSamples * Float.BYTES)
+      .order(ByteOrder.nativeOrder());
+    while (buf.hasRemaining()) {
+      if (m_spill.read(buf, block.m_spillOffset + buf.position()) < 0) {
+        throw new IOException("Unexpected end of " + m_spillFile);
+      }
+    }
+    buf.flip();
+
+    block.m_samples = new float[block.m_numSamples];
+    buf.asFloatBuffer().get(block.m_samples);
+    m_heapBytes += (long)block.m_numSamples * Float.BYTES;
+  }
+
+  // Return the offset of a slot for `numSamples` in the spill file,
+  // creating the file if necessary.
+  private long allocateSlot(int numSamples)
+    throws IOException
+  {
+    if (m_spill == null) {
+      m_spillFile = File.createTempFile("snded-history-", ".tmp");
+      m_spillFile.deleteOnExit();
+      m_spill = FileChannel.open(m_spillFile.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    ArrayDeque<Long> free = m_freeSlots.get(numSamples);
+    if (free != null && !free.isEmpty()) {
+      return free.pop();
+    }
+
+    long offset = m_spillEnd;
+    m_spillEnd += (long)numSamples * Float.BYTES;
+    return offset;
+  }
+}
+
+
+// EOF
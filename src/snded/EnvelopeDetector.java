@@ -0,0 +1,167 @@
+// EnvelopeDetector.java
+
+package snded;
+
+
+// Sound detector that works from a decimated peak envelope.
+//
+// The default detection in `SoundEdit.findSounds` computes the loudness
+// of every sample in any region that might be loud, which involves a
+// logarithm per sample.  This detector instead first reduces the clip
+// to an envelope of peak absolute values at a low rate (nominally
+// 1 kHz), which only requires comparisons.  Each envelope block that
+// contains a loud frame is then examined at full resolution only at
+// its edges: scanning forward from its start to the first loud frame,
+// and backward from its end to the last.
+//
+// The result is exactly what `findSounds` computes.  That works
+// because, when a block spans no more frames than the closeness
+// threshold, all of its loud frames necessarily belong to the same
+// sound, so only the first and last of them can affect the sound
+// boundaries; and the maximum loudness of those frames is the loudness
+// of the block's peak sample.  When the block is too large for that to
+// hold (a very small closeness threshold), or the threshold is so low
+// that silent samples count as loud, blocks are examined frame by
+// frame instead.
+//
+// The savings are greatest on high sample rate material, where each
+// envelope block covers many frames.
+//
+public class EnvelopeDetector {
+  // -------------------------- Private data ---------------------------
+  // Approximate number of frames per `FindSoundsChunk` event.
+  private static final int CHUNK_FRAMES = 65536;
+
+  // Single-level pyramid holding the envelope.
+  private PeakPyramid m_envelope;
+
+  // ------------------------- Public methods --------------------------
+  // Build the envelope of `audio` at approximately `envelopeRate_Hz`
+  // blocks per second.
+  public EnvelopeDetector(AudioClip audio, float envelopeRate_Hz)
+  {
+    int blockSize =
+      Math.max(1, (int)(audio.getFrameRate() / envelopeRate_Hz));
+
+    m_envelope = new PeakPyramid(audio, new int[] { blockSize });
+  }
+
+  // Number of frames per envelope block.
+  public int getBlockSize()
+  {
+    return m_envelope.getBlockSize(0);
+  }
+
+  // Supply the frames in `audio` that are louder than
+  // `loudnessThreshold_dB` to `partitioner`, or at least enough of them
+  // to yield the same sounds.
+  public void partition(
+    AudioClip audio,
+    double loudnessThreshold_dB,
+    SoundPartitioner partitioner)
+  {
+    assert(audio.numFrames() == m_envelope.numFrames());
+
+    int blockSize = getBlockSize();
+    long numFrames = audio.numFrames();
+
+    // True if we can rely only on the block edges.  See the class
+    // comment.
+    boolean edgesSuffice =
+      blockSize - 1 <= partitioner.getClosenessThresholdFrames() &&
+      loudnessThreshold_dB >= -100.0;
+
+    // Report progress roughly every minute of audio.
+    long progressPeriod_blocks = Math.max(1,
+      (long)(60.0 * audio.getFrameRate()) / blockSize);
+
+    // Blocks per `FindSoundsChunk` event, covering about as many frames
+    // as the top level of the default `PeakPyramid`.
+    int chunk_blocks = Math.max(1, CHUNK_FRAMES / blockSize);
+    AnalysisEvents.FindSoundsChunk event = null;
+
+    int numBlocks = m_envelope.numBlocks(0);
+    for (int b=0; b < numBlocks; ++b) {
+      if (b % progressPeriod_blocks == 0) {
+        SoundEdit.progressReport("findSounds: processing frame " +
+          ((long)b * blockSize) + " of " + numFrames);
+      }
+
+      if (b % chunk_blocks == 0) {
+        if (event != null) {
+          event.endFrame = (long)b * blockSize;
+          event.commit();
+        }
+        event = new AnalysisEvents.FindSoundsChunk();
+        event.begin();
+        event.startFrame = (long)b * blockSize;
+      }
+
+      float peak = m_envelope.getBlockPeak(0, b);
+      if (PeakPyramid.loudnessUpperBound(peak) <= loudnessThreshold_dB) {
+        continue;
+      }
+
+      long start = (long)b * blockSize;
+      long end = Math.min(start + blockSize, numFrames);
+
+      if (!edgesSuffice) {
+        int numChannels = audio.numChannels();
+        AnalysisEvents.FindSoundsChunk blockEvent = event;
+        audio.forEachBlock(start, end, blockSize,
+          (startFrame, count, samples, offset) -> {
+            for (int i=0; i < count; ++i) {
+              double dB = AudioClip.frameDecibels(
+                samples, offset + i*numChannels, numChannels);
+              if (dB > loudnessThreshold_dB) {
+                partitioner.addLoudFrame(startFrame + i, dB);
+                blockEvent.loudFrames++;
+              }
+            }
+          });
+        event.framesExamined += end - start;
+        continue;
+      }
+
+      // Find the first loud frame.
+      long first = start;
+      while (first < end &&
+             !(audio.getFrameDecibels(first) > loudnessThreshold_dB)) {
+        ++first;
+      }
+      if (first == end) {
+        // The bound was not tight; nothing here is loud after all.
+        event.framesExamined += end - start;
+        continue;
+      }
+
+      // Find the last loud frame.
+      long last = end - 1;
+      double lastDB;
+      while (!((lastDB = audio.getFrameDecibels(last)) > loudnessThreshold_dB)) {
+        --last;
+      }
+
+      // The loudest frame in the block is the one containing the peak
+      // sample, and it is loud, so that is the maximum loudness this
+      // block contributes.  Attribute it to the first loud frame, which
+      // belongs to the same sound.
+      partitioner.addLoudFrame(first,
+        AudioClip.linearAmplitudeToDecibels(peak));
+      if (last > first) {
+        partitioner.addLoudFrame(last, lastDB);
+      }
+
+      event.loudFrames += (last > first? 2 : 1);
+      event.framesExamined += (first - start + 1) + (end - last);
+    }
+
+    if (event != null) {
+      event.endFrame = numFrames;
+      event.commit();
+    }
+  }
+}
+
+
+// EOF
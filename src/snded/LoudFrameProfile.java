@@ -0,0 +1,153 @@
+// LoudFrameProfile.java
+
+package snded;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+// The frames of a clip that are louder than some floor, along with
+// their loudness.
+//
+// Scanning a clip for loud frames requires computing the loudness of
+// every sample, which dominates the cost of detection.  When the same
+// clip is to be partitioned using several loudness thresholds, this
+// class lets that scan happen once, using the lowest threshold as the
+// floor.  Partitioning at any threshold at or above the floor then
+// only needs to visit the (usually far fewer) frames recorded here.
+//
+// At a low floor, most frames can qualify, so the storage is compact:
+// the loud frames are recorded as runs of consecutive frames, and the
+// loudness of each as a `float`, which is about 4 bytes per frame when
+// the runs are long.  Everything is stored in fixed-size chunks
+// counted with `long`s, so there is no limit on the number of frames
+// short of the heap.
+//
+public class LoudFrameProfile {
+  // -------------------------- Private data ---------------------------
+  // Elements per chunk of the arrays below.
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  // Frames are louder than this, in decibels.
+  private double m_floor_dB;
+
+  // Number of loud frames.
+  private long m_numFrames = 0;
+
+  // Loudness of each loud frame, in order, as the maximum over all
+  // channels, in decibels.
+  private List<float[]> m_frameDecibels = new ArrayList<float[]>();
+
+  // Number of runs of consecutive loud frames.
+  private long m_numRuns = 0;
+
+  // First frame and number of frames of each run, in order.
+  private List<long[]> m_runStarts = new ArrayList<long[]>();
+  private List<int[]> m_runLengths = new ArrayList<int[]>();
+
+  // ------------------------- Public methods --------------------------
+  // Record all of the frames in `audio` that are louder than
+  // `floor_dB`, using `pyramid` (which summarizes `audio`) to skip
+  // quiet regions.
+  public LoudFrameProfile(
+    AudioClip audio,
+    double floor_dB,
+    PeakPyramid pyramid)
+  {
+    m_floor_dB = floor_dB;
+
+    pyramid.forEachLoudFrame(audio, floor_dB, this::add);
+  }
+
+  // Return the most heap a profile of a clip of `numFrames` frames can
+  // use: every frame loud, but in runs of one frame each.
+  public static long worstCaseBytes(long numFrames)
+  {
+    long numRuns = (numFrames + 1) / 2;
+    return numFrames * Float.BYTES +
+      numRuns * (Long.BYTES + Integer.BYTES);
+  }
+
+  // Number of frames louder than the floor.
+  public long numLoudFrames()
+  {
+    return m_numFrames;
+  }
+
+  // Partition the frames louder than `loudnessThreshold_dB`, which must
+  // not be less than the floor, using `closenessThreshold_frames`.
+  // The result is the same as what `SoundEdit.findSounds` would find
+  // with the same thresholds, except without spectra, and with the
+  // loudness rounded to `float`.
+  public SoundTable partition(
+    double loudnessThreshold_dB,
+    int closenessThreshold_frames)
+  {
+    assert(loudnessThreshold_dB >= m_floor_dB);
+
+    SoundPartitioner partitioner =
+      new SoundPartitioner(closenessThreshold_frames);
+
+    long index = 0;
+    for (long r=0; r < m_numRuns; ++r) {
+      long start = m_runStarts.get(chunk(r))[offset(r)];
+      int length = m_runLengths.get(chunk(r))[offset(r)];
+      for (int f=0; f < length; ++f, ++index) {
+        float dB = m_frameDecibels.get(chunk(index))[offset(index)];
+        if (dB > loudnessThreshold_dB) {
+          partitioner.addLoudFrame(start + f, dB);
+        }
+      }
+    }
+
+    return partitioner.finish();
+  }
+
+  // ------------------------- Private methods -------------------------
+  private void add(long frameNum, double dB)
+  {
+    // Extend the last run, or start a new one?
+    boolean extend = false;
+    if (m_numRuns > 0) {
+      long last = m_numRuns - 1;
+      int length = m_runLengths.get(chunk(last))[offset(last)];
+      extend = (m_runStarts.get(chunk(last))[offset(last)] + length == frameNum &&
+                length < Integer.MAX_VALUE);
+      if (extend) {
+        m_runLengths.get(chunk(last))[offset(last)] = length + 1;
+      }
+    }
+    if (!extend) {
+      if (offset(m_numRuns) == 0) {
+        m_runStarts.add(new long[CHUNK_SIZE]);
+        m_runLengths.add(new int[CHUNK_SIZE]);
+      }
+      m_runStarts.get(chunk(m_numRuns))[offset(m_numRuns)] = frameNum;
+      m_runLengths.get(chunk(m_numRuns))[offset(m_numRuns)] = 1;
+      ++m_numRuns;
+    }
+
+    if (offset(m_numFrames) == 0) {
+      m_frameDecibels.add(new float[CHUNK_SIZE]);
+    }
+    m_frameDecibels.get(chunk(m_numFrames))[offset(m_numFrames)] = (float)dB;
+    ++m_numFrames;
+  }
+
+  // Return the chunk holding element `index`.
+  private static int chunk(long index)
+  {
+    return Math.toIntExact(index >>> CHUNK_BITS);
+  }
+
+  // Return the offset of element `index` within its chunk.
+  private static int offset(long index)
+  {
+    return (int)(index & CHUNK_MASK);
+  }
+}
+
+
+// EOF
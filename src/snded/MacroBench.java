@@ -0,0 +1,312 @@
+// MacroBench.java
+
+package snded;
+
+import util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+// End-to-end benchmark of the `snded` commands on a long synthetic
+// recording, with comparison against a stored baseline.
+//
+// Each command runs in its own JVM, just as it would from the command
+// line, so the measurements include JVM startup and reading the input.
+// For each, we record:
+//
+//   wall_ms: Elapsed time, as seen by this process.
+//   cpu_ms:  CPU time used by the child process.
+//   rss_kB:  Peak resident set size of the child (Linux only).
+//   gc_ms:   Total time the child spent in garbage collection.
+//
+// If a baseline file exists, any metric that exceeds its baseline
+// value by more than the tolerance is reported as a regression, and
+// the process exits with status 1.  The tolerance is relative, plus a
+// small absolute slack per metric so that noise in tiny values (like
+// a few milliseconds of GC) does not cause failures.
+//
+public class MacroBench {
+  // -------------------------- Private data ---------------------------
+  // Commands to run, each as a name and its arguments.  "$DIR" is
+  // replaced with the output directory.
+  private static final String[][] COMMANDS = {
+    { "info" },
+    { "copy", "out:$DIR/copy.wav" },
+    { "sounds" },
+    { "declick", "out:$DIR/declick.wav" },
+    { "freqBins" },
+  };
+
+  // Names of the metrics, in reporting order.
+  private static final String[] METRICS = {
+    "wall_ms", "cpu_ms", "rss_kB", "gc_ms"
+  };
+
+  // Absolute slack allowed for each metric, in its units, beyond the
+  // relative tolerance.
+  private static final long[] METRIC_SLACK = {
+    250, 250, 32 * 1024, 50
+  };
+
+  // Frame rate of the synthetic recording.
+  private static final float FRAME_RATE = 48000.0f;
+
+  // ------------------------- Public methods --------------------------
+  public static void main(String args[])
+  {
+    try {
+      ArgMap argMap = new ArgMap(args);
+      File dir = new File(argMap.getRequiredString("dir"));
+      File baselineFile = new File(argMap.getRequiredString("baseline"));
+      float hours = argMap.getFloat("hours", 2.0f);
+      float tolerance = argMap.getFloat("tolerance", 0.25f);
+      String heap = argMap.getRequiredString("heap");
+      boolean update = argMap.getBoolean("update", false);
+
+      dir.mkdirs();
+      File input = new File(dir, String.format("speech-%1$.2fh.wav", hours));
+      if (!input.exists()) {
+        generateRecording(input, hours);
+      }
+
+      // Run each command.
+      Map<String, long[]> results = new LinkedHashMap<String, long[]>();
+      for (String[] cmd : COMMANDS) {
+        results.put(cmd[0], runCommand(dir, input, heap, cmd));
+      }
+
+      Map<String, long[]> baseline = readBaseline(baselineFile);
+      boolean regressed = printComparison(results, baseline, tolerance);
+
+      if (update || baseline == null) {
+        writeBaseline(baselineFile, results);
+        System.out.println("wrote baseline " + baselineFile);
+      }
+      else if (regressed) {
+        System.out.println("FAILED: performance regression");
+        System.exit(1);
+      }
+    }
+    catch (Exception e) {
+      System.err.println(Util.getExceptionMessage(e));
+      System.exit(2);
+    }
+  }
+
+  // Entry point of the child process.  Usage:
+  //
+  //   MacroBench$Child <stats-file> <snded args...>
+  //
+  // Runs the command, then writes the resource usage to <stats-file>.
+  public static class Child {
+    public static void main(String args[])
+      throws IOException
+    {
+      SoundEdit.main(Arrays.copyOfRange(args, 1, args.length));
+
+      long gc_ms = 0;
+      for (GarbageCollectorMXBean gc :
+             ManagementFactory.getGarbageCollectorMXBeans()) {
+        gc_ms += Math.max(0, gc.getCollectionTime());
+      }
+
+      long cpu_ns = ((com.sun.management.OperatingSystemMXBean)
+        ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+
+      try (PrintWriter pw = new PrintWriter(args[0], StandardCharsets.UTF_8)) {
+        pw.println("cpu_ms " + (cpu_ns / 1000000));
+        pw.println("rss_kB " + readPeakRSS_kB());
+        pw.println("gc_ms " + gc_ms);
+      }
+    }
+  }
+
+  // ------------------------- Private methods -------------------------
+  // Run `cmd` on `input` in a child JVM, returning its metrics in the
+  // order of `METRICS`.
+  private static long[] runCommand(
+    File dir,
+    File input,
+    String heap,
+    String[] cmd)
+      throws IOException, InterruptedException
+  {
+    File statsFile = new File(dir, cmd[0] + ".stats");
+    File outFile = new File(dir, cmd[0] + ".out");
+    statsFile.delete();
+
+    List<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-Xmx" + heap);
+    command.add("-ea");
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(Child.class.getName());
+    command.add(statsFile.getPath());
+    command.add(input.getPath());
+    for (String arg : cmd) {
+      command.add(arg.replace("$DIR", dir.getPath()));
+    }
+
+    System.out.println("running: " + cmd[0]);
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.redirectOutput(outFile);
+    pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+    long start = System.nanoTime();
+    int status = pb.start().waitFor();
+    long wall_ms = (System.nanoTime() - start) / 1000000;
+
+    if (status != 0 || !statsFile.exists()) {
+      throw new RuntimeException(
+        "Benchmark command " + cmd[0] + " failed with status " + status);
+    }
+
+    Map<String, Long> stats = new LinkedHashMap<String, Long>();
+    for (String line : Files.readAllLines(statsFile.toPath())) {
+      String[] fields = line.split(" ");
+      stats.put(fields[0], Long.valueOf(fields[1]));
+    }
+
+    return new long[] {
+      wall_ms,
+      stats.get("cpu_ms"),
+      stats.get("rss_kB"),
+      stats.get("gc_ms"),
+    };
+  }
+
+  // Return the peak resident set size of this process in kB, or -1 if
+  // that cannot be determined.
+  private static long readPeakRSS_kB()
+  {
+    try {
+      for (String line : Files.readAllLines(new File("/proc/self/status").toPath())) {
+        if (line.startsWith("VmHWM:")) {
+          return Long.valueOf(line.replaceAll("[^0-9]", ""));
+        }
+      }
+    }
+    catch (IOException e) {
+      // Not Linux, presumably.
+    }
+    return -1;
+  }
+
+  // Print the results alongside the baseline, if any.  Return true if
+  // any metric regressed.
+  private static boolean printComparison(
+    Map<String, long[]> results,
+    Map<String, long[]> baseline,
+    float tolerance)
+  {
+    boolean regressed = false;
+
+    System.out.println();
+    System.out.println("command   metric      baseline     current   change");
+    System.out.println("--------  -------  -----------  ----------  -------");
+
+    for (Map.Entry<String, long[]> entry : results.entrySet()) {
+      String command = entry.getKey();
+      long[] cur = entry.getValue();
+      long[] base = (baseline == null? null : baseline.get(command));
+
+      for (int m=0; m < METRICS.length; ++m) {
+        if (cur[m] < 0) {
+          // Not measurable on this platform.
+          continue;
+        }
+
+        String baseString = "-";
+        String change = "";
+        if (base != null && base[m] > 0) {
+          baseString = Long.toString(base[m]);
+          change = String.format("%1$+6.1f%%",
+            (cur[m] - base[m]) * 100.0 / base[m]);
+
+          if (cur[m] > base[m] * (1 + tolerance) + METRIC_SLACK[m]) {
+            change += "  REGRESSION";
+            regressed = true;
+          }
+        }
+
+        System.out.printf("%1$-8s  %2$-7s  %3$11s  %4$10d  %5$s\n",
+          command, METRICS[m], baseString, cur[m], change);
+      }
+    }
+
+    return regressed;
+  }
+
+  // Read the baseline, or return null if there is none.  Each line has
+  // the form "<command> <metric> <value>".
+  private static Map<String, long[]> readBaseline(File file)
+    throws IOException
+  {
+    if (!file.exists()) {
+      return null;
+    }
+
+    Map<String, long[]> ret = new LinkedHashMap<String, long[]>();
+    for (String line : Files.readAllLines(file.toPath())) {
+      String[] fields = line.trim().split("\\s+");
+      if (fields.length != 3 || fields[0].startsWith("#")) {
+        continue;
+      }
+
+      long[] values = ret.computeIfAbsent(fields[0], k -> {
+        long[] v = new long[METRICS.length];
+        Arrays.fill(v, -1);
+        return v;
+      });
+
+      int m = Arrays.asList(METRICS).indexOf(fields[1]);
+      if (m >= 0) {
+        values[m] = Long.valueOf(fields[2]);
+      }
+    }
+    return ret;
+  }
+
+  private static void writeBaseline(File file, Map<String, long[]> results)
+    throws IOException
+  {
+    File parent = file.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+
+    try (PrintWriter pw = new PrintWriter(file, StandardCharsets.UTF_8)) {
+      pw.println("# snded macro benchmark baseline: <command> <metric> <value>");
+      for (Map.Entry<String, long[]> entry : results.entrySet()) {
+        for (int m=0; m < METRICS.length; ++m) {
+          pw.println(entry.getKey() + " " + METRICS[m] + " " + entry.getValue()[m]);
+        }
+      }
+    }
+  }
+
+  // Write a mono 16-bit recording of `hours` length to `file`,
+  // consisting of speech-like bursts and occasional clicks over a low
+  // noise floor.  The content is deterministic.
+  private static void generateRecording(File file, float hours)
+    throws IOException
+  {
+    SignalGenerator gen = new SignalGenerator();
+    gen.m_duration_s = hours * 3600.0;
+    gen.m_frameRate = (int)FRAME_RATE;
+    gen.generate(file.getPath(), null /*clicksFname*/);
+  }
+}
+
+
+// EOF
@@ -0,0 +1,241 @@
+// MappedWavFile.java
+
+package snded;
+
+import util.Util;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+
+// Read-only memory mapping of the sample data of a WAV file.
+//
+// Any range of frames can be written to another WAV file with the
+// same format by copying the encoded bytes, without decoding or
+// re-encoding them, and without reading the rest of the input.  Any
+// number of threads can do that at once, since each works on its own
+// view of the mapping.
+//
+// A single mapping is limited to 2 GB, so the data is mapped in
+// segments.  A range that straddles two segments is mapped on its own.
+//
+public class MappedWavFile implements AutoCloseable {
+  // -------------------------- Private data ---------------------------
+  // Largest number of bytes in one segment, before rounding down to a
+  // whole number of frames.
+  private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+  private AudioFormat m_format;
+
+  private FileChannel m_channel;
+
+  // File offset of the first frame.
+  private long m_dataOffset;
+
+  private long m_numFrames;
+
+  // Bytes per frame.
+  private int m_frameSize;
+
+  // Bytes per segment, a multiple of `m_frameSize`.
+  private long m_segmentBytes;
+
+  // Mapping of each segment of the data.
+  private MappedByteBuffer[] m_segments;
+
+  // ------------------------- Public methods --------------------------
+  public MappedWavFile(File file)
+    throws IOException
+  {
+    AudioFileFormat fileFormat;
+    try {
+      fileFormat = AudioSystem.getAudioFileFormat(file);
+    }
+    catch (UnsupportedAudioFileException e) {
+      throw new IOException(Util.getExceptionMessage(e), e);
+    }
+    if (fileFormat.getType() != AudioFileFormat.Type.WAVE) {
+      throw new IOException("Not a WAV file: " + file);
+    }
+    m_format = fileFormat.getFormat();
+    m_frameSize = m_format.getFrameSize();
+
+    m_channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      long dataBytes = findDataChunk();
+      m_numFrames = dataBytes / m_frameSize;
+
+      m_segmentBytes = MAX_SEGMENT_BYTES / m_frameSize * m_frameSize;
+      long numBytes = m_numFrames * m_frameSize;
+      int numSegments = (int)((numBytes + m_segmentBytes - 1) / m_segmentBytes);
+      m_segments = new MappedByteBuffer[numSegments];
+      for (int s=0; s < numSegments; ++s) {
+        long start = s * m_segmentBytes;
+        m_segments[s] = m_channel.map(FileChannel.MapMode.READ_ONLY,
+          m_dataOffset + start, Math.min(m_segmentBytes, numBytes - start));
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      m_channel.close();
+      throw e;
+    }
+  }
+
+  public AudioFormat getFormat()
+  {
+    return m_format;
+  }
+
+  public long numFrames()
+  {
+    return m_numFrames;
+  }
+
+  // Return the encoded bytes of `numFrames` frames starting at
+  // `startFrame`, as a buffer of its own.
+  public ByteBuffer getFrames(long startFrame, long numFrames)
+    throws IOException
+  {
+    assert(0 <= startFrame && 0 <= numFrames &&
+           startFrame + numFrames <= m_numFrames);
+
+    long start = startFrame * m_frameSize;
+    int length = Math.toIntExact(numFrames * m_frameSize);
+
+    if (length == 0) {
+      return ByteBuffer.allocate(0);
+    }
+
+    int s = (int)(start / m_segmentBytes);
+    long offset = start - s * m_segmentBytes;
+    if (offset + length <= m_segmentBytes) {
+      return m_segments[s].slice((int)offset, length);
+    }
+    else {
+      return m_channel.map(FileChannel.MapMode.READ_ONLY,
+        m_dataOffset + start, length);
+    }
+  }
+
+  // Write `numFrames` frames starting at `startFrame` to a new WAV
+  // file, `outFile`, in the same format.
+  public void writeFrames(long startFrame, long numFrames, File outFile)
+    throws IOException
+  {
+    ByteBuffer bytes = getFrames(startFrame, numFrames);
+    try (AudioInputStream ais = new AudioInputStream(
+           new ByteBufferInputStream(bytes), m_format, numFrames)) {
+      AudioSystem.write(ais, AudioFileFormat.Type.WAVE, outFile);
+    }
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    m_channel.close();
+  }
+
+  // ------------------------- Private methods -------------------------
+  // Find the "data" chunk, setting `m_dataOffset`.  Return its length.
+  private long findDataChunk()
+    throws IOException
+  {
+    long fileSize = m_channel.size();
+
+    ByteBuffer header = readAt(0, 12);
+    if (!fourCC(header, 0).equals("RIFF") ||
+        !fourCC(header, 8).equals("WAVE")) {
+      throw new IOException("Not a RIFF WAVE file.");
+    }
+
+    long pos = 12;
+    while (pos + 8 <= fileSize) {
+      ByteBuffer chunk = readAt(pos, 8);
+      String id = fourCC(chunk, 0);
+      long size = chunk.getInt(4) & 0xFFFFFFFFL;
+
+      if (id.equals("data")) {
+        m_dataOffset = pos + 8;
+
+        // Writers that do not know the length in advance may leave
+        // the size too large.
+        return Math.min(size, fileSize - m_dataOffset);
+      }
+
+      // Chunks are padded to an even length.
+      pos += 8 + size + (size & 1);
+    }
+
+    throw new IOException("WAV file has no data chunk.");
+  }
+
+  private ByteBuffer readAt(long pos, int length)
+    throws IOException
+  {
+    ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buf.hasRemaining()) {
+      if (m_channel.read(buf, pos + buf.position()) < 0) {
+        throw new IOException("Unexpected end of WAV file.");
+      }
+    }
+    return buf;
+  }
+
+  private static String fourCC(ByteBuffer buf, int index)
+  {
+    byte[] b = new byte[4];
+    buf.get(index, b);
+    return new String(b, StandardCharsets.US_ASCII);
+  }
+
+  // ------------------------- Private classes -------------------------
+  // Stream of the remaining bytes of a buffer.
+  private static class ByteBufferInputStream extends InputStream {
+    private ByteBuffer m_buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer)
+    {
+      m_buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+      return m_buffer.hasRemaining()? (m_buffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] dest, int off, int len)
+    {
+      if (!m_buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, m_buffer.remaining());
+      m_buffer.get(dest, off, n);
+      return n;
+    }
+
+    @Override
+    public int available()
+    {
+      return m_buffer.remaining();
+    }
+  }
+}
+
+
+// EOF
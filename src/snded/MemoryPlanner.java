@@ -0,0 +1,378 @@
+// MemoryPlanner.java
+
+package snded;
+
+import mcve.audio.SimpleAudioConversion;
+import util.Util;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Chooses how to run a command so that it fits in a memory budget.
+//
+// Whether decoding the whole input fits in the heap depends on its
+// length, its number of channels and the command, and finding out by
+// running out of memory partway through wastes the time spent until
+// then.  This reads the header of the input, estimates the heap needed
+// by each way the command can run, and picks the first in order of
+// preference that fits:
+//
+//   in-heap:        Decode the whole input into an `AudioClip`.  Every
+//                   command can run this way, and it is the fastest
+//                   for all but "trim" and "split".
+//
+//   memory-mapped:  Copy encoded frames straight from a mapping of the
+//                   input with `MappedWavFile`, which needs almost no
+//                   heap.  Only "trim" and "split" of WAV files.
+//
+//   streaming:      Process the input a block at a time with
+//                   `DeclickPipeline`.  Only "declick".  The pipeline
+//                   holds the blocks spanning the sound in progress,
+//                   so an input that is one long sound needs as much
+//                   memory as decoding it, which the header does not
+//                   reveal.
+//
+// If none fits, the command fails before it starts.
+//
+// The estimates cover the large arrays: the samples, the encoded bytes
+// alongside them while decoding or encoding, and the like.  They do
+// not include the JVM's own overhead or small per-sound data, so the
+// budget should leave some room for those.
+//
+// Arrays spanning the whole input are too big for the young
+// generation, so the collector allocates them directly in the largest
+// heap pool.  With the serial and parallel collectors, that pool is
+// only about two thirds of the heap, so in-heap execution must fit in
+// it, not just in the budget.
+//
+public class MemoryPlanner {
+  // --------------------------- Public types --------------------------
+  public enum Mode {
+    IN_HEAP("in-heap"),
+    MAPPED("memory-mapped"),
+    STREAMING("streaming");
+
+    private final String m_name;
+
+    private Mode(String name)
+    {
+      m_name = name;
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_name;
+    }
+  }
+
+  // How to run a command, and the heap it is expected to need.
+  public static class Plan {
+    public Mode m_mode;
+    public long m_bytes;
+
+    public Plan(Mode mode, long bytes)
+    {
+      m_mode = mode;
+      m_bytes = bytes;
+    }
+  }
+
+  // -------------------------- Private data ---------------------------
+  // Heap needed by memory-mapped execution, which only has to hold the
+  // output stream's buffers.
+  private static final long MAPPED_BYTES = 1 << 20;
+
+  // Frames per block of the finest `PeakPyramid` level.
+  private static final int PYRAMID_BLOCK_FRAMES =
+    PeakPyramid.DEFAULT_BLOCK_SIZES[0];
+
+  // Budget, in bytes.
+  private long m_maxBytes;
+
+  // Part of the budget that can hold arrays spanning the whole input,
+  // in bytes, or -1 if not looked up yet.  Looking it up loads the
+  // management classes, whose heap a small budget cannot spare, so it
+  // is only done when the answer matters.
+  private long m_maxInHeapBytes = -1;
+
+  // ------------------------- Public methods --------------------------
+  public MemoryPlanner(long maxBytes)
+  {
+    m_maxBytes = maxBytes;
+  }
+
+  // Make a planner for a budget of `maxMemory`, a size as accepted by
+  // `parseSize`, or the maximum heap size if it is null.  The budget
+  // cannot exceed the maximum heap size, since it is the heap that
+  // would run out.  (The "snded" script sets the maximum heap size to
+  // `maxMemory`, but the JVM reserves a little of it.)
+  public static MemoryPlanner fromOption(String maxMemory)
+  {
+    long heap = Runtime.getRuntime().maxMemory();
+    if (maxMemory == null) {
+      return new MemoryPlanner(heap);
+    }
+    return new MemoryPlanner(Math.min(parseSize(maxMemory), heap));
+  }
+
+  // Parse a size in bytes, optionally followed by "k", "m", "g" or
+  // "t" (in either case) for the binary multiples, as for the JVM's
+  // "-Xmx".
+  public static long parseSize(String size)
+  {
+    int shift = 0;
+    String digits = size;
+    if (!size.isEmpty()) {
+      switch (Character.toLowerCase(size.charAt(size.length() - 1))) {
+        case 'k': shift = 10; break;
+        case 'm': shift = 20; break;
+        case 'g': shift = 30; break;
+        case 't': shift = 40; break;
+      }
+      if (shift != 0) {
+        digits = size.substring(0, size.length() - 1);
+      }
+    }
+
+    try {
+      long value = Long.parseLong(digits);
+      if (value <= 0 || value > (Long.MAX_VALUE >> shift)) {
+        throw new NumberFormatException();
+      }
+      return value << shift;
+    }
+    catch (NumberFormatException e) {
+      throw new RuntimeException(
+        "Invalid memory size: \"" + size + "\"; expected, e.g., 512m or 4g.");
+    }
+  }
+
+  public long getMaxBytes()
+  {
+    return m_maxBytes;
+  }
+
+  // Choose how to run `command`, with `argMap`, on `inputFile`, and
+  // report the choice.  Throw if it cannot fit in the budget.
+  // `resident` says the decoded input is kept for later commands (in a
+  // chain or the server), so commands that change the samples have to
+  // work on a copy of them.
+  public Plan plan(
+    String command,
+    ArgMap argMap,
+    File inputFile,
+    boolean resident)
+      throws IOException
+  {
+    AudioFileFormat fileFormat;
+    try {
+      fileFormat = AudioSystem.getAudioFileFormat(inputFile);
+    }
+    catch (UnsupportedAudioFileException e) {
+      throw new IOException(Util.getExceptionMessage(e), e);
+    }
+
+    long numFrames = fileFormat.getFrameLength();
+    if (numFrames == AudioSystem.NOT_SPECIFIED) {
+      // Without the length, there is nothing to estimate with, and
+      // only in-heap execution works anyway.
+      return new Plan(Mode.IN_HEAP, 0);
+    }
+
+    List<Mode> modes = candidateModes(command, argMap,
+      fileFormat.getType() == AudioFileFormat.Type.WAVE);
+
+    Plan inHeap = null;
+    for (Mode mode : modes) {
+      Plan plan = new Plan(mode,
+        estimateBytes(mode, command, argMap, fileFormat.getFormat(), numFrames,
+          resident));
+      if (mode == Mode.IN_HEAP) {
+        inHeap = plan;
+      }
+
+      if (plan.m_bytes <= m_maxBytes &&
+          (mode != Mode.IN_HEAP || plan.m_bytes <= maxInHeapBytes())) {
+        SoundEdit.progressReport("plan: " + command + " " + mode +
+          ", about " + megabytes(plan.m_bytes) + " MB" +
+          (inHeap != null && inHeap != plan?
+             " (in-heap would need " + megabytes(inHeap.m_bytes) + " MB)" :
+             "") +
+          " of a budget of " + describeBudget());
+        return plan;
+      }
+    }
+
+    StringBuilder needs = new StringBuilder();
+    for (Mode mode : modes) {
+      needs.append(needs.length() == 0? "" : ", ");
+      needs.append(mode + " needs about " + megabytes(
+        estimateBytes(mode, command, argMap, fileFormat.getFormat(), numFrames,
+          resident)) +
+        " MB");
+    }
+    throw new RuntimeException("Not enough memory for " + command + ": " +
+      needs + ", but the budget is " + describeBudget() +
+      ".  Raise it with --max-memory.");
+  }
+
+  // ------------------------- Private methods -------------------------
+  // Return the ways `command` can run, in order of preference.
+  private static List<Mode> candidateModes(
+    String command,
+    ArgMap argMap,
+    boolean isWav)
+  {
+    List<Mode> modes = new ArrayList<Mode>();
+    switch (command) {
+      case "declick": {
+        String streaming = argMap.getOptionalString("streaming");
+        boolean edit = "true".equals(argMap.getOptionalString("edit"));
+        boolean cache = argMap.getOptionalString("cache") != null;
+        boolean checkpoint = argMap.getOptionalString("checkpoint") != null;
+        if (checkpoint && (edit || cache || "false".equals(streaming))) {
+          throw new RuntimeException("Checkpoints need streaming declick, " +
+            "which does not use the cache or the edit history.");
+        }
+        if (edit || "false".equals(streaming)) {
+          modes.add(Mode.IN_HEAP);
+        }
+        else if ("true".equals(streaming) || checkpoint) {
+          if (cache) {
+            throw new RuntimeException(
+              "Streaming declick does not use the cache.");
+          }
+          modes.add(Mode.STREAMING);
+        }
+        else {
+          modes.add(Mode.IN_HEAP);
+          if (!cache) {
+            modes.add(Mode.STREAMING);
+          }
+        }
+        break;
+      }
+
+      case "trim":
+      case "split":
+        if (isWav) {
+          modes.add(Mode.MAPPED);
+        }
+        modes.add(Mode.IN_HEAP);
+        break;
+
+      default:
+        modes.add(Mode.IN_HEAP);
+        break;
+    }
+    return modes;
+  }
+
+  // Estimate the heap bytes needed to run `command` in `mode` on
+  // `numFrames` frames in `format`.  See `plan` for `resident`.
+  private static long estimateBytes(
+    Mode mode,
+    String command,
+    ArgMap argMap,
+    AudioFormat format,
+    long numFrames,
+    boolean resident)
+  {
+    switch (mode) {
+      case MAPPED:
+        return MAPPED_BYTES;
+
+      case STREAMING:
+        return DeclickPipeline.estimateBytes(format);
+
+      default:
+        break;
+    }
+
+    long numSamples = numFrames * format.getChannels();
+    long encoded = numSamples *
+      SimpleAudioConversion.bytesPerSample(format.getSampleSizeInBits());
+    long decoded = numSamples * Float.BYTES;
+
+    if (command.equals("bytes")) {
+      // Reads the encoded bytes without decoding them.
+      return encoded;
+    }
+
+    // Decoding holds the encoded bytes and the samples at once, as
+    // does encoding the whole clip for output.
+    long bytes = decoded + encoded;
+
+    // Detection adds the peak pyramid.
+    bytes += numFrames / PYRAMID_BLOCK_FRAMES * Float.BYTES;
+
+    if (command.equals("sweep")) {
+      // The profile of loud frames can include every frame.
+      bytes += LoudFrameProfile.worstCaseBytes(numFrames);
+    }
+
+    boolean edit = command.equals("gain") || command.equals("undo") ||
+      command.equals("redo") || command.equals("history") ||
+      (command.equals("declick") &&
+       "true".equals(argMap.getOptionalString("edit")));
+    if (edit) {
+      // The edit history can hold a changed copy of every block of the
+      // current version, plus its budget for the others.
+      String history_MB = argMap.getOptionalString("history_MB");
+      long historyBytes =
+        (history_MB != null?
+         Long.parseLong(history_MB) : EditHistory.DEFAULT_BUDGET_MB) << 20;
+      bytes = decoded + Math.max(encoded, decoded + historyBytes);
+    }
+    else if (command.equals("declick") && resident) {
+      // Declicking silences a copy of the samples, then encodes it.
+      bytes += decoded;
+    }
+
+    return bytes;
+  }
+
+  // Return `m_maxInHeapBytes`, looking it up if necessary: the budget,
+  // or the largest heap memory pool if that is smaller.
+  private long maxInHeapBytes()
+  {
+    if (m_maxInHeapBytes < 0) {
+      long largest = -1;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          largest = Math.max(largest, pool.getUsage().getMax());
+        }
+      }
+      m_maxInHeapBytes =
+        (largest > 0? Math.min(largest, m_maxBytes) : m_maxBytes);
+    }
+    return m_maxInHeapBytes;
+  }
+
+  private String describeBudget()
+  {
+    return megabytes(m_maxBytes) + " MB" +
+      (0 <= m_maxInHeapBytes && m_maxInHeapBytes < m_maxBytes?
+         " (" + megabytes(m_maxInHeapBytes) + " MB for in-heap)" : "");
+  }
+
+  private static long megabytes(long bytes)
+  {
+    return (bytes + (1 << 20) - 1) >> 20;
+  }
+}
+
+
+// EOF
@@ -0,0 +1,289 @@
+// Metrics.java
+
+package snded;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// Process-wide counters, gauges and histograms, served in the
+// Prometheus text exposition format.
+//
+// The metrics are always updated, since that only costs an atomic add
+// here and there.  They are only visible when `startServer` has been
+// called, which long-running modes (`SoundServer`, `batch`) do when
+// given a port.  The endpoint binds to the loopback interface only.
+//
+// Rates, such as frames decoded per second, are meant to be computed
+// by Prometheus from the counters, e.g.,
+// `rate(snded_decoded_frames_total[1m])`.
+//
+public class Metrics {
+  // --------------------------- Public types --------------------------
+  // Monotonically increasing count.
+  public static class Counter {
+    private LongAdder m_value = new LongAdder();
+
+    public void inc()
+    {
+      m_value.increment();
+    }
+
+    public void add(long n)
+    {
+      m_value.add(n);
+    }
+
+    public long get()
+    {
+      return m_value.sum();
+    }
+  }
+
+  // Value that can go up and down.
+  public static class Gauge {
+    private AtomicLong m_value = new AtomicLong();
+
+    public void set(long v)
+    {
+      m_value.set(v);
+    }
+
+    public void add(long n)
+    {
+      m_value.addAndGet(n);
+    }
+
+    public long get()
+    {
+      return m_value.get();
+    }
+  }
+
+  // Distribution of observed values over fixed buckets.
+  public static class Histogram {
+    // Upper bounds of the buckets, increasing.  There is also an
+    // implicit "+Inf" bucket.
+    private double[] m_bounds;
+
+    // Number of observations in each bucket (not cumulative), with the
+    // last element for "+Inf".
+    private AtomicLongArray m_counts;
+
+    private DoubleAdder m_sum = new DoubleAdder();
+
+    public Histogram(double[] bounds)
+    {
+      m_bounds = bounds;
+      m_counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void observe(double v)
+    {
+      int b = 0;
+      while (b < m_bounds.length && v > m_bounds[b]) {
+        ++b;
+      }
+      m_counts.incrementAndGet(b);
+      m_sum.add(v);
+    }
+  }
+
+  // ------------------------ Private registry -------------------------
+  // All counters and gauges, with their names and help texts, in
+  // registration order.  These must be initialized before the metrics
+  // below register themselves.
+  private static List<Object> s_metrics = new ArrayList<Object>();
+  private static List<String> s_names = new ArrayList<String>();
+  private static List<String> s_helps = new ArrayList<String>();
+
+  // ------------------------- Public metrics --------------------------
+  public static final Counter FILES_PROCESSED = counter(
+    "snded_files_processed_total",
+    "Commands that completed successfully.");
+
+  public static final Counter FILES_FAILED = counter(
+    "snded_files_failed_total",
+    "Commands that failed.");
+
+  public static final Counter DECODED_FRAMES = counter(
+    "snded_decoded_frames_total",
+    "Frames decoded from input files.");
+
+  public static final Counter DECODED_BYTES = counter(
+    "snded_decoded_bytes_total",
+    "Bytes of sample data decoded from input files.");
+
+  public static final Counter SOUNDS_DETECTED = counter(
+    "snded_sounds_detected_total",
+    "Sounds found by detection.");
+
+  public static final Counter SOUNDS_DISCARDED_AS_CLICKS = counter(
+    "snded_sounds_discarded_as_clicks_total",
+    "Sounds not retained because their spectrum marks them as clicks.");
+
+  public static final Counter SPECTRUM_COMPUTATIONS = counter(
+    "snded_spectrum_computations_total",
+    "Power spectra computed.");
+
+  public static final Gauge QUEUE_DEPTH = gauge(
+    "snded_queue_depth",
+    "Commands or files waiting to be processed, including the current one.");
+
+  public static final Gauge RESIDENT_BYTES = gauge(
+    "snded_resident_bytes",
+    "Estimated bytes of clips and analyses kept resident by the server.");
+
+  // -------------------------- Private data ---------------------------
+  // Bucket bounds for phase latencies, in seconds.
+  private static final double[] PHASE_BUCKETS_S = {
+    0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300
+  };
+
+  // Name and help text of the phase latency histogram.
+  private static final String PHASE_NAME = "snded_phase_seconds";
+  private static final String PHASE_HELP =
+    "Latency of each phase of work; see Phases.";
+
+  // Phase latency histograms by phase name.
+  private static Map<String, Histogram> s_phaseLatency =
+    new ConcurrentSkipListMap<String, Histogram>();
+
+  // The HTTP server, if started.
+  private static HttpServer s_server = null;
+
+  // ------------------------- Public methods --------------------------
+  // Serve the metrics at http://localhost:<port>/metrics.
+  public static synchronized void startServer(int port)
+    throws IOException
+  {
+    if (s_server != null) {
+      return;
+    }
+
+    s_server = HttpServer.create(
+      new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    s_server.createContext("/metrics", Metrics::handle);
+    s_server.start();
+
+    SoundEdit.progressReport("metrics: serving on http://localhost:" +
+      s_server.getAddress().getPort() + "/metrics");
+  }
+
+  public static synchronized void stopServer()
+  {
+    if (s_server != null) {
+      s_server.stop(0 /*delay*/);
+      s_server = null;
+    }
+  }
+
+  // True if the metrics are being served, so it is worth collecting
+  // those that have some cost, like phase latencies.
+  public static boolean isServing()
+  {
+    return s_server != null;
+  }
+
+  // Record that one run of `phase` took `seconds`.
+  public static void observePhase(String phase, double seconds)
+  {
+    s_phaseLatency.computeIfAbsent(phase, p -> new Histogram(PHASE_BUCKETS_S))
+      .observe(seconds);
+  }
+
+  // Return all metrics in the Prometheus text format.
+  public static String render()
+  {
+    StringBuilder sb = new StringBuilder();
+
+    for (int i=0; i < s_metrics.size(); ++i) {
+      Object m = s_metrics.get(i);
+      String name = s_names.get(i);
+      boolean isCounter = (m instanceof Counter);
+
+      sb.append("# HELP ").append(name).append(' ')
+        .append(s_helps.get(i)).append('\n');
+      sb.append("# TYPE ").append(name).append(' ')
+        .append(isCounter? "counter" : "gauge").append('\n');
+      sb.append(name).append(' ')
+        .append(isCounter? ((Counter)m).get() : ((Gauge)m).get())
+        .append('\n');
+    }
+
+    sb.append("# HELP ").append(PHASE_NAME).append(' ')
+      .append(PHASE_HELP).append('\n');
+    sb.append("# TYPE ").append(PHASE_NAME).append(" histogram\n");
+    for (Map.Entry<String, Histogram> e : s_phaseLatency.entrySet()) {
+      String label = "phase=\"" + e.getKey() + "\"";
+      Histogram h = e.getValue();
+
+      long cumulative = 0;
+      for (int b=0; b <= h.m_bounds.length; ++b) {
+        cumulative += h.m_counts.get(b);
+        String le = (b < h.m_bounds.length? Double.toString(h.m_bounds[b]) : "+Inf");
+        sb.append(PHASE_NAME).append("_bucket{").append(label)
+          .append(",le=\"").append(le).append("\"} ")
+          .append(cumulative).append('\n');
+      }
+      sb.append(PHASE_NAME).append("_sum{").append(label).append("} ")
+        .append(h.m_sum.sum()).append('\n');
+      sb.append(PHASE_NAME).append("_count{").append(label).append("} ")
+        .append(cumulative).append('\n');
+    }
+
+    return sb.toString();
+  }
+
+  // ------------------------- Private methods -------------------------
+  private static Counter counter(String name, String help)
+  {
+    Counter c = new Counter();
+    register(c, name, help);
+    return c;
+  }
+
+  private static Gauge gauge(String name, String help)
+  {
+    Gauge g = new Gauge();
+    register(g, name, help);
+    return g;
+  }
+
+  private static void register(Object metric, String name, String help)
+  {
+    s_metrics.add(metric);
+    s_names.add(name);
+    s_helps.add(help);
+  }
+
+  // Respond to a request for the metrics.
+  private static void handle(HttpExchange exchange)
+    throws IOException
+  {
+    byte[] body = render().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type",
+      "text/plain; version=0.0.4; charset=utf-8");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(body);
+    }
+  }
+}
+
+
+// EOF
@@ -0,0 +1,272 @@
+// PeakPyramid.java
+
+package snded;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+// Multi-resolution summary of the peak amplitudes in a clip.
+//
+// Each level divides the clip into blocks of a fixed number of frames
+// and records, for each block, the maximum absolute value of any
+// sample in it (over all channels).  Coarser levels have larger
+// blocks.  This is similar to the summary blocks Audacity keeps so it
+// can draw waveforms without reading every sample.
+//
+// Detection uses this to skip regions that cannot contain a frame
+// louder than the threshold: if a block's peak is at or below the
+// threshold, none of its frames are loud, so only blocks with a loud
+// peak need to be examined, first at the finer level and finally
+// sample by sample.  On recordings that are mostly silence, that
+// avoids computing the loudness of the vast majority of samples.
+//
+// Building the pyramid requires one pass over the samples, but that
+// pass only takes absolute values and maxima, which is much cheaper
+// than the logarithm in each loudness, so detection builds it even
+// when it is used once.  Reusing it, within a run (as in `sweep`) or
+// across runs via `AnalysisCache`, saves that pass as well.
+//
+public class PeakPyramid {
+  // --------------------------- Public data ---------------------------
+  // Identifies a serialized pyramid.
+  public static final int MAGIC = 0x534e4450;     // "SNDP"
+
+  // Serialization format version.
+  public static final int VERSION = 1;
+
+  // Default number of frames per block at each level, finest first.
+  // Each must be a multiple of the previous one.
+  public static final int[] DEFAULT_BLOCK_SIZES = { 256, 65536 };
+
+  // Callback for `forEachLoudFrame`.
+  public interface LoudFrameVisitor {
+    void loudFrame(long frameNum, double dB);
+  }
+
+  // -------------------------- Private data ---------------------------
+  // Number of frames in the summarized clip.
+  private long m_numFrames;
+
+  // For each level, finest first, the number of frames per block.
+  private int[] m_blockSizes;
+
+  // For each level, the peak absolute sample value within each block.
+  private float[][] m_blockPeaks;
+
+  // ------------------------- Public methods --------------------------
+  // Summarize `audio` using `DEFAULT_BLOCK_SIZES`.
+  public PeakPyramid(AudioClip audio)
+  {
+    this(audio, DEFAULT_BLOCK_SIZES);
+  }
+
+  public PeakPyramid(AudioClip audio, int[] blockSizes)
+  {
+    m_numFrames = audio.numFrames();
+    m_blockSizes = blockSizes.clone();
+    m_blockPeaks = new float[blockSizes.length][];
+
+    // Compute the finest level directly from the samples.
+    float[] finest = new float[numBlocks(0)];
+    for (int b=0; b < finest.length; ++b) {
+      long start = (long)b * m_blockSizes[0];
+      long end = Math.min(start + m_blockSizes[0], m_numFrames);
+      finest[b] = audio.peakAmplitude(start, (int)(end - start));
+    }
+    m_blockPeaks[0] = finest;
+
+    // Then each coarser level from the one below it.
+    for (int level=1; level < m_blockSizes.length; ++level) {
+      assert(m_blockSizes[level] % m_blockSizes[level-1] == 0);
+      int ratio = m_blockSizes[level] / m_blockSizes[level-1];
+
+      float[] finer = m_blockPeaks[level-1];
+      float[] coarser = new float[numBlocks(level)];
+      for (int i=0; i < finer.length; ++i) {
+        coarser[i / ratio] = Math.max(coarser[i / ratio], finer[i]);
+      }
+      m_blockPeaks[level] = coarser;
+    }
+  }
+
+  // Read a pyramid previously written by `write`.  Throws if the data
+  // is not a pyramid in the current format.
+  public PeakPyramid(DataInputStream in)
+    throws IOException
+  {
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      throw new IOException("not a peak pyramid in the current format");
+    }
+
+    m_numFrames = in.readLong();
+    int numLevels = in.readInt();
+    m_blockSizes = new int[numLevels];
+    m_blockPeaks = new float[numLevels][];
+
+    for (int level=0; level < numLevels; ++level) {
+      m_blockSizes[level] = in.readInt();
+      float[] peaks = new float[numBlocks(level)];
+      for (int b=0; b < peaks.length; ++b) {
+        peaks[b] = in.readFloat();
+      }
+      m_blockPeaks[level] = peaks;
+    }
+  }
+
+  public void write(DataOutputStream out)
+    throws IOException
+  {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(m_numFrames);
+    out.writeInt(m_blockSizes.length);
+
+    for (int level=0; level < m_blockSizes.length; ++level) {
+      out.writeInt(m_blockSizes[level]);
+      for (float peak : m_blockPeaks[level]) {
+        out.writeFloat(peak);
+      }
+    }
+  }
+
+  public long numFrames()
+  {
+    return m_numFrames;
+  }
+
+  public int numLevels()
+  {
+    return m_blockSizes.length;
+  }
+
+  // Number of frames per block at `level`.
+  public int getBlockSize(int level)
+  {
+    return m_blockSizes[level];
+  }
+
+  // Number of blocks at `level`, the last of which might be partial.
+  public int numBlocks(int level)
+  {
+    return Math.toIntExact(
+      (m_numFrames + m_blockSizes[level] - 1) / m_blockSizes[level]);
+  }
+
+  // Peak absolute sample value in block `b` at `level`.
+  public float getBlockPeak(int level, int b)
+  {
+    return m_blockPeaks[level][b];
+  }
+
+  // Call `visitor` for every frame in `audio` whose loudness (as
+  // computed by `AudioClip.getFrameDecibels`) exceeds
+  // `loudnessThreshold_dB`, in increasing frame order.  `audio` must be
+  // the clip this pyramid summarizes.
+  public void forEachLoudFrame(
+    AudioClip audio,
+    double loudnessThreshold_dB,
+    LoudFrameVisitor visitor)
+  {
+    assert(audio.numFrames() == m_numFrames);
+
+    int top = m_blockSizes.length - 1;
+
+    // Report progress roughly every minute of audio.
+    long progressPeriod_blocks = Math.max(1,
+      (long)(60.0 * audio.getFrameRate()) / m_blockSizes[top]);
+
+    // When recording, count the loud frames for the chunk events.
+    long[] loudFrames = new long[1];
+    if (new AnalysisEvents.FindSoundsChunk().isEnabled()) {
+      LoudFrameVisitor inner = visitor;
+      visitor = (frameNum, dB) -> {
+        loudFrames[0]++;
+        inner.loudFrame(frameNum, dB);
+      };
+    }
+
+    for (int b=0; b < m_blockPeaks[top].length; ++b) {
+      if (b % progressPeriod_blocks == 0) {
+        SoundEdit.progressReport("findSounds: processing frame " +
+          ((long)b * m_blockSizes[top]) + " of " + m_numFrames);
+      }
+
+      AnalysisEvents.FindSoundsChunk event =
+        new AnalysisEvents.FindSoundsChunk();
+      event.begin();
+      loudFrames[0] = 0;
+
+      long examined =
+        visitBlock(audio, top, b, loudnessThreshold_dB, visitor);
+
+      event.startFrame = (long)b * m_blockSizes[top];
+      event.endFrame = Math.min(event.startFrame + m_blockSizes[top], m_numFrames);
+      event.loudFrames = loudFrames[0];
+      event.framesExamined = examined;
+      event.commit();
+    }
+  }
+
+  // Return an upper bound on the loudness of any frame in a block
+  // whose peak absolute sample value is `peak`.
+  //
+  // `linearAmplitudeToDecibels` is monotonic except that it maps zero
+  // to -100 dB, which is more than it yields for very small non-zero
+  // values, so the bound must be at least that.
+  public static double loudnessUpperBound(float peak)
+  {
+    return Math.max(AudioClip.linearAmplitudeToDecibels(peak), -100.0);
+  }
+
+  // ------------------------- Private methods -------------------------
+  // Visit the loud frames in block `b` at `level`.  Return the number
+  // of frames whose loudness was computed.
+  private long visitBlock(
+    AudioClip audio,
+    int level,
+    int b,
+    double loudnessThreshold_dB,
+    LoudFrameVisitor visitor)
+  {
+    if (loudnessUpperBound(m_blockPeaks[level][b]) <= loudnessThreshold_dB) {
+      // Nothing in here is loud.
+      return 0;
+    }
+
+    long start = (long)b * m_blockSizes[level];
+    long end = Math.min(start + m_blockSizes[level], m_numFrames);
+
+    if (level == 0) {
+      // Examine individual frames.
+      int numChannels = audio.numChannels();
+      audio.forEachBlock(start, end, m_blockSizes[0],
+        (startFrame, numFrames, samples, offset) -> {
+          for (int i=0; i < numFrames; ++i) {
+            double dB = AudioClip.frameDecibels(
+              samples, offset + i*numChannels, numChannels);
+            if (dB > loudnessThreshold_dB) {
+              visitor.loudFrame(startFrame + i, dB);
+            }
+          }
+        });
+      return end - start;
+    }
+    else {
+      // Examine the blocks at the next finer level.
+      int finerSize = m_blockSizes[level-1];
+      int firstFiner = Math.toIntExact(start / finerSize);
+      int endFiner = Math.toIntExact((end + finerSize - 1) / finerSize);
+      long examined = 0;
+      for (int fb = firstFiner; fb < endFiner; ++fb) {
+        examined +=
+          visitBlock(audio, level-1, fb, loudnessThreshold_dB, visitor);
+      }
+      return examined;
+    }
+  }
+}
+
+
+// EOF
@@ -0,0 +1,388 @@
+// Phases.java
+
+package snded;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+// Per-phase timing and resource accounting.
+//
+// The work of each command is divided into named phases, such as
+// "decode" and "detect".  Code performing a phase wraps it like this:
+//
+//   try (Phases.Scope phase = Phases.begin("decode")) {
+//     ...
+//     phase.addFrames(numFrames);
+//   }
+//
+// and, when enabled, this class accumulates for each phase its wall
+// and CPU time, the number of frames and bytes it processed, the bytes
+// it allocated, and the peak heap usage while it ran.  At the end of
+// the run, `report` prints a summary as a table or as JSON lines.
+//
+// Phases can nest, for example when detection first has to decode the
+// input.  Time and allocation are attributed exclusively: while an
+// inner phase runs, the outer one is paused.  The peak heap of a phase
+// is the maximum over all of the times it ran, and is the sum of the
+// peaks of the individual heap pools, so may somewhat overstate it.
+//
+// Scopes belong to the thread that began them, and allocation and
+// CPU time are measured for that thread.  Several threads may run
+// phases at once, as in `batch`, in which case the statistics are the
+// sums over all of them, and the peak heap is only approximate, since
+// each thread resets the pool peaks when its phases start.
+//
+// The duration of each scope is also fed to the phase latency
+// histogram in `Metrics` while that is being served, even if no
+// report was requested.
+//
+// When neither is wanted, `begin` returns a scope that does nothing,
+// so the instrumentation costs almost nothing.
+//
+public class Phases {
+  // --------------------------- Public types --------------------------
+  // Output formats for `report`.
+  public enum Format {
+    TABLE,
+    JSON,
+  };
+
+  // An active phase.  Closing it ends the phase.
+  public static class Scope implements AutoCloseable {
+    // Accumulated statistics for this phase, or null if disabled.
+    private Stats m_stats;
+
+    // Wall time of this scope so far, excluding nested scopes.
+    private long m_spanWall_ns = 0;
+
+    // Values when this scope most recently started or resumed.
+    private long m_startWall_ns;
+    private long m_startCpu_ns;
+    private long m_startAlloc;
+
+    private Scope(Stats stats)
+    {
+      m_stats = stats;
+    }
+
+    // Record that this phase processed `n` more frames.
+    public void addFrames(long n)
+    {
+      if (m_stats != null) {
+        synchronized (m_stats) {
+          m_stats.m_frames += n;
+        }
+      }
+    }
+
+    // Record that this phase processed `n` more bytes.
+    public void addBytes(long n)
+    {
+      if (m_stats != null) {
+        synchronized (m_stats) {
+          m_stats.m_bytes += n;
+        }
+      }
+    }
+
+    @Override
+    public void close()
+    {
+      if (m_stats != null) {
+        end(this);
+      }
+    }
+  }
+
+  // -------------------------- Private types --------------------------
+  // Accumulated statistics of one phase.
+  private static class Stats {
+    public String m_name;
+    public int m_calls = 0;
+    public long m_wall_ns = 0;
+    public long m_cpu_ns = 0;
+    public long m_frames = 0;
+    public long m_bytes = 0;
+    public long m_alloc = 0;
+    public long m_peakHeap = 0;
+
+    public Stats(String name)
+    {
+      m_name = name;
+    }
+  }
+
+  // -------------------------- Private data ---------------------------
+  // Phases in the order the work normally happens, so the report lists
+  // them in that order.  Others are listed after these.
+  private static final String[] STANDARD_PHASES = {
+    "read", "decode", "detect", "spectra", "classify",
+    "render", "encode", "write"
+  };
+
+  // Scope returned when disabled.
+  private static final Scope DISABLED = new Scope(null);
+
+  // Output format, or null if disabled.
+  private static Format s_format = null;
+
+  // Statistics for each phase seen so far.  Accesses to the map, and
+  // to each `Stats`, synchronize on that object.
+  private static Map<String, Stats> s_stats =
+    new LinkedHashMap<String, Stats>();
+
+  // Active scopes of the current thread, innermost first.
+  private static ThreadLocal<Deque<Scope>> s_active =
+    ThreadLocal.withInitial(() -> new ArrayDeque<Scope>());
+
+  // Time `enable` was called, for the total.
+  private static long s_enabledWall_ns;
+
+  // Initialized by the first `begin` that collects anything.
+  private static volatile ThreadMXBean s_threads;
+  private static List<MemoryPoolMXBean> s_heapPools;
+
+  // ------------------------- Public methods --------------------------
+  // Enable collection according to `format`, which is "table" or
+  // "json".  If it is null, collection is disabled.  Either way,
+  // anything previously collected is discarded.
+  //
+  // This must not be called while another thread is in a phase.
+  public static void enable(String format)
+  {
+    s_format = null;
+    synchronized (s_stats) {
+      s_stats.clear();
+    }
+    s_active.get().clear();
+
+    if (format == null) {
+      return;
+    }
+    else if (format.equals("table")) {
+      s_format = Format.TABLE;
+    }
+    else if (format.equals("json")) {
+      s_format = Format.JSON;
+    }
+    else {
+      throw new RuntimeException(
+        "Phases format must be \"table\" or \"json\", not \"" +
+        format + "\"");
+    }
+
+    synchronized (s_stats) {
+      for (String name : STANDARD_PHASES) {
+        s_stats.put(name, new Stats(name));
+      }
+    }
+    s_enabledWall_ns = System.nanoTime();
+  }
+
+  public static boolean isEnabled()
+  {
+    return s_format != null;
+  }
+
+  // Begin phase `name`.  The returned scope must be closed when the
+  // phase ends.
+  public static Scope begin(String name)
+  {
+    if (s_format == null && !Metrics.isServing()) {
+      return DISABLED;
+    }
+
+    if (s_threads == null) {
+      initMXBeans();
+    }
+
+    // Pause the enclosing phase, if any.
+    Deque<Scope> active = s_active.get();
+    Scope outer = active.peek();
+    if (outer != null) {
+      accumulate(outer);
+    }
+
+    Stats stats;
+    synchronized (s_stats) {
+      stats = s_stats.computeIfAbsent(name, n -> new Stats(n));
+    }
+    synchronized (stats) {
+      stats.m_calls++;
+    }
+
+    Scope scope = new Scope(stats);
+    start(scope);
+    active.push(scope);
+    return scope;
+  }
+
+  // Print the accumulated statistics to `out`.  Does nothing if not
+  // enabled.
+  public static void report(PrintStream out)
+  {
+    if (s_format == null) {
+      return;
+    }
+
+    double totalWall_ms = (System.nanoTime() - s_enabledWall_ns) / 1e6;
+
+    if (s_format == Format.TABLE) {
+      out.println();
+      out.println("phase     calls   wall_ms    cpu_ms      frames  Mframes/s       bytes     MB/s    alloc_MB  peakHeap_MB");
+      out.println("--------  -----  --------  --------  ----------  ---------  ----------  -------  ----------  -----------");
+    }
+
+    List<Stats> allStats;
+    synchronized (s_stats) {
+      allStats = new ArrayList<Stats>(s_stats.values());
+    }
+
+    double phasesWall_ms = 0;
+    for (Stats s : allStats) {
+      if (s.m_calls == 0) {
+        continue;
+      }
+
+      double wall_ms = s.m_wall_ns / 1e6;
+      double seconds = s.m_wall_ns / 1e9;
+      double framesPerSecond = (seconds > 0? s.m_frames / seconds : 0);
+      double bytesPerSecond = (seconds > 0? s.m_bytes / seconds : 0);
+      phasesWall_ms += wall_ms;
+
+      if (s_format == Format.TABLE) {
+        out.printf("%1$-8s  %2$5d  %3$8.1f  %4$8.1f  %5$10d  %6$9.2f  %7$10d  %8$7.1f  %9$10.1f  %10$11.1f\n",
+          s.m_name,
+          s.m_calls,
+          wall_ms,
+          s.m_cpu_ns / 1e6,
+          s.m_frames,
+          framesPerSecond / 1e6,
+          s.m_bytes,
+          bytesPerSecond / 1e6,
+          s.m_alloc / 1e6,
+          s.m_peakHeap / 1e6);
+      }
+      else {
+        out.printf("{\"phase\":\"%1$s\",\"calls\":%2$d,\"wall_ms\":%3$.3f,\"cpu_ms\":%4$.3f,\"frames\":%5$d,\"frames_per_s\":%6$.0f,\"bytes\":%7$d,\"bytes_per_s\":%8$.0f,\"alloc_bytes\":%9$d,\"peak_heap_bytes\":%10$d}\n",
+          s.m_name,
+          s.m_calls,
+          wall_ms,
+          s.m_cpu_ns / 1e6,
+          s.m_frames,
+          framesPerSecond,
+          s.m_bytes,
+          bytesPerSecond,
+          s.m_alloc,
+          s.m_peakHeap);
+      }
+    }
+
+    // Everything not in any phase: startup, parsing, cache lookups,
+    // printing results, and so on.
+    double other_ms = Math.max(0, totalWall_ms - phasesWall_ms);
+    if (s_format == Format.TABLE) {
+      out.printf("%1$-8s  %2$5s  %3$8.1f\n", "other", "", other_ms);
+      out.printf("%1$-8s  %2$5s  %3$8.1f\n", "total", "", totalWall_ms);
+    }
+    else {
+      out.printf("{\"phase\":\"other\",\"wall_ms\":%1$.3f}\n", other_ms);
+      out.printf("{\"phase\":\"total\",\"wall_ms\":%1$.3f}\n", totalWall_ms);
+    }
+  }
+
+  // ------------------------- Private methods -------------------------
+  private static synchronized void initMXBeans()
+  {
+    if (s_threads != null) {
+      return;
+    }
+
+    s_heapPools = new ArrayList<MemoryPoolMXBean>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        s_heapPools.add(pool);
+      }
+    }
+    s_threads = ManagementFactory.getThreadMXBean();
+  }
+
+  // Record the starting values for `scope`, which is starting or
+  // resuming.
+  private static void start(Scope scope)
+  {
+    for (MemoryPoolMXBean pool : s_heapPools) {
+      pool.resetPeakUsage();
+    }
+    scope.m_startAlloc = allocatedBytes();
+    scope.m_startCpu_ns = s_threads.getCurrentThreadCpuTime();
+    scope.m_startWall_ns = System.nanoTime();
+  }
+
+  // Add what `scope` used since it started or resumed to its stats.
+  private static void accumulate(Scope scope)
+  {
+    long wall_ns = System.nanoTime();
+    long cpu_ns = s_threads.getCurrentThreadCpuTime();
+    long alloc = allocatedBytes();
+
+    long peakHeap = 0;
+    for (MemoryPoolMXBean pool : s_heapPools) {
+      peakHeap += pool.getPeakUsage().getUsed();
+    }
+
+    scope.m_spanWall_ns += wall_ns - scope.m_startWall_ns;
+
+    Stats stats = scope.m_stats;
+    synchronized (stats) {
+      stats.m_wall_ns += wall_ns - scope.m_startWall_ns;
+      stats.m_cpu_ns += cpu_ns - scope.m_startCpu_ns;
+      stats.m_alloc += alloc - scope.m_startAlloc;
+      stats.m_peakHeap = Math.max(stats.m_peakHeap, peakHeap);
+    }
+  }
+
+  // End `scope`, which must be the innermost, and resume the enclosing
+  // one.
+  private static void end(Scope scope)
+  {
+    Deque<Scope> active = s_active.get();
+    assert(active.peek() == scope);
+    active.pop();
+    accumulate(scope);
+
+    if (Metrics.isServing()) {
+      Metrics.observePhase(scope.m_stats.m_name, scope.m_spanWall_ns / 1e9);
+    }
+
+    Scope outer = active.peek();
+    if (outer != null) {
+      start(outer);
+    }
+  }
+
+  // Bytes allocated so far by the current thread, or 0 if the JVM
+  // cannot tell us.
+  private static long allocatedBytes()
+  {
+    if (s_threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean)s_threads;
+      return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+}
+
+
+// EOF
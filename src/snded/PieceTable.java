@@ -0,0 +1,292 @@
+// PieceTable.java
+
+package snded;
+
+import mcve.audio.SimpleAudioConversion;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+// Editable sequence of frames assembled from ranges of other clips.
+//
+// `AudioClip` can only change samples in place, so removing or
+// inserting a span of one would mean copying everything after it.
+// This instead represents the result of such edits as a list of
+// "pieces", each a view (`AudioClip.slice`) of a source clip.  Edits
+// only split and rearrange the pieces; the samples themselves are
+// never copied or modified, and tables can share pieces.  The source
+// clips must not be modified while tables refer to them.
+//
+// Finding the piece containing a frame is a binary search over the
+// pieces' starting frames.  An edit rebuilds the list of pieces, which
+// takes time proportional to their number, but that grows with the
+// number of edits rather than with the length of the audio, so it
+// stays small.
+//
+// `writeToFile` encodes a block at a time, so the edited sequence is
+// never materialized as a single clip.
+//
+public class PieceTable {
+  // -------------------------- Private data ---------------------------
+  // Number of frames `writeToFile` encodes at a time.
+  private static final int EXPORT_BLOCK_FRAMES = 65536;
+
+  // Format of all of the pieces.
+  private AudioFormat m_format;
+
+  // The pieces, in order.  None is empty.
+  private List<AudioClip> m_pieces;
+
+  // `m_starts[i]` is the frame at which piece `i` starts.  The last
+  // element is the total number of frames.
+  private long[] m_starts;
+
+  // ------------------------- Public methods --------------------------
+  // Make a table of all of `clip`.
+  public PieceTable(AudioClip clip)
+  {
+    this(clip.getFormat(), List.of(clip.slice(0, clip.numFrames())));
+  }
+
+  // Make a table of `pieces`, in order, all of which must be in
+  // `format`.
+  /*package*/ PieceTable(AudioFormat format, List<AudioClip> pieces)
+  {
+    m_format = format;
+    setPieces(pieces);
+  }
+
+  public AudioFormat getFormat()
+  {
+    return m_format;
+  }
+
+  public float getFrameRate()
+  {
+    return m_format.getFrameRate();
+  }
+
+  public long numFrames()
+  {
+    return m_starts[m_starts.length - 1];
+  }
+
+  public int numPieces()
+  {
+    return m_pieces.size();
+  }
+
+  // Return a table of frames [`start`, `end`) of this one, sharing its
+  // pieces.
+  public PieceTable copy(long start, long end)
+  {
+    return new PieceTable(m_format, range(start, end));
+  }
+
+  // Remove frames [`start`, `end`) from this table and return them as
+  // a new table.
+  public PieceTable cut(long start, long end)
+  {
+    PieceTable removed = copy(start, end);
+    splice(start, end, null);
+    return removed;
+  }
+
+  // Insert the frames of `other` before frame `frame` of this table.
+  public void insert(long frame, PieceTable other)
+  {
+    splice(frame, frame, other);
+  }
+
+  // Append the frames of `other` to this table.
+  public void concat(PieceTable other)
+  {
+    splice(numFrames(), numFrames(), other);
+  }
+
+  // Replace frames [`start`, `end`) of this table with the frames of
+  // `replacement`, or just remove them if it is null.
+  public void splice(long start, long end, PieceTable replacement)
+  {
+    List<AudioClip> pieces = range(0, start);
+    if (replacement != null) {
+      checkCompatible(replacement);
+      pieces.addAll(replacement.m_pieces);
+    }
+    pieces.addAll(range(end, numFrames()));
+    setPieces(pieces);
+  }
+
+  // Copy `count` frames, starting with `frameStart`, into `dst[off]`
+  // and onward, interleaved.
+  public void readFrames(long frameStart, int count, float[] dst, int off)
+  {
+    assert(0 <= frameStart && 0 <= count &&
+           frameStart + count <= numFrames());
+
+    int numChannels = m_format.getChannels();
+    int p = pieceIndex(frameStart);
+    while (count > 0) {
+      AudioClip piece = m_pieces.get(p);
+      long pieceOffset = frameStart - m_starts[p];
+      int n = (int)Math.min(count, piece.numFrames() - pieceOffset);
+      piece.readFrames(pieceOffset, n, dst, off);
+
+      frameStart += n;
+      count -= n;
+      off += n * numChannels;
+      ++p;
+    }
+  }
+
+  // Write the frames to a WAV file in `m_format`.
+  public void writeToFile(String outFname)
+    throws IOException
+  {
+    long numBytes = numFrames() * bytesPerFrame();
+    try (Phases.Scope phase = Phases.begin("write");
+         AudioInputStream ais = new AudioInputStream(
+           new EncodingInputStream(), m_format, numFrames())) {
+      AudioSystem.write(ais, AudioFileFormat.Type.WAVE, new File(outFname));
+      phase.addBytes(numBytes);
+    }
+  }
+
+  // ------------------------- Private methods -------------------------
+  private void setPieces(List<AudioClip> pieces)
+  {
+    m_pieces = new ArrayList<AudioClip>(pieces.size());
+    for (AudioClip piece : pieces) {
+      if (piece.numFrames() > 0) {
+        m_pieces.add(piece);
+      }
+    }
+
+    m_starts = new long[m_pieces.size() + 1];
+    for (int i=0; i < m_pieces.size(); ++i) {
+      m_starts[i+1] = m_starts[i] + m_pieces.get(i).numFrames();
+    }
+  }
+
+  // Return the index of the piece containing `frame`, which must be
+  // less than `numFrames()`.
+  private int pieceIndex(long frame)
+  {
+    int i = Arrays.binarySearch(m_starts, 0, m_pieces.size(), frame);
+
+    // When `frame` is not a piece start, `binarySearch` returns
+    // -(insertion point) - 1, and the piece before the insertion point
+    // contains it.
+    return i >= 0? i : -i - 2;
+  }
+
+  // Return views of frames [`start`, `end`).
+  private List<AudioClip> range(long start, long end)
+  {
+    if (!(0 <= start && start <= end && end <= numFrames())) {
+      throw new RuntimeException(
+        "Invalid frame range [" + start + ", " + end + ") of " +
+        numFrames() + " frames.");
+    }
+
+    List<AudioClip> ret = new ArrayList<AudioClip>();
+    if (start == end) {
+      return ret;
+    }
+
+    for (int p = pieceIndex(start); p < m_pieces.size() && m_starts[p] < end; ++p) {
+      AudioClip piece = m_pieces.get(p);
+      long from = Math.max(start, m_starts[p]) - m_starts[p];
+      long to = Math.min(end, m_starts[p+1]) - m_starts[p];
+      ret.add(from == 0 && to == piece.numFrames()?
+                piece : piece.slice(from, to));
+    }
+    return ret;
+  }
+
+  private void checkCompatible(PieceTable other)
+  {
+    if (!other.m_format.matches(m_format)) {
+      throw new RuntimeException(
+        "Cannot combine audio in different formats: " +
+        m_format + " and " + other.m_format);
+    }
+  }
+
+  private int bytesPerFrame()
+  {
+    return SimpleAudioConversion.bytesPerSample(
+      m_format.getSampleSizeInBits()) * m_format.getChannels();
+  }
+
+  // ------------------------- Private classes -------------------------
+  // Stream of the encoded frames, produced a block at a time.
+  private class EncodingInputStream extends InputStream {
+    private long m_nextFrame = 0;
+
+    private float[] m_block = new float[
+      (int)Math.min(EXPORT_BLOCK_FRAMES, numFrames()) *
+      m_format.getChannels()];
+
+    // Encoded block, of which the bytes in [`m_pos`, `m_len`) are yet
+    // to be read.
+    private byte[] m_bytes = new byte[
+      (int)Math.min(EXPORT_BLOCK_FRAMES, numFrames()) * bytesPerFrame()];
+    private int m_pos = 0;
+    private int m_len = 0;
+
+    @Override
+    public int read()
+    {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] dest, int off, int len)
+    {
+      if (m_pos == m_len) {
+        if (m_nextFrame == numFrames()) {
+          return -1;
+        }
+        encodeBlock();
+      }
+
+      int n = Math.min(len, m_len - m_pos);
+      System.arraycopy(m_bytes, m_pos, dest, off, n);
+      m_pos += n;
+      return n;
+    }
+
+    private void encodeBlock()
+    {
+      try (Phases.Scope phase = Phases.begin("encode")) {
+        int count =
+          (int)Math.min(EXPORT_BLOCK_FRAMES, numFrames() - m_nextFrame);
+        readFrames(m_nextFrame, count, m_block, 0);
+        SimpleAudioConversion.encode(m_block, m_bytes,
+          count * m_format.getChannels(), m_format);
+
+        m_nextFrame += count;
+        m_pos = 0;
+        m_len = count * bytesPerFrame();
+
+        phase.addFrames(count);
+        phase.addBytes(m_len);
+      }
+    }
+  }
+}
+
+
+// EOF
@@ -105,7 +105,19 @@ public class PowerSpectrum {
     m_decibelsPerElement = new double[windowSize / 2];
     m_frameRate = audio.getFrameRate();
 
-    computeSpectrum(audio, startFrame, endFrame);
+    AnalysisEvents.Spectrum event = new AnalysisEvents.Spectrum();
+    event.begin();
+
+    int windowCount =
+      computeSpectrum(audio.slice(startFrame, endFrame + 1));
+
+    event.windowSize = windowSize;
+    event.startFrame = startFrame;
+    event.endFrame = endFrame;
+    event.windowCount = windowCount;
+    event.commit();
+
+    Metrics.SPECTRUM_COMPUTATIONS.inc();
   }
 
   // Number of elements in the spectrum.
@@ -133,13 +145,23 @@ public class PowerSpectrum {
   // ------------------------- Private methods -------------------------
   // Do the actual work of computing the spectrum.  This is separated
   // from the constructor so that the heavy computation does not clutter
-  // the public part of the class.
-  private void computeSpectrum(
-    AudioClip audio, long startFrameNum, long endFrameNum)
+  // the public part of the class.  Returns the number of windows
+  // evaluated.
+  private int computeSpectrum(AudioClip audio)
   {
     double[] inputReal = new double[m_windowSize];
     double[] inputImag = new double[m_windowSize];     // All zeroes.
 
+    // One window's worth of samples from one channel.
+    float[] channelSamples = new float[m_windowSize];
+
+    // `windowFunction` for each position in the window, which is the
+    // same for every window.
+    double[] window = new double[m_windowSize];
+    for (int i=0; i < m_windowSize; ++i) {
+      window[i] = windowFunction(i);
+    }
+
     // Working storage for the FFT algorithm.
     FFTbase.WorkingStorage fftStorage =
       new FFTbase.WorkingStorage(m_windowSize);
@@ -163,20 +185,19 @@ public class PowerSpectrum {
     // a single window-sized chunk of input.
     int numWindowEvaluations = 0;
 
-    // Work our way through the specified section of the clip, analyzing
-    // window-sized chunks at a time, overlapping adjacent windows by
-    // `windowIncrement`, and accumulating the results in `power`.
-    for (long curFrameNum = startFrameNum;
-         curFrameNum + m_windowSize - 1 <= endFrameNum;
+    // Work our way through the clip, analyzing window-sized chunks at a
+    // time, overlapping adjacent windows by `windowIncrement`, and
+    // accumulating the results in `power`.
+    for (long curFrameNum = 0;
+         curFrameNum + m_windowSize <= audio.numFrames();
          curFrameNum += windowIncrement) {
       // Perform measurements on every channel.
       for (int channel = 0; channel < audio.numChannels(); ++channel) {
         // Copy the audio samples into `inputReal`.
+        audio.readChannel(
+          curFrameNum, m_windowSize, channel, channelSamples, 0);
         for (int i=0; i < m_windowSize; ++i) {
-          long frameNum = curFrameNum + i;
-
-          inputReal[i] = audio.getFCSample(frameNum, channel) *
-                         windowFunction(i);
+          inputReal[i] = channelSamples[i] * window[i];
         }
 
         // Apply FFT.  The result contains (real, imag) pairs
@@ -220,6 +241,8 @@ public class PowerSpectrum {
           AudioClip.linearPowerToDecibels(power[i] * scale);
       }
     }
+
+    return numWindowEvaluations;
   }
 
   // Return the squared magnitude of complex number (R,I).
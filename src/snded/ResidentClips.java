@@ -0,0 +1,171 @@
+// ResidentClips.java
+
+package snded;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+// Decoded clips and their analyses, kept in memory across commands by
+// `SoundServer`, and across the commands of a chain (see
+// `SoundEdit.run`).
+//
+// Entries are keyed by the canonical path of the input file along with
+// its size and modification time, so a file that changes is decoded
+// afresh.  When the estimated memory used by all entries exceeds the
+// cap, the least recently used are dropped.  Eviction only happens
+// between commands, so a single large command can exceed the cap
+// while it runs.
+//
+// This is only accessed by the one thread that runs commands.
+//
+public class ResidentClips {
+  // --------------------------- Public types --------------------------
+  // What is kept for one input file.  Any of the parts may be null (or
+  // empty) until a command needs it.
+  public static class Entry {
+    // Decoded samples.  Commands that modify samples must work on a
+    // copy.
+    public AudioClip m_audio;
+
+    // Versions of `m_audio` made by the editing commands, or null if
+    // none has run.  Its original version refers to `m_audio`.
+    public EditHistory m_history;
+
+    // Peak summary of `m_audio`.
+    public PeakPyramid m_peakPyramid;
+
+    // Sounds found by `SoundEdit.findSounds`, keyed by
+    // `SoundPartitionParams.getKeyString()`.
+    public Map<String, SoundTable> m_sounds =
+      new HashMap<String, SoundTable>();
+
+    // Estimated bytes used by the above, as of the last `update`.
+    private long m_bytes = 0;
+  }
+
+  // -------------------------- Private data ---------------------------
+  // Cap on the estimated bytes of all entries.
+  private long m_maxBytes;
+
+  // Entries in least-recently-used order.
+  private LinkedHashMap<String, Entry> m_entries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true /*accessOrder*/);
+
+  // ------------------------- Public methods --------------------------
+  public ResidentClips(long maxBytes)
+  {
+    m_maxBytes = maxBytes;
+  }
+
+  // Get the entry for `file`, creating an empty one if necessary.
+  public Entry get(File file)
+    throws IOException
+  {
+    File canonical = file.getCanonicalFile();
+    String key = canonical.length() + " " + canonical.lastModified() +
+      " " + canonical.getPath();
+
+    Entry entry = m_entries.get(key);
+    if (entry == null) {
+      // Drop any entry for an older version of the same file.
+      String suffix = " " + canonical.getPath();
+      Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Entry> e = it.next();
+        if (e.getKey().endsWith(suffix)) {
+          close(e.getValue());
+          it.remove();
+        }
+      }
+
+      entry = new Entry();
+      m_entries.put(key, entry);
+    }
+    return entry;
+  }
+
+  // Recompute the size estimate of `entry` after something was added
+  // to it.
+  public void update(Entry entry)
+  {
+    long bytes = 0;
+    if (entry.m_audio != null) {
+      bytes += entry.m_audio.numSamples() * Float.BYTES;
+    }
+    if (entry.m_history != null) {
+      bytes += entry.m_history.heapBytes();
+    }
+    if (entry.m_peakPyramid != null) {
+      for (int level=0; level < entry.m_peakPyramid.numLevels(); ++level) {
+        bytes += (long)entry.m_peakPyramid.numBlocks(level) * Float.BYTES;
+      }
+    }
+    for (SoundTable sounds : entry.m_sounds.values()) {
+      bytes += sounds.estimateBytes();
+    }
+    entry.m_bytes = bytes;
+    Metrics.RESIDENT_BYTES.set(totalBytes());
+  }
+
+  // Drop least recently used entries until the total is within the
+  // cap.
+  public void evict()
+  {
+    long total = totalBytes();
+    Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+    while (total > m_maxBytes && it.hasNext()) {
+      Map.Entry<String, Entry> e = it.next();
+      total -= e.getValue().m_bytes;
+      SoundEdit.progressReport("server: evicting " + e.getKey());
+      close(e.getValue());
+      it.remove();
+    }
+    Metrics.RESIDENT_BYTES.set(total);
+  }
+
+  // Drop all entries.
+  public void clear()
+  {
+    for (Entry e : m_entries.values()) {
+      close(e);
+    }
+    m_entries.clear();
+    Metrics.RESIDENT_BYTES.set(0);
+  }
+
+  public int numEntries()
+  {
+    return m_entries.size();
+  }
+
+  public long totalBytes()
+  {
+    long total = 0;
+    for (Entry e : m_entries.values()) {
+      total += e.m_bytes;
+    }
+    return total;
+  }
+
+  // ------------------------- Private methods -------------------------
+  // Release what `entry` holds outside the heap.
+  private static void close(Entry entry)
+  {
+    if (entry.m_history != null) {
+      try {
+        entry.m_history.close();
+      }
+      catch (IOException e) {
+        SoundEdit.progressReport("server: " + e.getMessage());
+      }
+    }
+  }
+}
+
+
+// EOF
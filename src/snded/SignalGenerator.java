@@ -0,0 +1,641 @@
+// SignalGenerator.java
+
+package snded;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Synthesizes test recordings and writes them to WAV files.
+//
+// A recording is a mix of:
+//
+//   * A noise floor, white or pink.
+//   * Steady sine tones.
+//   * Speech-like bursts: a fundamental with two harmonics, shaped
+//     into syllables by a raised-cosine envelope, separated by pauses.
+//   * Clicks: short, exponentially decaying sinusoids at known
+//     positions and frequencies.
+//
+// The positions of the clicks are written to a separate text file so
+// that detection results can be checked against them.
+//
+// The output is produced in blocks and streamed to the file, so the
+// recording can be far larger than memory.  To make long recordings
+// quick to produce, the oscillators are computed by recursive rotation
+// rather than calling `Math.sin` per sample, the noise comes from a
+// xorshift generator, and samples are packed into bytes directly.
+//
+// Everything is deterministic given the seed.  The noise is drawn from
+// a separate random sequence than the bursts and clicks, so changing
+// the noise settings does not move the clicks.
+//
+public class SignalGenerator {
+  // --------------------------- Public data ---------------------------
+  // Length of the recording in seconds.
+  public double m_duration_s = 60;
+
+  // Output format.  Samples are signed PCM, except that 8-bit samples
+  // are unsigned, as WAV requires.
+  public int m_frameRate = 48000;
+  public int m_bitsPerSample = 16;
+  public int m_numChannels = 1;
+
+  // Noise floor: "white", "pink" or "none", and its RMS level.  The
+  // noise is independent in each channel.
+  public String m_noise = "white";
+  public float m_noise_dB = -70.0f;
+
+  // Frequencies of steady tones, and the amplitude of each.
+  public float[] m_tones_Hz = new float[0];
+  public float m_tone_dB = -20.0f;
+
+  // Whether to include speech-like bursts, and their peak amplitude.
+  public boolean m_bursts = true;
+  public float m_burst_dB = -12.0f;
+
+  // Average number of clicks per second; zero for none.
+  public float m_clickRate_Hz = 0.2f;
+
+  // Initial amplitude and length of each click.
+  public float m_click_dB = -6.0f;
+  public float m_click_s = 0.002f;
+
+  // Frequencies of the clicks.  Each click uses one of these, chosen
+  // at random.
+  public float[] m_clickFreqs_Hz = new float[] { 6000.0f };
+
+  // Seed for the random sequences.
+  public long m_seed = 1;
+
+  // --------------------------- Public types --------------------------
+  // One injected click, as recorded in the ground-truth list.
+  public static class Click {
+    public long m_startFrame;
+    public long m_endFrame;         // Inclusive.
+    public double m_amplitude_dB;
+    public double m_freq_Hz;
+  }
+
+  // -------------------------- Private data ---------------------------
+  // Number of frames synthesized per block.
+  private static final int BLOCK_FRAMES = 65536;
+
+  // Mixed samples of the current block, interleaved, before
+  // conversion to bytes.
+  private double[] m_mix;
+
+  // Random sequences for noise and for events.
+  private Xorshift m_noiseRand;
+  private Xorshift m_eventRand;
+
+  // Per-channel state of the pink noise filter.
+  private double[][] m_pinkState;
+
+  // Scale factor that gives the noise its RMS level.
+  private double m_noiseScale;
+
+  // Tone oscillators and their amplitude.
+  private Oscillator[] m_tones;
+  private double m_toneAmplitude;
+
+  // Current burst as a frame range, its fundamental oscillator, and
+  // the oscillator driving its syllable envelope.
+  private long m_burstStart;
+  private long m_burstEnd;
+  private Oscillator m_burstFundamental;
+  private Oscillator m_syllable;
+
+  // Current click as a frame range, its oscillator, and its current
+  // and per-frame decay of amplitude.
+  private long m_clickStart;
+  private long m_clickEnd;
+  private Oscillator m_clickOsc;
+  private double m_clickAmplitude;
+  private double m_clickDecay;
+
+  // Clicks injected so far.
+  private List<Click> m_clicks = new ArrayList<Click>();
+
+  // ------------------------- Public methods --------------------------
+  // Initialize to defaults.
+  public SignalGenerator()
+  {}
+
+  // Initialize to defaults as overridden by what is in `argMap`.
+  public SignalGenerator(ArgMap argMap)
+  {
+    m_duration_s = argMap.getFloat("duration_s", (float)m_duration_s);
+    m_frameRate = argMap.getInt("rate_Hz", m_frameRate);
+    m_bitsPerSample = argMap.getInt("bits", m_bitsPerSample);
+    m_numChannels = argMap.getInt("channels", m_numChannels);
+
+    String noise = argMap.getOptionalString("noise");
+    if (noise != null) {
+      m_noise = noise;
+    }
+    m_noise_dB = argMap.getFloat("noise_dB", m_noise_dB);
+
+    m_tones_Hz = argMap.getFloatList("tone_Hz", m_tones_Hz);
+    m_tone_dB = argMap.getFloat("tone_dB", m_tone_dB);
+
+    m_bursts = argMap.getBoolean("bursts", m_bursts);
+    m_burst_dB = argMap.getFloat("burst_dB", m_burst_dB);
+
+    m_clickRate_Hz = argMap.getFloat("clickRate_Hz", m_clickRate_Hz);
+    m_click_dB = argMap.getFloat("click_dB", m_click_dB);
+    m_click_s = argMap.getFloat("click_s", m_click_s);
+    m_clickFreqs_Hz = argMap.getFloatList("clickFreq_Hz", m_clickFreqs_Hz);
+
+    m_seed = argMap.getInt("seed", (int)m_seed);
+  }
+
+  public long numFrames()
+  {
+    return (long)(m_duration_s * m_frameRate);
+  }
+
+  // Write the recording to `wavFname`, and the list of clicks to
+  // `clicksFname` (if not null).
+  public void generate(String wavFname, String clicksFname)
+    throws IOException
+  {
+    checkParams();
+    reset();
+
+    long numFrames = numFrames();
+    int bytesPerSample = (m_bitsPerSample + 7) / 8;
+    int frameSize = bytesPerSample * m_numChannels;
+
+    long dataBytes = numFrames * frameSize;
+    if (dataBytes > 0xFFFFFFFFL - 36) {
+      throw new RuntimeException(
+        "Recording would need " + dataBytes +
+        " bytes, which is too large for a WAV file.");
+    }
+
+    SoundEdit.progressReport("generating " + wavFname +
+      " (" + numFrames + " frames)");
+
+    byte[] block = new byte[BLOCK_FRAMES * frameSize];
+
+    // Report progress roughly every ten minutes of audio.
+    long progressPeriod_blocks =
+      Math.max(1, (600L * m_frameRate) / BLOCK_FRAMES);
+
+    try (OutputStream out = new FileOutputStream(wavFname)) {
+      writeWavHeader(out, dataBytes);
+
+      long blockNum = 0;
+      for (long start = 0; start < numFrames; start += BLOCK_FRAMES) {
+        if (blockNum++ % progressPeriod_blocks == 0) {
+          SoundEdit.progressReport("generate: frame " + start +
+            " of " + numFrames);
+        }
+
+        int n = (int)Math.min(BLOCK_FRAMES, numFrames - start);
+        synthesizeBlock(start, n, block);
+        out.write(block, 0, n * frameSize);
+      }
+    }
+
+    if (clicksFname != null) {
+      writeClicks(clicksFname);
+    }
+
+    SoundEdit.progressReport("wrote " + wavFname + " with " +
+      m_clicks.size() + " clicks");
+  }
+
+  // Clicks injected by the last call to `generate`.
+  public List<Click> getClicks()
+  {
+    return m_clicks;
+  }
+
+  // ------------------------- Private methods -------------------------
+  private void checkParams()
+  {
+    if (!(m_bitsPerSample == 8 || m_bitsPerSample == 16 ||
+          m_bitsPerSample == 24 || m_bitsPerSample == 32)) {
+      throw new RuntimeException(
+        "Bits per sample must be 8, 16, 24 or 32, not " + m_bitsPerSample);
+    }
+    if (m_numChannels < 1) {
+      throw new RuntimeException("There must be at least one channel.");
+    }
+    if (m_frameRate < 1) {
+      throw new RuntimeException("The sample rate must be positive.");
+    }
+    if (!(m_noise.equals("white") || m_noise.equals("pink") ||
+          m_noise.equals("none"))) {
+      throw new RuntimeException(
+        "Noise must be \"white\", \"pink\" or \"none\", not \"" +
+        m_noise + "\"");
+    }
+    if (m_clickRate_Hz > 0 && m_clickFreqs_Hz.length == 0) {
+      throw new RuntimeException("Clicks require at least one frequency.");
+    }
+  }
+
+  // Set up the synthesis state for a new recording.
+  private void reset()
+  {
+    m_noiseRand = new Xorshift(m_seed * 2 + 1);
+    m_eventRand = new Xorshift(m_seed * 2 + 2);
+    m_pinkState = new double[m_numChannels][3];
+    m_mix = new double[BLOCK_FRAMES * m_numChannels];
+    m_clicks.clear();
+
+    m_noiseScale = decibelsToAmplitude(m_noise_dB);
+    if (m_noise.equals("white")) {
+      // Uniform in [-1,1) has an RMS of 1/sqrt(3).
+      m_noiseScale *= Math.sqrt(3);
+    }
+    else if (m_noise.equals("pink")) {
+      m_noiseScale /= measurePinkRMS();
+    }
+
+    m_tones = new Oscillator[m_tones_Hz.length];
+    for (int i=0; i < m_tones.length; ++i) {
+      m_tones[i] = new Oscillator(m_tones_Hz[i] / m_frameRate, 0);
+    }
+    m_toneAmplitude = decibelsToAmplitude(m_tone_dB);
+
+    m_burstEnd = 0;
+    m_burstStart = Long.MAX_VALUE;
+    if (m_bursts) {
+      scheduleBurst(0);
+    }
+
+    m_clickEnd = 0;
+    m_clickStart = Long.MAX_VALUE;
+    if (m_clickRate_Hz > 0) {
+      scheduleClick(0);
+    }
+  }
+
+  // Synthesize `n` frames starting at `start` into `block`.
+  private void synthesizeBlock(long start, int n, byte[] block)
+  {
+    double burstAmplitude =
+      decibelsToAmplitude(m_burst_dB) / 1.75;     // Harmonics sum to 1.75.
+
+    int pos = 0;
+    for (int i=0; i < n; ++i) {
+      long f = start + i;
+      double common = 0;
+
+      for (Oscillator tone : m_tones) {
+        common += m_toneAmplitude * tone.m_sin;
+        tone.step();
+      }
+
+      if (f >= m_burstStart) {
+        if (f >= m_burstEnd) {
+          scheduleBurst(f);
+        }
+        else {
+          // Harmonics from the fundamental: sin 2w = 2 sin w cos w,
+          // and sin 3w = sin w (3 - 4 sin^2 w).
+          double s = m_burstFundamental.m_sin;
+          double c = m_burstFundamental.m_cos;
+          double voice = s + 0.5 * (2*s*c) + 0.25 * (s * (3 - 4*s*s));
+          double envelope = 0.5 * (1 - m_syllable.m_cos);
+          common += burstAmplitude * envelope * voice;
+          m_burstFundamental.step();
+          m_syllable.step();
+        }
+      }
+
+      if (f >= m_clickStart) {
+        if (f > m_clickEnd) {
+          scheduleClick(f);
+        }
+        else {
+          common += m_clickAmplitude * m_clickOsc.m_sin;
+          m_clickAmplitude *= m_clickDecay;
+          m_clickOsc.step();
+        }
+      }
+
+      for (int c=0; c < m_numChannels; ++c) {
+        m_mix[pos++] = common;
+      }
+    }
+
+    // Add the noise, separately for each channel.
+    int numSamples = n * m_numChannels;
+    if (m_noise.equals("white")) {
+      m_noiseRand.addSigned(m_mix, numSamples, m_noiseScale);
+    }
+    else if (m_noise.equals("pink")) {
+      for (int i=0; i < numSamples; ++i) {
+        m_mix[i] += m_noiseScale * nextPink(m_pinkState[i % m_numChannels]);
+      }
+    }
+
+    packSamples(numSamples, block);
+
+    // Keep rounding errors in the recursive oscillators from
+    // accumulating over long recordings.
+    for (Oscillator tone : m_tones) {
+      tone.normalize();
+    }
+    if (m_burstFundamental != null) {
+      m_burstFundamental.normalize();
+      m_syllable.normalize();
+    }
+  }
+
+  // Convert the first `numSamples` of `m_mix` to little-endian PCM in
+  // `block`.  Each sample size has its own loop, as this is the
+  // innermost loop of generation.
+  private void packSamples(int numSamples, byte[] block)
+  {
+    double fullScale = (double)((1L << (m_bitsPerSample - 1)) - 1);
+    double min = -fullScale - 1;
+
+    switch (m_bitsPerSample) {
+      case 8:
+        for (int i=0; i < numSamples; ++i) {
+          int s = (int)round(m_mix[i] * fullScale, min, fullScale);
+          block[i] = (byte)(s + 128);
+        }
+        break;
+
+      case 16:
+        for (int i=0; i < numSamples; ++i) {
+          int s = (int)round(m_mix[i] * fullScale, min, fullScale);
+          block[2*i] = (byte)s;
+          block[2*i+1] = (byte)(s >> 8);
+        }
+        break;
+
+      case 24:
+        for (int i=0; i < numSamples; ++i) {
+          int s = (int)round(m_mix[i] * fullScale, min, fullScale);
+          block[3*i] = (byte)s;
+          block[3*i+1] = (byte)(s >> 8);
+          block[3*i+2] = (byte)(s >> 16);
+        }
+        break;
+
+      default:
+        assert(m_bitsPerSample == 32);
+        for (int i=0; i < numSamples; ++i) {
+          long s = round(m_mix[i] * fullScale, min, fullScale);
+          block[4*i] = (byte)s;
+          block[4*i+1] = (byte)(s >> 8);
+          block[4*i+2] = (byte)(s >> 16);
+          block[4*i+3] = (byte)(s >> 24);
+        }
+        break;
+    }
+  }
+
+  // Round `v` to the nearest integer, clamped to [min,max], where
+  // `min` is negative.  Offsetting by `-min` makes the value
+  // non-negative so that a cast rounds it down, which avoids both the
+  // sign test of the usual rounding (a branch the processor can only
+  // guess at with noisy input) and the slower `Math.rint`.
+  private static long round(double v, double min, double max)
+  {
+    v = (v < min? min : v > max? max : v);
+    return (long)(v - min + 0.5) + (long)min;
+  }
+
+  // Pink noise using Paul Kellet's "economy" filter, which is accurate
+  // to within about 0.05 dB above 10 Hz at 44.1 kHz.  `state` holds the
+  // three filter poles.
+  private double nextPink(double[] state)
+  {
+    double white = m_noiseRand.nextSigned();
+    state[0] = 0.99765 * state[0] + white * 0.0990460;
+    state[1] = 0.96300 * state[1] + white * 0.2965164;
+    state[2] = 0.57000 * state[2] + white * 1.0526913;
+    return state[0] + state[1] + state[2] + white * 0.1848;
+  }
+
+  // Return the RMS of unscaled `nextPink` output, measured on a
+  // separate random sequence.
+  private double measurePinkRMS()
+  {
+    Xorshift saved = m_noiseRand;
+    m_noiseRand = new Xorshift(12345);
+
+    double[] state = new double[3];
+    double sumSquares = 0;
+    int n = 1 << 18;
+    for (int i=0; i < n; ++i) {
+      double v = nextPink(state);
+      sumSquares += v*v;
+    }
+
+    m_noiseRand = saved;
+    return Math.sqrt(sumSquares / n);
+  }
+
+  // Choose the next burst, starting after a pause following `f`.
+  // Bursts last 0.3 to 2.8 s, with pauses of 0.2 to 1.7 s, a voice
+  // pitch of 100 to 250 Hz, and syllables of 150 to 300 ms.
+  private void scheduleBurst(long f)
+  {
+    m_burstStart = f + (long)(m_frameRate * (0.2 + 1.5 * m_eventRand.nextUnit()));
+    m_burstEnd = m_burstStart +
+      (long)(m_frameRate * (0.3 + 2.5 * m_eventRand.nextUnit()));
+
+    double fundamental_Hz = 100 + 150 * m_eventRand.nextUnit();
+    double syllable_s = 0.15 + 0.15 * m_eventRand.nextUnit();
+    m_burstFundamental = new Oscillator(fundamental_Hz / m_frameRate, 0);
+    m_syllable = new Oscillator(1 / (syllable_s * m_frameRate), 0);
+  }
+
+  // Choose the next click, after a random interval following `f` with
+  // mean `1/m_clickRate_Hz`, and record it.
+  private void scheduleClick(long f)
+  {
+    double interval_s =
+      -Math.log(1 - m_eventRand.nextUnit()) / m_clickRate_Hz;
+    long length = Math.max(1, (long)(m_click_s * m_frameRate));
+
+    m_clickStart = f + 1 + (long)(interval_s * m_frameRate);
+    m_clickEnd = m_clickStart + length - 1;
+
+    double freq_Hz = m_clickFreqs_Hz[
+      (int)(m_eventRand.nextUnit() * m_clickFreqs_Hz.length)];
+    m_clickOsc = new Oscillator(freq_Hz / m_frameRate,
+      2 * Math.PI * m_eventRand.nextUnit());
+
+    // Decay by 60 dB over the length of the click.
+    m_clickAmplitude = decibelsToAmplitude(m_click_dB);
+    m_clickDecay = Math.pow(10, -3.0 / length);
+
+    if (m_clickStart < numFrames()) {
+      Click click = new Click();
+      click.m_startFrame = m_clickStart;
+      click.m_endFrame = Math.min(m_clickEnd, numFrames() - 1);
+      click.m_amplitude_dB = m_click_dB;
+      click.m_freq_Hz = freq_Hz;
+      m_clicks.add(click);
+    }
+  }
+
+  private void writeWavHeader(OutputStream out, long dataBytes)
+    throws IOException
+  {
+    int bytesPerSample = (m_bitsPerSample + 7) / 8;
+    int frameSize = bytesPerSample * m_numChannels;
+
+    byte[] header = new byte[44];
+    putTag(header, 0, "RIFF");
+    putLE(header, 4, 36 + dataBytes, 4);
+    putTag(header, 8, "WAVE");
+    putTag(header, 12, "fmt ");
+    putLE(header, 16, 16, 4);                   // fmt chunk size
+    putLE(header, 20, 1, 2);                    // PCM
+    putLE(header, 22, m_numChannels, 2);
+    putLE(header, 24, m_frameRate, 4);
+    putLE(header, 28, (long)m_frameRate * frameSize, 4);
+    putLE(header, 32, frameSize, 2);
+    putLE(header, 34, m_bitsPerSample, 2);
+    putTag(header, 36, "data");
+    putLE(header, 40, dataBytes, 4);
+
+    out.write(header);
+  }
+
+  private static void putTag(byte[] buf, int pos, String tag)
+  {
+    for (int i=0; i < 4; ++i) {
+      buf[pos+i] = (byte)tag.charAt(i);
+    }
+  }
+
+  private static void putLE(byte[] buf, int pos, long value, int numBytes)
+  {
+    for (int i=0; i < numBytes; ++i) {
+      buf[pos+i] = (byte)(value >> (8*i));
+    }
+  }
+
+  // Write the ground-truth click list, one click per line.
+  private void writeClicks(String fname)
+    throws IOException
+  {
+    try (PrintWriter pw = new PrintWriter(new File(fname), StandardCharsets.UTF_8)) {
+      pw.println("# startFrame endFrame start_s end_s amplitude_dB freq_Hz");
+      for (Click c : m_clicks) {
+        pw.format("%1$d %2$d %3$s %4$s %5$.3f %6$.1f\n",
+          c.m_startFrame,
+          c.m_endFrame,
+          Sound.framesToTimeString(c.m_startFrame, m_frameRate),
+          Sound.framesToTimeString(c.m_endFrame, m_frameRate),
+          c.m_amplitude_dB,
+          c.m_freq_Hz);
+      }
+    }
+  }
+
+  private static double decibelsToAmplitude(double dB)
+  {
+    return Math.pow(10, dB / 20);
+  }
+
+  // ------------------------- Private classes -------------------------
+  // Sinusoid computed by rotating a unit vector by a fixed angle each
+  // frame.
+  private static class Oscillator {
+    public double m_sin;
+    public double m_cos;
+
+    // Sine and cosine of the per-frame rotation.
+    private double m_stepSin;
+    private double m_stepCos;
+
+    // `cyclesPerFrame` is the frequency divided by the frame rate.
+    public Oscillator(double cyclesPerFrame, double phase)
+    {
+      m_sin = Math.sin(phase);
+      m_cos = Math.cos(phase);
+      m_stepSin = Math.sin(2 * Math.PI * cyclesPerFrame);
+      m_stepCos = Math.cos(2 * Math.PI * cyclesPerFrame);
+    }
+
+    public void step()
+    {
+      double s = m_sin * m_stepCos + m_cos * m_stepSin;
+      m_cos = m_cos * m_stepCos - m_sin * m_stepSin;
+      m_sin = s;
+    }
+
+    // Restore the vector to unit length.
+    public void normalize()
+    {
+      double len = Math.sqrt(m_sin * m_sin + m_cos * m_cos);
+      m_sin /= len;
+      m_cos /= len;
+    }
+  }
+
+  // The xorshift64* generator, which is much faster than
+  // `java.util.Random` and plenty good enough for noise.
+  private static class Xorshift {
+    private long m_state;
+
+    public Xorshift(long seed)
+    {
+      // Scramble the seed; the state must not be zero.
+      m_state = seed * 0x9E3779B97F4A7C15L;
+      if (m_state == 0) {
+        m_state = 1;
+      }
+    }
+
+    private long next()
+    {
+      m_state ^= m_state >>> 12;
+      m_state ^= m_state << 25;
+      m_state ^= m_state >>> 27;
+      return m_state * 0x2545F4914F6CDD1DL;
+    }
+
+    // Uniform in [0,1).
+    public double nextUnit()
+    {
+      return (next() >>> 11) * 0x1.0p-53;
+    }
+
+    // Uniform in [-1,1).
+    public double nextSigned()
+    {
+      return (next() >>> 11) * 0x1.0p-52 - 1.0;
+    }
+
+    // Add `scale` times successive `nextSigned` values to the first
+    // `n` elements of `dest`.  This is the same as calling
+    // `nextSigned` in a loop, but keeps the state in a local, which
+    // the JIT handles much better.
+    public void addSigned(double[] dest, int n, double scale)
+    {
+      long state = m_state;
+      for (int i=0; i < n; ++i) {
+        state ^= state >>> 12;
+        state ^= state << 25;
+        state ^= state >>> 27;
+        long r = state * 0x2545F4914F6CDD1DL;
+        dest[i] += scale * ((r >>> 11) * 0x1.0p-52 - 1.0);
+      }
+      m_state = state;
+    }
+  }
+}
+
+
+// EOF
@@ -6,6 +6,11 @@ package snded;
 // A segment of audio that has sufficient loudness to be considered a
 // discrete sound within the context of an analysis and transformation
 // that deals with sounds in a longer clip.
+//
+// Collections of sounds, along with their spectra and classification,
+// are stored in a `SoundTable`.  This class is used for individual
+// sounds, such as the one being accumulated during detection.
+//
 public class Sound {
   // --------------------------- Public data ---------------------------
   // The starting frame number of the sound.  This is the first frame
@@ -19,20 +24,12 @@ public class Sound {
   // The maximum loudness of any frame in the segment, in decibels.
   public double m_maxLoudness_dB;
 
-  // Power per frequency.  Might be null if not computed.
-  public PowerSpectrum m_powerSpectrum;
-
-  // Max power within coarse frequency groupings.  Might be null.
-  public BinnedPowerSpectrum m_binnedPowerSpectrum;
-
   // ------------------------- Public methods --------------------------
   public Sound(long startFrame, long endFrame, double maxLoudness_dB)
   {
     m_startFrame = startFrame;
     m_endFrame = endFrame;
     m_maxLoudness_dB = maxLoudness_dB;
-    m_powerSpectrum = null;
-    m_binnedPowerSpectrum = null;
   }
 
   // Number of frames in this sound.  Always positive.
@@ -71,54 +68,15 @@ public class Sound {
     }
   }
 
-  // Print sound details, including duration in seconds.
-  public void printWithDuration(
-    float frameRate,
-    SoundClassifier classifier)
-  {
-    assert(frameRate > 0);
-    float duration_s =
-      (float)frameDuration() / frameRate;
-
-    System.out.println("sound{");
-
-    System.out.println(
-      "  interval_s: (" + framesToTimeString(m_startFrame, frameRate) +
-      " " + framesToTimeString(m_endFrame, frameRate) + ")");
-
-    System.out.println(
-      "  duration_s: " + framesToTimeString(frameDuration(), frameRate));
-
-    System.out.format(
-      "  maxLoudness_dB: %1$.3f\n", m_maxLoudness_dB);
-
-    if (m_powerSpectrum != null) {
-      BinnedPowerSpectrum bps = new BinnedPowerSpectrum(m_powerSpectrum);
-
-      System.out.format(
-        "  excessLow_dB: %1$.3f\n", bps.getExcessLow_dB());
-
-      System.out.format(
-        "  likelyClick: %1$b\n", bps.getLikelyClick());
-    }
-
-    boolean retain =
-      classifier.shouldRetain(this, frameRate, true /*useSpectrum*/);
-    System.out.format(
-      "  retain: %1$b\n", retain);
-
-    System.out.println("}");
-  }
-
   // Return `frame` expressed as seconds.
-  public double framesToTime(long frames, double frameRate)
+  public static double framesToTime(long frames, double frameRate)
   {
     // Convert to seconds.
     return frames / frameRate;
   }
 
   // Return `frame` expressed as seconds, as a string.
-  public String framesToTimeString(long frames, double frameRate)
+  public static String framesToTimeString(long frames, double frameRate)
   {
     return String.format("%1$.3f", framesToTime(frames, frameRate));
   }
@@ -29,15 +29,24 @@ public class SoundClassifier {
       m_maxClickDuration_s);
   }
 
-  // Should we retain `sound`?  Returns false for sounds that are deemed
-  // to be clicks.  Takes the spectrum into account if `useSpectrum` is
-  // true and a spectrum has already been computed.
+  // True if the decision made by `shouldRetain` for sound `i` in
+  // `sounds` depends on its spectrum.  This is used to avoid computing
+  // spectra that would not be consulted.
+  public boolean needsSpectrum(SoundTable sounds, int i, double frameRate)
+  {
+    double dur_s = sounds.timeDuration(i, frameRate);
+    return m_minDuration_s <= dur_s && dur_s < m_maxClickDuration_s;
+  }
+
+  // Should we retain sound `i` in `sounds`?  Returns false for sounds
+  // that are deemed to be clicks.  Takes the spectrum into account if
+  // `useSpectrum` is true and a spectrum has already been computed.
   public boolean shouldRetain(
-    Sound sound, double frameRate, boolean useSpectrum)
+    SoundTable sounds, int i, double frameRate, boolean useSpectrum)
   {
-    assert(sound != null);
+    assert(sounds != null);
 
-    double dur_s = sound.timeDuration(frameRate);
+    double dur_s = sounds.timeDuration(i, frameRate);
     if (dur_s < m_minDuration_s) {
       // Too short.
       return false;
@@ -48,8 +57,8 @@ public class SoundClassifier {
       return true;
     }
 
-    if (useSpectrum && sound.m_binnedPowerSpectrum != null) {
-      return !sound.m_binnedPowerSpectrum.getLikelyClick();
+    if (useSpectrum && sounds.hasSpectrum(i)) {
+      return !sounds.getLikelyClick(i);
     }
     else {
       // With no spectrum to use, err on the side of retention.
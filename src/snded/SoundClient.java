@@ -0,0 +1,84 @@
+// SoundClient.java
+
+package snded;
+
+import util.Util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+
+// Thin client that forwards a command line to a `SoundServer`.
+//
+// The protocol, over a Unix domain socket, is:
+//
+//   Request: the working directory, the number of arguments, and each
+//   argument, written with `DataOutputStream` (`writeUTF`, `writeInt`).
+//
+//   Response: a sequence of frames, each a kind byte followed by:
+//
+//     FRAME_STDOUT, FRAME_STDERR: an int length, then that many bytes
+//     of output.
+//
+//     FRAME_EXIT: an int exit status.  This is the last frame.
+//
+public class SoundClient {
+  // Send `args` to the server at `socketPath`, copying its output to
+  // ours.  Return the command's exit status.
+  public static int run(String socketPath, String[] args)
+  {
+    try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+      channel.connect(UnixDomainSocketAddress.of(socketPath));
+
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel)));
+      out.writeUTF(new File("").getAbsolutePath());
+      out.writeInt(args.length);
+      for (String arg : args) {
+        out.writeUTF(arg);
+      }
+      out.flush();
+
+      DataInputStream in =
+        new DataInputStream(Channels.newInputStream(channel));
+      byte[] buf = new byte[8192];
+      while (true) {
+        int kind = in.readByte();
+        if (kind == SoundServer.FRAME_EXIT) {
+          System.out.flush();
+          return in.readInt();
+        }
+
+        PrintStream dest = (kind == SoundServer.FRAME_STDERR? System.err : System.out);
+        int len = in.readInt();
+        while (len > 0) {
+          int n = in.read(buf, 0, Math.min(len, buf.length));
+          if (n < 0) {
+            throw new IOException("server closed the connection");
+          }
+          dest.write(buf, 0, n);
+          len -= n;
+        }
+        if (kind == SoundServer.FRAME_STDERR) {
+          System.err.flush();
+        }
+      }
+    }
+    catch (IOException e) {
+      System.err.println("snded: server at " + socketPath + ": " +
+        Util.getExceptionMessage(e));
+      return 2;
+    }
+  }
+}
+
+
+// EOF
@@ -8,17 +8,157 @@ import util.Util;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
 
 // Simple sound editor.
 public class SoundEdit {
+  // -------------------------- Private data ---------------------------
+  // Name of the input file.
+  private String m_inputFname;
+
+  // Stream reading `m_inputFname`.  Its header has been parsed, but
+  // the sample data is only read when `m_audio` is first needed.
+  private AudioInputStream m_inputStream;
+
+  // Decoded contents of `m_inputStream`, or null if not decoded yet.
+  // Access this with `getAudio()`.
+  private AudioClip m_audio = null;
+
+  // Layout in which to store `m_audio` when decoding it, per the
+  // "layout" parameter.
+  private AudioClip.Layout m_layout;
+
+  // Peak summary of `m_audio`, or null if not built or loaded yet.
+  // Access this with `getPeakPyramid()`.
+  private PeakPyramid m_peakPyramid = null;
+
+  // When running in `SoundServer`, the store of resident clips, and
+  // the entry in it for this input, from which the above are taken
+  // and to which they are added.  Otherwise, both are null.
+  private ResidentClips m_residentClips;
+  private ResidentClips.Entry m_resident;
+
+  // If true, spread the analysis of this one input over the threads of
+  // the current `ForkJoinPool` (or the common pool).  See `BatchRunner`.
+  private boolean m_parallel;
+
+  // If true, `copyToFile` only records what to write, in the fields
+  // below, and `writeDeferred` writes it.  This lets `BatchRunner`
+  // write on a different thread than the one doing the analysis.
+  private boolean m_deferWrites = false;
+  private AudioClip m_deferredAudio = null;
+  private String m_deferredFname = null;
+
+  // Chooses how to run commands to fit in the memory budget, or null
+  // to always decode the input into the heap.
+  private MemoryPlanner m_planner = null;
+
+  // Versions of the input made by the editing commands ("gain",
+  // "undo", "redo", and "declick" with "edit"), or null if none has
+  // run.  Access this with `getHistory()`.  When running in
+  // `SoundServer`, this is kept in `m_resident` across commands.
+  private EditHistory m_history = null;
+
+  // Option that sets the memory budget for `MemoryPlanner`.
+  /*package*/ static final String MAX_MEMORY_OPTION = "--max-memory";
+
+  // Argument that separates the commands of a chain.
+  private static final String CHAIN_SEPARATOR = "--";
+
+  // Name of the manifest `exportSounds` writes.
+  private static final String EXPORT_MANIFEST_FNAME = "manifest.tsv";
+
+  // ------------------------- Private methods -------------------------
+  private SoundEdit(
+    String inputFname,
+    AudioInputStream inputStream,
+    ResidentClips residentClips,
+    boolean parallel)
+      throws IOException
+  {
+    m_inputFname = inputFname;
+    m_inputStream = inputStream;
+    m_parallel = parallel;
+    m_layout = AudioClip.defaultLayout(inputStream.getFormat().getChannels());
+
+    m_residentClips = residentClips;
+    if (residentClips != null) {
+      m_resident = residentClips.get(new File(inputFname));
+      m_audio = m_resident.m_audio;
+      m_peakPyramid = m_resident.m_peakPyramid;
+      m_history = m_resident.m_history;
+    }
+  }
+
+  // Get the decoded input, decoding it if necessary.  Commands that
+  // can be answered without the samples (for example, from the
+  // `AnalysisCache`) avoid the cost of decoding by not calling this.
+  private AudioClip getAudio()
+    throws IOException
+  {
+    if (m_audio == null) {
+      progressReport("reading " + m_inputFname);
+      m_audio = new AudioClip(m_inputStream, m_layout);
+      progressReport("finished reading " + m_inputFname);
+
+      if (m_resident != null) {
+        m_resident.m_audio = m_audio;
+        m_residentClips.update(m_resident);
+      }
+    }
+    return m_audio;
+  }
+
+  // Get the peak summary of the input, loading it from `cache` (if
+  // not null) or building it if necessary.
+  private PeakPyramid getPeakPyramid(AnalysisCache cache)
+    throws IOException
+  {
+    if (m_peakPyramid == null) {
+      String fileHash = null;
+      if (cache != null) {
+        fileHash = cache.getFileHash(new File(m_inputFname));
+        m_peakPyramid = cache.loadPeakPyramid(fileHash);
+        if (m_peakPyramid != null) {
+          progressReport("cache: using stored peak pyramid");
+        }
+      }
+
+      if (m_peakPyramid == null) {
+        AudioClip audio = getAudio();
+        progressReport("building peak pyramid");
+        try (Phases.Scope phase = Phases.begin("detect")) {
+          m_peakPyramid = new PeakPyramid(audio);
+          phase.addFrames(audio.numFrames());
+        }
+        if (cache != null) {
+          cache.storePeakPyramid(fileHash, m_peakPyramid);
+        }
+      }
+
+      if (m_resident != null) {
+        m_resident.m_peakPyramid = m_peakPyramid;
+        m_residentClips.update(m_resident);
+      }
+    }
+    return m_peakPyramid;
+  }
+
   // This does not use the `AudioClip` class because it directly
   // accesses the bytes, not the decoded samples.
   private void printBytes(AudioInputStream audio, int maxBytes)
@@ -26,9 +166,14 @@ public class SoundEdit {
   {
     AudioFormat fmt = audio.getFormat();
 
-    int numBytesAvail = audio.available();
-    byte[] bytes = new byte[numBytesAvail];
-    int numBytesRead = audio.read(bytes);
+    byte[] bytes;
+    int numBytesRead;
+    try (Phases.Scope phase = Phases.begin("read")) {
+      int numBytesAvail = audio.available();
+      bytes = new byte[numBytesAvail];
+      numBytesRead = audio.read(bytes);
+      phase.addBytes(numBytesRead);
+    }
 
     System.out.println("read " + numBytesRead + " bytes:");
 
@@ -74,133 +219,339 @@ public class SoundEdit {
   private void copyToFile(AudioClip audio, String outFname)
     throws IOException
   {
+    if (m_deferWrites) {
+      m_deferredAudio = audio;
+      m_deferredFname = outFname;
+      return;
+    }
+
     progressReport("writing " + outFname);
     audio.writeToFile(outFname);
     System.out.println("wrote " + outFname);
   }
 
-  // Attempt to identify discrete sounds in the input.
-  private List<Sound> findSounds(
+  // Attempt to identify discrete sounds in the input.  `pyramid`
+  // summarizes `audio`, and is used to skip quiet regions, unless
+  // `params` calls for the `EnvelopeDetector`, in which case `pyramid`
+  // may be null.
+  //
+  // This is package-accessible so the benchmarks can call it.
+  /*package*/ static SoundTable findSounds(
+    AudioClip audio,
+    SoundPartitionParams params,
+    PeakPyramid pyramid)
+  {
+    return findSounds(audio, params, pyramid, false /*parallel*/);
+  }
+
+  // Like the above, but if `parallel`, compute the spectra of the
+  // sounds in parallel.  The result is the same.
+  private static SoundTable findSounds(
     AudioClip audio,
-    SoundPartitionParams params)
+    SoundPartitionParams params,
+    PeakPyramid pyramid,
+    boolean parallel)
   {
     // This code is intended to work correctly with multi-channel data,
     // but I haven't actually tested with more than one.
     float frameRate = audio.getFrameRate();
-    int numChannels = audio.numChannels();
-    long numFrames = audio.numFrames();
-
-    int closenessThreshold_frames =
-      (int)(params.m_closenessThreshold_s * frameRate);
 
-    // Report progress every this many frames.
-    long progressPeriod_frames =
-      (long)(60.0 * audio.getFrameRate());
+    SoundPartitioner partitioner = new SoundPartitioner(
+      params.closenessThresholdFrames(frameRate));
 
-    // List of all discovered sounds.
-    List<Sound> sounds = new ArrayList<Sound>();
+    SoundTable sounds;
+    try (Phases.Scope phase = Phases.begin("detect")) {
+      if (params.m_envelopeRate_Hz > 0) {
+        EnvelopeDetector detector =
+          new EnvelopeDetector(audio, params.m_envelopeRate_Hz);
+        detector.partition(audio, params.m_loudnessThreshold_dB,
+          partitioner);
+      }
+      else {
+        // Visit every frame louder than the threshold, i.e., every
+        // frame whose maximum loudness over all channels exceeds it.
+        pyramid.forEachLoudFrame(audio, params.m_loudnessThreshold_dB,
+          partitioner::addLoudFrame);
+      }
 
-    // Non-null if we have a current sound being accumulated.
-    Sound curSound = null;
+      sounds = partitioner.finish();
+      phase.addFrames(audio.numFrames());
+    }
+    Metrics.SOUNDS_DETECTED.add(sounds.size());
 
-    for (int frameNum=0; frameNum < numFrames; ++frameNum) {
-      if (frameNum % progressPeriod_frames == 0) {
-        progressReport("findSounds: processing frame " + frameNum +
-                       " of " + audio.numFrames());
-      }
+    // Calculate the power spectra.
+    try (Phases.Scope phase = Phases.begin("spectra")) {
+      int totalSounds = sounds.size();
 
-      // Get maximum loudness over all channels.
-      double dB;
-      {
-        dB = audio.getFCDecibels(frameNum, 0);
-        for (int c=1; c < numChannels; ++c) {
-          dB = Math.max(dB, audio.getFCDecibels(frameNum, c));
+      if (parallel) {
+        progressReport("spectra: analyzing " + totalSounds +
+                       " sounds in parallel");
+
+        // `SoundTable` is not thread-safe, so only the computation is
+        // done in parallel.
+        BinnedPowerSpectrum[] spectra = new BinnedPowerSpectrum[totalSounds];
+        SoundTable s = sounds;
+        IntStream.range(0, totalSounds).parallel().forEach(i -> {
+          spectra[i] = computeSpectrum(audio,
+            s.getStartFrame(i), s.getEndFrame(i),
+            params.m_spectrumWindowSize);
+        });
+
+        for (int i=0; i < totalSounds; ++i) {
+          sounds.setSpectrum(i, spectra[i]);
+          phase.addFrames(sounds.frameDuration(i));
         }
       }
-
-      if (dB > params.m_loudnessThreshold_dB) {
-        // Continue the current sound?
-        if ((curSound != null) &&
-            frameNum - curSound.m_endFrame <= closenessThreshold_frames) {
-          curSound.extend(frameNum, dB);
-        }
-
-        else {
-          if (curSound != null) {
-            // Emit the current sound.
-            sounds.add(curSound);
+      else {
+        for (int i=0; i < totalSounds; ++i) {
+          if (i % 100 == 0) {
+            progressReport("spectra: analyzing sound " + i +
+                           " of " + totalSounds);
           }
 
-          // Start a new sound.
-          curSound = new Sound(frameNum, frameNum, dB);
+          sounds.setSpectrum(i, computeSpectrum(audio,
+            sounds.getStartFrame(i), sounds.getEndFrame(i),
+            params.m_spectrumWindowSize));
+          phase.addFrames(sounds.frameDuration(i));
         }
       }
     }
 
-    if (curSound != null) {
-      // Emit the final sound.
-      sounds.add(curSound);
-    }
+    return sounds;
+  }
 
-    // Calculate the power spectra.
-    {
-      int totalSounds = sounds.size();
-      int curSoundNum = 0;
+  // Compute the binned power spectrum of the frames in
+  // [startFrame,endFrame].
+  private static BinnedPowerSpectrum computeSpectrum(
+    AudioClip audio,
+    long startFrame,
+    long endFrame,
+    int windowSize)
+  {
+    return new BinnedPowerSpectrum(
+      new PowerSpectrum(audio, windowSize, startFrame, endFrame));
+  }
 
-      for (Sound s : sounds) {
-        if (curSoundNum % 100 == 0) {
-          progressReport("spectra: analyzing sound " + curSoundNum +
-                         " of " + totalSounds);
-        }
+  // Get the sounds in the input as computed by `findSounds`, but
+  // first consult `cache`, if it is not null, in case they were
+  // already computed by an earlier run.
+  private SoundTable getSounds(
+    SoundPartitionParams params,
+    AnalysisCache cache)
+      throws IOException
+  {
+    if (m_resident != null) {
+      SoundTable sounds = m_resident.m_sounds.get(params.getKeyString());
+      if (sounds != null) {
+        progressReport("using resident analysis");
+        return sounds;
+      }
+    }
 
-        s.m_powerSpectrum =
-          new PowerSpectrum(audio, 1024, s.m_startFrame, s.m_endFrame);
-        s.m_binnedPowerSpectrum =
-          new BinnedPowerSpectrum(s.m_powerSpectrum);
+    String key = null;
+    if (cache != null) {
+      key = cache.makeSoundsKey(new File(m_inputFname), params);
 
-        ++curSoundNum;
+      SoundTable sounds = cache.loadSounds(key);
+      if (sounds != null) {
+        progressReport("cache: using stored analysis " + key);
+        keepResident(params, sounds);
+        return sounds;
       }
     }
 
+    SoundTable sounds = findSounds(getAudio(), params,
+      params.m_envelopeRate_Hz > 0? null : getPeakPyramid(cache),
+      m_parallel);
+
+    if (cache != null) {
+      cache.storeSounds(key, sounds);
+    }
+
+    keepResident(params, sounds);
     return sounds;
   }
 
+  // If running in the server, keep `sounds`, found using `params`, for
+  // later commands.
+  private void keepResident(SoundPartitionParams params, SoundTable sounds)
+  {
+    if (m_resident != null) {
+      m_resident.m_sounds.put(params.getKeyString(), sounds);
+      m_residentClips.update(m_resident);
+    }
+  }
+
   // Print the sounds that `findSounds` finds.
   private void printSounds(
-    AudioClip audio,
     SoundPartitionParams params,
-    SoundClassifier classifier)
+    SoundClassifier classifier,
+    AnalysisCache cache)
+      throws IOException
   {
-    List<Sound> sounds = findSounds(audio, params);
+    SoundTable sounds = getSounds(params, cache);
+
+    // The frame rate is in the header, so get it from there rather
+    // than from the clip, which might not be decoded.
+    float frameRate = m_inputStream.getFormat().getFrameRate();
 
     // Here, we do not use the spectrum because I want to see all of
     // the detected sounds (of sufficient duration) and the retention
     // decision in order to evaluate the retention criteria.
-    sounds = filterSounds(sounds,
-      audio, classifier, false /*useSpectrum*/);
+    filterSounds(sounds,
+      frameRate, classifier, false /*useSpectrum*/);
 
-    for (Sound s : sounds) {
-      s.printWithDuration(audio.getFormat().getFrameRate(), classifier);
+    for (int i = sounds.nextRetained(0); i >= 0; i = sounds.nextRetained(i+1)) {
+      sounds.printWithDuration(i, frameRate, classifier);
     }
   }
 
-  // Filter `origSounds`, returning only those that `classifier` says
-  // to retain.
-  private List<Sound> filterSounds(
-    List<Sound> origSounds,
-    AudioClip audio,
+  // Filter `sounds`, marking as retained only those that `classifier`
+  // says to retain.
+  private void filterSounds(
+    SoundTable sounds,
+    float frameRate,
     SoundClassifier classifier,
     boolean useSpectrum)
   {
-    List<Sound> ret = new ArrayList<Sound>();
-
-    for (Sound s : origSounds) {
-      if (classifier.shouldRetain(s, audio.getFrameRate(), useSpectrum)) {
-        ret.add(s);
+    try (Phases.Scope phase = Phases.begin("classify")) {
+      for (int i=0; i < sounds.size(); ++i) {
+        AnalysisEvents.Classify event = new AnalysisEvents.Classify();
+        event.begin();
+
+        boolean retain =
+          classifier.shouldRetain(sounds, i, frameRate, useSpectrum);
+        sounds.setRetain(i, retain);
+
+        if (!retain && useSpectrum && sounds.hasSpectrum(i) &&
+            classifier.needsSpectrum(sounds, i, frameRate)) {
+          Metrics.SOUNDS_DISCARDED_AS_CLICKS.inc();
+        }
+        phase.addFrames(sounds.frameDuration(i));
+
+        if (event.shouldCommit()) {
+          event.soundIndex = i;
+          event.startFrame = sounds.getStartFrame(i);
+          event.endFrame = sounds.getEndFrame(i);
+          event.maxLoudness_dB = sounds.getMaxLoudness_dB(i);
+          event.usedSpectrum = useSpectrum && sounds.hasSpectrum(i) &&
+            classifier.needsSpectrum(sounds, i, frameRate);
+          event.likelyClick = sounds.hasSpectrum(i) && sounds.getLikelyClick(i);
+          event.retain = retain;
+          event.commit();
+        }
       }
     }
+  }
+
+  // Evaluate every combination of the given partition and classifier
+  // parameters, printing a table of the resulting sound counts and
+  // retained durations.
+  //
+  // The clip is decoded and scanned once.  The scan records every
+  // frame louder than the lowest loudness threshold, and each
+  // combination is then partitioned from that profile.  Spectra are
+  // only computed for sounds whose retention depends on them, and are
+  // shared among combinations that produce the same sound.
+  private void sweep(
+    float[] loudnessThresholds_dB,
+    float[] closenessThresholds_s,
+    float[] minDurations_s,
+    float[] maxClickDurations_s,
+    int windowSize,
+    AnalysisCache cache)
+      throws IOException
+  {
+    AudioClip audio = getAudio();
+    float frameRate = audio.getFrameRate();
 
-    return ret;
+    float floor_dB = loudnessThresholds_dB[0];
+    for (float dB : loudnessThresholds_dB) {
+      floor_dB = Math.min(floor_dB, dB);
+    }
+
+    progressReport("sweep: scanning for frames louder than " +
+                   floor_dB + " dB");
+    PeakPyramid pyramid = getPeakPyramid(cache);
+    LoudFrameProfile profile;
+    try (Phases.Scope phase = Phases.begin("detect")) {
+      profile = new LoudFrameProfile(audio, floor_dB, pyramid);
+      phase.addFrames(audio.numFrames());
+    }
+    progressReport("sweep: found " + profile.numLoudFrames() +
+                   " loud frames");
+
+    // Spectra computed so far, keyed by (start, end) frame.
+    Map<List<Long>, BinnedPowerSpectrum> spectra =
+      new HashMap<List<Long>, BinnedPowerSpectrum>();
+
+    System.out.println(
+      " loud_dB   close_s  duration_s  maxClick_s    sounds  retained  retained_s");
+    System.out.println(
+      "--------  --------  ----------  ----------  --------  --------  ----------");
+
+    for (float loud_dB : loudnessThresholds_dB) {
+      for (float close_s : closenessThresholds_s) {
+        SoundPartitionParams params = new SoundPartitionParams();
+        params.m_loudnessThreshold_dB = loud_dB;
+        params.m_closenessThreshold_s = close_s;
+
+        SoundTable sounds;
+        try (Phases.Scope phase = Phases.begin("detect")) {
+          sounds = profile.partition(
+            params.m_loudnessThreshold_dB,
+            params.closenessThresholdFrames(frameRate));
+          phase.addFrames(profile.numLoudFrames());
+        }
+
+        for (float minDuration_s : minDurations_s) {
+          for (float maxClick_s : maxClickDurations_s) {
+            SoundClassifier classifier = new SoundClassifier();
+            classifier.m_minDuration_s = minDuration_s;
+            classifier.m_maxClickDuration_s = maxClick_s;
+
+            int numRetained = 0;
+            long retainedFrames = 0;
+
+            try (Phases.Scope phase = Phases.begin("classify")) {
+              for (int i=0; i < sounds.size(); ++i) {
+                if (!sounds.hasSpectrum(i) &&
+                    classifier.needsSpectrum(sounds, i, frameRate)) {
+                  List<Long> key =
+                    List.of(sounds.getStartFrame(i), sounds.getEndFrame(i));
+                  BinnedPowerSpectrum bps = spectra.get(key);
+                  if (bps == null) {
+                    try (Phases.Scope spectraPhase = Phases.begin("spectra")) {
+                      bps = computeSpectrum(audio,
+                        sounds.getStartFrame(i), sounds.getEndFrame(i),
+                        windowSize);
+                      spectraPhase.addFrames(sounds.frameDuration(i));
+                    }
+                    spectra.put(key, bps);
+                  }
+                  sounds.setSpectrum(i, bps);
+                }
+
+                if (classifier.shouldRetain(sounds, i, frameRate, true /*useSpectrum*/)) {
+                  ++numRetained;
+                  retainedFrames += sounds.frameDuration(i);
+                }
+                phase.addFrames(sounds.frameDuration(i));
+              }
+            }
+
+            System.out.printf("%1$8.2f  %2$8.4f  %3$10.4f  %4$10.4f  %5$8d  %6$8d  %7$10.3f\n",
+              loud_dB,
+              close_s,
+              minDuration_s,
+              maxClick_s,
+              sounds.size(),
+              numRetained,
+              retainedFrames / (double)frameRate);
+          }
+        }
+      }
+    }
   }
 
   // Silence everything but identified sounds that are at least
@@ -218,94 +569,520 @@ public class SoundEdit {
   // the frame are scaled linearly.
   //
   private void declick(
-    AudioClip audio,
     String outFname,
     SoundPartitionParams params,
-    SoundClassifier classifier)
+    SoundClassifier classifier,
+    AnalysisCache cache)
       throws IOException
   {
-    int closenessThreshold_frames =
-      (int)(params.m_closenessThreshold_s * audio.getFrameRate());
+    // Even with a cache hit, we need the samples to modify them.
+    AudioClip audio = getAudio();
+    if (m_resident != null) {
+      // Leave the resident clip as it is for later commands.
+      audio = new AudioClip(audio);
+    }
 
-    // Report progress every this many frames.
-    long progressPeriod_frames =
-      (long)(60.0 * audio.getFrameRate());
+    // Frames per `RenderBlock` event, which is also how many frames are
+    // processed at a time.
+    final int renderBlock_frames = 65536;
+
+    DeclickRenderer renderer =
+      new DeclickRenderer(params, classifier, cache);
 
-    List<Sound> sounds = findSounds(audio, params);
+    // Process all the frames in the clip, a block at a time.
+    try (Phases.Scope phase = Phases.begin("render")) {
+      int numChannels = audio.numChannels();
+      long numFrames = audio.numFrames();
+      float[] block = new float[renderBlock_frames * numChannels];
+
+      for (long blockStart=0; blockStart < numFrames;
+           blockStart += renderBlock_frames) {
+        int blockFrames =
+          (int)Math.min(renderBlock_frames, numFrames - blockStart);
+
+        audio.readFrames(blockStart, blockFrames, block, 0);
+        renderer.edit(blockStart, blockFrames, block);
+        audio.writeFrames(blockStart, blockFrames, block, 0);
+      }
+      phase.addFrames(numFrames);
+    }
 
-    sounds = filterSounds(sounds,
-      audio, classifier, true /*useSpectrum*/);
+    // Write the result to the specified file.
+    copyToFile(audio, outFname);
+  }
 
-    Iterator<Sound> soundIter = sounds.iterator();
+  // Declick with `DeclickPipeline`, streaming the input.  If
+  // `checkpointFname` is not null, store a checkpoint there about
+  // every `checkpoint_s` seconds of input, and if `resume`, continue
+  // from the one already there.
+  private void declickStreaming(
+    String outFname,
+    SoundPartitionParams params,
+    SoundClassifier classifier,
+    String checkpointFname,
+    float checkpoint_s,
+    boolean resume)
+      throws IOException
+  {
+    DeclickPipeline pipeline =
+      new DeclickPipeline(m_inputStream, params, classifier, outFname);
+
+    if (checkpointFname != null) {
+      // A checkpoint only applies to the same input, output and
+      // parameters, so identify them all.
+      File input = new File(m_inputFname);
+      String jobKey = input.getAbsolutePath() + " " + input.length() + " " +
+        input.lastModified() + " " + new File(outFname).getAbsolutePath() +
+        " " + params.getKeyString() + " " +
+        Float.floatToIntBits(classifier.m_minDuration_s) + " " +
+        Float.floatToIntBits(classifier.m_maxClickDuration_s);
+      pipeline.enableCheckpoints(
+        new File(checkpointFname), checkpoint_s, jobKey, resume);
+    }
 
-    // Sound we are closest to, or null if none.
-    Sound curSound = (soundIter.hasNext()? soundIter.next() : null);
+    pipeline.run();
+    System.out.println("wrote " + outFname);
+  }
 
-    // Sound after that one, if any.
-    Sound nextSound = (soundIter.hasNext()? soundIter.next() : null);
+  // Write only the parts of the input around the retained sounds to
+  // `outFname`.  Each retained sound is kept with `pad_s` on either
+  // side, overlapping spans are merged, and consecutive spans are
+  // joined with a linear crossfade of `crossfade_s`.
+  private void truncate(
+    String outFname,
+    SoundPartitionParams params,
+    SoundClassifier classifier,
+    AnalysisCache cache,
+    float pad_s,
+    float crossfade_s)
+      throws IOException
+  {
+    AudioClip audio = getAudio();
+    float frameRate = audio.getFrameRate();
 
-    // Process all the frames in the clip.
-    for (long frameNum=0; frameNum < audio.numFrames(); ++frameNum) {
-      if (frameNum % progressPeriod_frames == 0) {
-        progressReport("declick: processing frame " + frameNum +
-                       " of " + audio.numFrames());
+    SoundTable sounds = getSounds(params, cache);
+    filterSounds(sounds, frameRate, classifier, true /*useSpectrum*/);
+
+    long pad_frames = (long)(pad_s * frameRate);
+    int crossfade_frames = (int)(crossfade_s * frameRate);
+
+    PieceTable input = new PieceTable(audio);
+    PieceTable output = input.copy(0, 0);
+    int numSpans = 0;
+
+    try (Phases.Scope phase = Phases.begin("render")) {
+      int i = sounds.nextRetained(0);
+      while (i >= 0) {
+        // Extend the span over the following sounds it overlaps.
+        long start = Math.max(0, sounds.getStartFrame(i) - pad_frames);
+        long end = sounds.getEndFrame(i) + 1 + pad_frames;
+        i = sounds.nextRetained(i+1);
+        while (i >= 0 && sounds.getStartFrame(i) - pad_frames <= end) {
+          end = Math.max(end, sounds.getEndFrame(i) + 1 + pad_frames);
+          i = sounds.nextRetained(i+1);
+        }
+        end = Math.min(end, input.numFrames());
+
+        appendWithCrossfade(output, input.copy(start, end),
+          crossfade_frames);
+        ++numSpans;
       }
+      phase.addFrames(output.numFrames());
+    }
+
+    System.out.println("kept " + numSpans + " spans, " +
+      output.numFrames() + " of " + input.numFrames() + " frames (" +
+      String.format("%.1f", 100.0 * output.numFrames() /
+                              Math.max(1, input.numFrames())) + "%)");
+
+    writeTable(output, outFname);
+  }
 
-      // Advance to next sound?
-      if (nextIsCloser(curSound, nextSound, frameNum)) {
-        // Yes.
-        curSound = nextSound;
-        nextSound = (soundIter.hasNext()? soundIter.next() : null);
+  // Append `next` to `output`, mixing the last `crossfade_frames` of
+  // `output` with the first of `next`, or fewer if either is shorter.
+  private static void appendWithCrossfade(
+    PieceTable output,
+    PieceTable next,
+    int crossfade_frames)
+  {
+    int n = (int)Math.min(crossfade_frames,
+      Math.min(output.numFrames(), next.numFrames()));
+    if (n == 0) {
+      output.concat(next);
+      return;
+    }
+
+    int numChannels = output.getFormat().getChannels();
+    float[] fadeOut = new float[n * numChannels];
+    float[] fadeIn = new float[n * numChannels];
+    output.cut(output.numFrames() - n, output.numFrames())
+      .readFrames(0, n, fadeOut, 0);
+    next.cut(0, n).readFrames(0, n, fadeIn, 0);
+
+    // Only the crossfade itself is new audio; everything else refers
+    // to the input.
+    float[] mixed = new float[n * numChannels];
+    for (int f=0; f < n; ++f) {
+      float w = (f + 0.5f) / n;
+      for (int c=0; c < numChannels; ++c) {
+        int s = f * numChannels + c;
+        mixed[s] = fadeOut[s] * (1 - w) + fadeIn[s] * w;
       }
+    }
 
-      // Amount by which to amplify the samples in this frame.
-      float amplification;
+    output.concat(new PieceTable(new AudioClip(output.getFormat(), mixed)));
+    output.concat(next);
+  }
 
-      if (curSound != null) {
-        long distance = curSound.distanceToEndpoint(frameNum);
-        if (distance < closenessThreshold_frames/2) {
-          // Retain full amplitude.
-          amplification = 1.0f;
-        }
-        else if (distance > closenessThreshold_frames) {
-          // Silence entirely.
-          amplification = 0.0f;
+  // Write each retained sound, with `pad_s` on either side, to its own
+  // WAV file in `outDir`, along with a manifest describing them.  The
+  // files are copied from a mapping of the input by `numThreads`
+  // writer threads.
+  private void exportSounds(
+    String outDir,
+    SoundPartitionParams params,
+    SoundClassifier classifier,
+    AnalysisCache cache,
+    float pad_s,
+    int numThreads)
+      throws IOException
+  {
+    float frameRate = m_inputStream.getFormat().getFrameRate();
+
+    SoundTable sounds = getSounds(params, cache);
+    filterSounds(sounds, frameRate, classifier, true /*useSpectrum*/);
+
+    File dir = new File(outDir);
+    dir.mkdirs();
+    if (!dir.isDirectory()) {
+      throw new RuntimeException("Cannot create directory " +
+        StringUtil.doubleQuote(outDir) + ".");
+    }
+
+    long pad_frames = (long)(pad_s * frameRate);
+    ExecutorService writers = Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> writes = new ArrayList<Future<?>>();
+
+    try (MappedWavFile source = new MappedWavFile(new File(m_inputFname));
+         PrintStream manifest = new PrintStream(
+           new File(dir, EXPORT_MANIFEST_FNAME))) {
+      manifest.print("file\tstartFrame\tnumFrames\tstart_s\tduration_s" +
+        "\tsoundStartFrame\tsoundNumFrames\tmaxLoudness_dB" +
+        "\texcessLow_dB");
+      for (int b=0; b < SoundTable.NUM_BINS; ++b) {
+        manifest.print("\tupTo" + (long)Math.pow(10, b+1) + "Hz_dB");
+      }
+      manifest.println();
+
+      int numExported = 0;
+      for (int i = sounds.nextRetained(0); i >= 0;
+           i = sounds.nextRetained(i+1)) {
+        long start = Math.max(0, sounds.getStartFrame(i) - pad_frames);
+        long end = Math.min(source.numFrames(),
+          sounds.getEndFrame(i) + 1 + pad_frames);
+
+        ++numExported;
+        String fname = String.format("sound-%05d.wav", numExported);
+        File outFile = new File(dir, fname);
+        writes.add(writers.submit(() -> {
+          try (Phases.Scope phase = Phases.begin("write")) {
+            source.writeFrames(start, end - start, outFile);
+            phase.addFrames(end - start);
+          }
+          return null;
+        }));
+
+        manifest.printf("%s\t%d\t%d\t%.6f\t%.6f\t%d\t%d\t%.3f",
+          fname, start, end - start,
+          start / (double)frameRate, (end - start) / (double)frameRate,
+          sounds.getStartFrame(i), sounds.frameDuration(i),
+          sounds.getMaxLoudness_dB(i));
+        if (sounds.hasSpectrum(i)) {
+          manifest.printf("\t%.3f", sounds.getExcessLow_dB(i));
+          for (int b=0; b < SoundTable.NUM_BINS; ++b) {
+            manifest.printf("\t%.3f", sounds.getBinDecibels(i, b));
+          }
         }
         else {
-          // Scale linearly.
-          amplification =
-            ((closenessThreshold_frames - distance) * 2) /
-            (float)closenessThreshold_frames;
+          manifest.print("\t".repeat(1 + SoundTable.NUM_BINS));
         }
+        manifest.println();
       }
-      else {
-        // Not near a sound, silence.
-        amplification = 0.0f;
+
+      for (Future<?> write : writes) {
+        try {
+          write.get();
+        }
+        catch (ExecutionException e) {
+          // Let errors such as assertion failures through as they are.
+          Throwable cause = e.getCause();
+          if (cause instanceof Error) {
+            throw (Error)cause;
+          }
+          throw new IOException("Writing an exported sound failed: " +
+            Util.getExceptionMessage((Exception)cause), cause);
+        }
+        catch (InterruptedException e) {
+          throw new IOException("Interrupted while exporting sounds.", e);
+        }
       }
 
-      for (int c=0; c < audio.numChannels(); ++c) {
-        audio.setFCSample(frameNum, c,
-          audio.getFCSample(frameNum, c) * amplification);
+      System.out.println("wrote " + numExported + " sounds and " +
+        EXPORT_MANIFEST_FNAME + " to " + outDir);
+    }
+    finally {
+      writers.shutdownNow();
+    }
+  }
+
+  // Write the part of the input in [`start_s`, `end_s`) to `outFname`.
+  // If `mapped`, copy it from a mapping of the input without decoding.
+  private void trim(
+    String outFname,
+    float start_s,
+    float end_s,
+    boolean mapped)
+      throws IOException
+  {
+    if (start_s > end_s) {
+      throw new RuntimeException("start_s is after end_s.");
+    }
+
+    if (mapped) {
+      try (MappedWavFile input = new MappedWavFile(new File(m_inputFname))) {
+        float frameRate = input.getFormat().getFrameRate();
+        long start = secondsToFrame(frameRate, input.numFrames(), start_s);
+        long end = secondsToFrame(frameRate, input.numFrames(), end_s);
+        writeMapped(input, start, end, outFname);
       }
+      return;
     }
 
-    // Write the result to the specified file.
-    copyToFile(audio, outFname);
+    PieceTable table = new PieceTable(getAudio());
+    long start = secondsToFrame(table, start_s);
+    long end = secondsToFrame(table, end_s);
+
+    table.cut(end, table.numFrames());
+    table.cut(0, start);
+    writeTable(table, outFname);
+  }
+
+  // Split the input at the times in `at_s`, writing the parts to files
+  // named after `outFname`.  See `usageString`.  If `mapped`, copy them
+  // from a mapping of the input without decoding.
+  private void split(String outFname, float[] at_s, boolean mapped)
+    throws IOException
+  {
+    if (at_s.length == 0) {
+      throw new RuntimeException("split requires at_s.");
+    }
+
+    float[] sorted = at_s.clone();
+    Arrays.sort(sorted);
+
+    if (mapped) {
+      try (MappedWavFile input = new MappedWavFile(new File(m_inputFname))) {
+        float frameRate = input.getFormat().getFrameRate();
+        long start = 0;
+        for (int i=0; i < sorted.length; ++i) {
+          long at = Math.max(start,
+            secondsToFrame(frameRate, input.numFrames(), sorted[i]));
+          writeMapped(input, start, at, partFname(outFname, i+1));
+          start = at;
+        }
+        writeMapped(input, start, input.numFrames(),
+          partFname(outFname, sorted.length+1));
+      }
+      return;
+    }
+
+    PieceTable rest = new PieceTable(getAudio());
+
+    long restStart = 0;
+    for (int i=0; i < sorted.length; ++i) {
+      long at = Math.max(restStart, secondsToFrame(rest, sorted[i]));
+      writeTable(rest.cut(0, at - restStart), partFname(outFname, i+1));
+      restStart = at;
+    }
+    writeTable(rest, partFname(outFname, sorted.length+1));
+  }
+
+  // Return the frame of `table` at `seconds`, clamped to its bounds.
+  private static long secondsToFrame(PieceTable table, float seconds)
+  {
+    return secondsToFrame(table.getFrameRate(), table.numFrames(), seconds);
+  }
+
+  // Return the frame at `seconds` in audio of `numFrames` at
+  // `frameRate`, clamped to its bounds.
+  private static long secondsToFrame(
+    float frameRate,
+    long numFrames,
+    float seconds)
+  {
+    long frame = (long)((double)seconds * frameRate);
+    return Math.max(0, Math.min(frame, numFrames));
+  }
+
+  // Return the name of part `n` written by `split`: "<base>-<n>.wav",
+  // where <base> is `outFname` without any ".wav" suffix.
+  private static String partFname(String outFname, int n)
+  {
+    String base = outFname;
+    if (base.toLowerCase().endsWith(".wav")) {
+      base = base.substring(0, base.length() - 4);
+    }
+    return base + "-" + n + ".wav";
+  }
+
+  private static void writeTable(PieceTable table, String outFname)
+    throws IOException
+  {
+    progressReport("writing " + outFname);
+    table.writeToFile(outFname);
+    System.out.println("wrote " + outFname + " (" + table.numFrames() +
+                       " frames)");
+  }
+
+  // Write frames [`start`, `end`) of `input` to `outFname`.
+  private static void writeMapped(
+    MappedWavFile input,
+    long start,
+    long end,
+    String outFname)
+      throws IOException
+  {
+    progressReport("writing " + outFname);
+    try (Phases.Scope phase = Phases.begin("write")) {
+      input.writeFrames(start, end - start, new File(outFname));
+      phase.addFrames(end - start);
+      phase.addBytes((end - start) * input.getFormat().getFrameSize());
+    }
+    System.out.println("wrote " + outFname + " (" + (end - start) +
+                       " frames)");
+  }
+
+  // Get the edit history of the input, starting one if necessary, and
+  // hold it to a budget of `maxBytes` for blocks of other versions.
+  private EditHistory getHistory(long maxBytes)
+    throws IOException
+  {
+    if (m_history == null) {
+      m_history = new EditHistory(getAudio(), maxBytes);
+      if (m_resident != null) {
+        m_resident.m_history = m_history;
+      }
+    }
+    else {
+      m_history.setMaxBytes(maxBytes);
+    }
+    return m_history;
+  }
+
+  // Make a new version of `history` with `editor`, described by
+  // `description`, and write it to `outFname` if that is not null.
+  private void applyEdit(
+    EditHistory history,
+    String description,
+    EditHistory.BlockEditor editor,
+    String outFname)
+      throws IOException
+  {
+    try (Phases.Scope phase = Phases.begin("render")) {
+      history.apply(description, editor);
+      phase.addFrames(history.numFrames());
+    }
+    finishEdit(history, outFname);
+  }
+
+  // Multiply every sample of the current version by `gain_dB`.
+  private void gain(EditHistory history, float gain_dB, String outFname)
+    throws IOException
+  {
+    float factor = (float)Math.pow(10.0, gain_dB / 20.0);
+    int numChannels = history.getFormat().getChannels();
+    applyEdit(history, "gain " + gain_dB + " dB",
+      (startFrame, numFrames, samples) -> {
+        if (factor == 1.0f) {
+          return false;
+        }
+        int numSamples = numFrames * numChannels;
+        for (int i=0; i < numSamples; ++i) {
+          samples[i] *= factor;
+        }
+        return true;
+      },
+      outFname);
+  }
+
+  // Step `history` back one version, or forward if `redo`.
+  private void undoOrRedo(EditHistory history, boolean redo, String outFname)
+    throws IOException
+  {
+    if (redo? history.redo() : history.undo()) {
+      finishEdit(history, outFname);
+    }
+    else {
+      throw new RuntimeException(redo? "Nothing to redo." : "Nothing to undo.");
+    }
+  }
+
+  // Report the current version of `history` after a change, and write
+  // it to `outFname` if that is not null.
+  private void finishEdit(EditHistory history, String outFname)
+    throws IOException
+  {
+    int v = history.currentVersion();
+    System.out.println("version " + v + " of " +
+      (history.numVersions() - 1) + ": " + history.getDescription(v));
+    printHistoryMemory(history);
+
+    if (m_resident != null) {
+      m_residentClips.update(m_resident);
+    }
+    if (outFname != null) {
+      writeTable(history.toPieceTable(), outFname);
+    }
+  }
+
+  // List the versions in `history`, marking the current one.
+  private static void printHistory(EditHistory history)
+  {
+    for (int v=0; v < history.numVersions(); ++v) {
+      System.out.println(
+        (v == history.currentVersion()? "* " : "  ") + v + ": " +
+        history.getDescription(v) +
+        (v == 0? "" : " (changed " + history.numChangedBlocks(v) +
+                      " of " + history.numBlocks() + " blocks)"));
+    }
+    printHistoryMemory(history);
+  }
+
+  private static void printHistoryMemory(EditHistory history)
+  {
+    System.out.println("history: " + (history.heapBytes() >> 20) +
+      " MB in memory, " + (history.spilledBytes() >> 20) + " MB spilled");
   }
 
   // Helper for `declick`.
-  private boolean nextIsCloser(Sound curSound, Sound nextSound, long frameNum)
+  private boolean nextIsCloser(
+    SoundTable sounds, int curSound, int nextSound, long frameNum)
   {
     return
-      curSound != null &&
-      nextSound != null &&
-      curSound.distanceToEndpoint(frameNum) > nextSound.distanceToEndpoint(frameNum);
+      curSound >= 0 &&
+      nextSound >= 0 &&
+      sounds.distanceToEndpoint(curSound, frameNum) >
+        sounds.distanceToEndpoint(nextSound, frameNum);
   }
 
   private void frequencyAnalysis(AudioClip audio, int windowSize)
   {
     // Compute the power spectrum.
-    PowerSpectrum ps = new PowerSpectrum(audio, windowSize);
+    PowerSpectrum ps;
+    try (Phases.Scope phase = Phases.begin("spectra")) {
+      ps = new PowerSpectrum(audio, windowSize);
+      phase.addFrames(audio.numFrames());
+    }
 
     // Print the frequency spectrum.
     System.out.printf("  freq       dB  dB stars\n");
@@ -333,19 +1110,64 @@ public class SoundEdit {
 
   private void frequencyAnalysisBins(AudioClip audio, int windowSize)
   {
-    PowerSpectrum ps = new PowerSpectrum(audio, windowSize);
-    new BinnedPowerSpectrum(ps).printBins();
+    BinnedPowerSpectrum bps;
+    try (Phases.Scope phase = Phases.begin("spectra")) {
+      bps = new BinnedPowerSpectrum(new PowerSpectrum(audio, windowSize));
+      phase.addFrames(audio.numFrames());
+    }
+    bps.printBins();
   }
 
   // Command line help string.
   private static final String usageString =
     """
-    usage: snded <file.wav> <command> [<params>]
+    usage: snded [--max-memory <size>] <file.wav> <command> [<params>]
+                 [-- <command> [<params>]]...
+           snded --server [socket:string] [maxClips_MB:int(1024)]
+                          [metricsPort:int]
 
     The <params> are a sequence of <name>:<value> pairs in any
     order.  Some have default values, indicated in parentheses,
     making them optional.
 
+    Several commands separated by "--" run in turn on the same file,
+    stopping at the first that fails, for example:
+
+      snded in.wav info -- sounds loud_dB:-50 -- declick out:o.wav
+
+    The input is decoded at most once for the whole chain, and the
+    sounds found, along with their spectra, are reused by later
+    commands with the same <loud_dB>, <close_s> and <windowSize>, as
+    is the edit history.  As in the server, commands that change the
+    samples work on a copy, so a chain needs more memory than its
+    commands run separately.  "batch" cannot be chained.
+
+    Every command also accepts [phases:string], where <phases> is
+    "table" or "json".  When given, the time, CPU time, throughput,
+    allocation and peak heap of each phase of the work (read, decode,
+    detect, spectra, classify, render, encode, write) are printed to
+    stderr at the end, as a table or as one JSON object per line.
+
+    Before running a command, the header of <file.wav> is read to
+    estimate the memory the command needs, and the way to run it is
+    chosen accordingly: decoding the input into memory, copying from
+    a memory mapping of it ("trim" and "split"), or streaming it
+    ("declick").  The choice and the estimate are printed to stderr.
+    If no way fits, the command fails without starting.  The budget
+    is <size>, such as 512m or 4g, which also becomes the JVM's
+    maximum heap size; without --max-memory, it is the default
+    maximum heap size.
+
+    Every command that decodes the input also accepts
+    [layout:string(auto)], which is "interleaved", "planar" or
+    "auto".  It says how to store the samples in memory: all channels
+    of each frame together, as in the file, or each channel
+    contiguously, which is meant for per-channel analysis of
+    recordings with many channels.  Planar decoding is slower, and
+    no analysis has yet been measured to be faster with it, so
+    "auto" chooses interleaved.  The output does not depend on the
+    layout.
+
     commands:
 
       info
@@ -366,6 +1188,9 @@ public class SoundEdit {
 
       sounds [loud_dB:float(-40)] [close_s:float(0.2)]
              [duration_s:float(0.09)] [maxClick_s:float(0.2)]
+             [windowSize:int(1024)]
+             [cache:string] [cacheMax_MB:int(256)]
+             [detector:string(pyramid)] [envelope_Hz:float(1000)]
 
         Report on the set of discrete sounds, where a "sound" has
         samples louder than <loud_dB> that are within <close_s>
@@ -375,10 +1200,35 @@ public class SoundEdit {
         Furthermore, if the duration is between <duration_s> and
         <maxClick_s>, then heuristically indicate whether to retain
         based on a frequency analysis, discarding high-frequency sounds.
+        The analysis uses a spectrum window of <windowSize> samples.
+
+        If <cache> is specified, it names a directory in which to store
+        the detected sounds and their spectra, keyed by the input file
+        contents, <loud_dB>, <close_s> and <windowSize>.  A later run
+        with the same values reuses them without decoding the input,
+        which is useful when only tuning <duration_s> and <maxClick_s>.
+        The directory also holds a summary of the peak amplitudes in
+        the input, which lets detection with other values skip over
+        regions that are too quiet to matter.
+        Least recently used entries are deleted once the directory
+        holds more than <cacheMax_MB> megabytes.
+
+        If <detector> is "envelope", sounds are found by first reducing
+        the input to a peak envelope with <envelope_Hz> points per
+        second, then examining the input at full resolution only near
+        the edges of loud envelope blocks.  The result is the same as
+        with the default "pyramid" detector, but can be much faster on
+        high sample rate input.
 
       declick [out:string]
               [loud_dB:float(-40)] [close_s:float(0.2)]
               [duration_s:float(0.09)] [maxClick_s:float(0.2)]
+              [windowSize:int(1024)]
+              [cache:string] [cacheMax_MB:int(256)]
+              [detector:string(pyramid)] [envelope_Hz:float(1000)]
+              [streaming:bool(auto)] [edit:bool(false)]
+              [checkpoint:string] [checkpoint_s:float(60)]
+              [resume:bool(false)]
 
         This is the main capability of this tool.
 
@@ -386,6 +1236,112 @@ public class SoundEdit {
         reports with "retain: false".  Write the modified output to
         <out> (a WAV file).
 
+        If <streaming> is true, process the input a block at a time,
+        with reading, decoding, detection, classification, rendering,
+        encoding and writing each on its own thread, concurrently.
+        The output is the same, but it can be faster, and needs memory
+        only for the blocks in flight, and those spanning the longest
+        sound, rather than the whole input.  This cannot be combined
+        with <cache>, and is ignored when the input is already in
+        memory (in "batch", or resident in the server).  By default,
+        streaming is used when decoding the input would not fit in the
+        memory budget (see --max-memory above).
+
+        If <checkpoint> is given, streaming is used, and about every
+        <checkpoint_s> seconds of input, the progress so far is saved
+        to the file <checkpoint>, after syncing the output written so
+        far to disk.  If the run is interrupted, running it again with
+        the same input, output and parameters and <resume> true
+        continues from the last checkpoint instead of the beginning,
+        producing the same output.  If there is no checkpoint, it
+        starts from the beginning.  The checkpoint is deleted once the
+        output is complete.  Output is only written, and so can only
+        be checkpointed, once the input falls below <loud_dB> for
+        <close_s>, so an input that never does gets no checkpoints,
+        and the whole of it is held in memory until the end.
+
+        If <edit> is true, silence the current version of the edit
+        history (see "gain" below) rather than the input, making a new
+        version, and write it to <out> if given.  The sounds are still
+        those detected in the input.
+
+      gain [gain_dB:float(0)] [out:string] [history_MB:int(256)]
+      undo [out:string] [history_MB:int(256)]
+      redo [out:string] [history_MB:int(256)]
+      history [history_MB:int(256)]
+
+        Edit the input in steps that can be undone.  "gain" multiplies
+        the current version by <gain_dB>, making a new version;
+        "undo" and "redo" step back and forth between versions, and a
+        new edit after an "undo" discards the versions undone.  Each
+        writes the resulting version to <out>, if given.  "history"
+        lists the versions.
+
+        Versions share the blocks of samples they have in common, so
+        each edit only takes memory for the blocks it changed.  Beyond
+        those of the current version, at most <history_MB> megabytes
+        of them are kept in memory; the rest are moved to a temporary
+        file until needed.  The history lasts as long as the process,
+        so these are mainly useful in the server, where it is kept
+        with the resident input.
+
+      truncate [out:string] [pad_s:float(0.05)] [crossfade_s:float(0.01)]
+               [loud_dB:float(-40)] [close_s:float(0.2)]
+               [duration_s:float(0.09)] [maxClick_s:float(0.2)]
+               [windowSize:int(1024)]
+               [cache:string] [cacheMax_MB:int(256)]
+               [detector:string(pyramid)] [envelope_Hz:float(1000)]
+
+        Like "declick", but rather than silencing what is not
+        retained, remove it.  Write to <out> only each retained sound
+        with <pad_s> seconds on either side, joining consecutive parts
+        with a crossfade of <crossfade_s> seconds.  The output is
+        copied from the input a block at a time.
+
+      export-sounds [out:string] [pad_s:float(0.05)] [threads:int(<CPUs>)]
+                    [loud_dB:float(-40)] [close_s:float(0.2)]
+                    [duration_s:float(0.09)] [maxClick_s:float(0.2)]
+                    [windowSize:int(1024)]
+                    [cache:string] [cacheMax_MB:int(256)]
+                    [detector:string(pyramid)] [envelope_Hz:float(1000)]
+
+        Write each sound that "sounds" would retain, with <pad_s>
+        seconds on either side, to its own WAV file in the directory
+        <out>, named "sound-00001.wav" and so on.  Also write there
+        "manifest.tsv", with a line for each file giving its start
+        and length in the input (in frames and seconds), the sound
+        within it, and the sound's loudness and spectrum.
+
+        The files are copied from a memory mapping of the input, in
+        its format, by <threads> writer threads.
+
+      trim [out:string] [start_s:float(0)] [end_s:float(Infinity)]
+
+        Write the part of the input from <start_s> up to <end_s>
+        seconds to <out>.
+
+      split [out:string] [at_s:floats]
+
+        Split the input at each of the times in <at_s>, in seconds,
+        and write the parts to "<out>-1.wav", "<out>-2.wav", etc.,
+        where a ".wav" suffix of <out> is removed first.
+
+        For WAV input, these copy the encoded frames from a memory
+        mapping of the input, without decoding it.  Otherwise, they
+        edit the decoded input as a sequence of pieces that refer to
+        it, and encode the output a block at a time, so they need no
+        memory beyond that of the input itself.
+
+      sweep [loud_dB:floats(-40)] [close_s:floats(0.2)]
+            [duration_s:floats(0.09)] [maxClick_s:floats(0.2)]
+            [windowSize:int(1024)]
+            [cache:string] [cacheMax_MB:int(256)]
+
+        Like "sounds", but each parameter is a comma-separated list of
+        values, and every combination is evaluated in one pass over
+        the input.  For each, print the number of sounds found, the
+        number retained, and the total duration of those retained.
+
       freq [windowSize:int(1024)]
 
         Print frequency spectrum.
@@ -394,49 +1350,218 @@ public class SoundEdit {
 
         Bin the frequency spectrum at 10x logarithmic intervals.
 
+      generate [duration_s:float(60)] [rate_Hz:int(48000)]
+               [bits:int(16)] [channels:int(1)]
+               [noise:string(white)] [noise_dB:float(-70)]
+               [tone_Hz:floats()] [tone_dB:float(-20)]
+               [bursts:bool(true)] [burst_dB:float(-12)]
+               [clickRate_Hz:float(0.2)] [click_dB:float(-6)]
+               [click_s:float(0.002)] [clickFreq_Hz:floats(6000)]
+               [seed:int(1)] [clicks:string(<file.wav>.clicks.txt)]
+
+        Unlike the other commands, <file.wav> is the output.  Write a
+        synthetic recording to it, consisting of a noise floor ("white",
+        "pink" or "none") at an RMS of <noise_dB>, steady sine tones,
+        speech-like bursts, and clicks at random intervals averaging
+        <clickRate_Hz> per second, each a decaying sinusoid at one of
+        the <clickFreq_Hz>.  Write the position of each click to
+        <clicks>.
+
+      batch out:string command:string
+            [threads:int(<cores>)] [maxClips:int(<2*threads>)]
+            [largeFile_MB:int(64)]
+            [journal:string(<out>/batch-journal.txt)] [metricsPort:int]
+            [<params of command>]
+
+        Unlike the other commands, <file.wav> is a directory, all of
+        whose WAV files are inputs, or a manifest file listing the
+        inputs, one per line.  Run <command>, "declick" or "sounds", on
+        each, with the remaining params, analyzing with <threads>
+        threads while others read and write files.  At most <maxClips>
+        files are in memory at once.  Inputs of at least <largeFile_MB>
+        megabytes are also analyzed with several threads.
+
+        For each input, write to <out> the declicked file or the
+        "sounds" report (<name>.sounds.txt), and a log of everything
+        else printed (<name>.log), where <name> is the input's path
+        relative to the directory or manifest.  A failure only affects
+        the file it happens in.  Files that succeed are recorded in
+        <journal>, and running the same batch again skips them unless
+        they, the command, or its parameters have changed.  If
+        <metricsPort> is given, serve metrics as for the server
+        (below) while the batch runs.
+
+    server:
+
+      With --server, run commands repeatedly, keeping decoded inputs
+      and their analyses in memory between them, up to <maxClips_MB>
+      in total (least recently used are dropped first).
+
+      With <socket>, listen on that Unix domain socket.  Then, when
+      the SNDED_SOCKET environment variable names the socket, "snded"
+      sends its command to the server instead of running it.
+
+      Otherwise, read commands from stdin, one per line, in the form
+      "<file.wav> <command> [<params>]".  After each command's output,
+      print "snded-exit: <status>".
+
+      With <metricsPort>, serve counters and histograms (files
+      processed, frames decoded, sounds detected and discarded as
+      clicks, spectra computed, queue depth, per-phase latency) in the
+      Prometheus text format at http://localhost:<metricsPort>/metrics.
+
     """;
 
-  private void parseCommand(AudioClip audio, String command, String[] args)
+  /*package*/ void parseCommand(String command, String[] args)
     throws IOException
   {
     // Parse the argument as "<name>:<value>" pairs.
     ArgMap argMap = new ArgMap(args);
+    parseLayout(argMap);
+
+    // How to run the command.  Once the input is in memory, that is
+    // the way.
+    MemoryPlanner.Mode mode = MemoryPlanner.Mode.IN_HEAP;
+    if (m_audio == null && m_planner != null) {
+      mode = m_planner.plan(command, argMap, new File(m_inputFname),
+        m_resident != null).m_mode;
+    }
 
     switch (command) {
+      case "bytes":
+        // This command is special because it operates on the stream
+        // directly.
+        printBytes(m_inputStream,
+          argMap.getInt("max", 10));
+        break;
+
       case "info":
-        printInfo(audio);
+        printInfo(getAudio());
         break;
 
       case "samples":
-        printSamples(audio,
+        printSamples(getAudio(),
           argMap.getInt("max", 10));
         break;
 
       case "copy":
-        copyToFile(audio,
+        copyToFile(getAudio(),
           argMap.getRequiredString("out"));
         break;
 
       case "sounds":
-        printSounds(audio,
+        printSounds(
           new SoundPartitionParams(argMap),
-          new SoundClassifier(argMap));
+          new SoundClassifier(argMap),
+          AnalysisCache.fromArgs(argMap));
         break;
 
       case "declick":
-        declick(audio,
+        if (argMap.getBoolean("edit", false)) {
+          EditHistory history =
+            getHistory((long)argMap.getInt("history_MB", EditHistory.DEFAULT_BUDGET_MB) << 20);
+          applyEdit(history, "declick",
+            new DeclickRenderer(
+              new SoundPartitionParams(argMap),
+              new SoundClassifier(argMap),
+              AnalysisCache.fromArgs(argMap)),
+            argMap.getOptionalString("out"));
+        }
+        else if (mode == MemoryPlanner.Mode.STREAMING) {
+          String checkpoint = argMap.getOptionalString("checkpoint");
+          declickStreaming(
+            argMap.getRequiredString("out"),
+            new SoundPartitionParams(argMap),
+            new SoundClassifier(argMap),
+            checkpoint,
+            checkpoint != null? argMap.getFloat("checkpoint_s", 60) : 0,
+            checkpoint != null && argMap.getBoolean("resume", false));
+        }
+        else if (argMap.getOptionalString("checkpoint") != null) {
+          throw new RuntimeException(
+            "Checkpoints need streaming declick, but the input is already in memory.");
+        }
+        else {
+          declick(
+            argMap.getRequiredString("out"),
+            new SoundPartitionParams(argMap),
+            new SoundClassifier(argMap),
+            AnalysisCache.fromArgs(argMap));
+        }
+        break;
+
+      case "gain":
+        gain(
+          getHistory((long)argMap.getInt("history_MB", EditHistory.DEFAULT_BUDGET_MB) << 20),
+          argMap.getFloat("gain_dB", 0),
+          argMap.getOptionalString("out"));
+        break;
+
+      case "undo":
+      case "redo":
+        undoOrRedo(
+          getHistory((long)argMap.getInt("history_MB", EditHistory.DEFAULT_BUDGET_MB) << 20),
+          command.equals("redo"),
+          argMap.getOptionalString("out"));
+        break;
+
+      case "history":
+        printHistory(
+          getHistory((long)argMap.getInt("history_MB", EditHistory.DEFAULT_BUDGET_MB) << 20));
+        break;
+
+      case "truncate":
+        truncate(
+          argMap.getRequiredString("out"),
+          new SoundPartitionParams(argMap),
+          new SoundClassifier(argMap),
+          AnalysisCache.fromArgs(argMap),
+          argMap.getFloat("pad_s", 0.05f),
+          argMap.getFloat("crossfade_s", 0.01f));
+        break;
+
+      case "export-sounds":
+        exportSounds(
           argMap.getRequiredString("out"),
           new SoundPartitionParams(argMap),
-          new SoundClassifier(argMap));
+          new SoundClassifier(argMap),
+          AnalysisCache.fromArgs(argMap),
+          argMap.getFloat("pad_s", 0.05f),
+          argMap.getInt("threads", Runtime.getRuntime().availableProcessors()));
+        break;
+
+      case "trim":
+        trim(
+          argMap.getRequiredString("out"),
+          argMap.getFloat("start_s", 0),
+          argMap.getFloat("end_s", Float.POSITIVE_INFINITY),
+          mode == MemoryPlanner.Mode.MAPPED);
+        break;
+
+      case "split":
+        split(
+          argMap.getRequiredString("out"),
+          argMap.getFloatList("at_s", new float[0]),
+          mode == MemoryPlanner.Mode.MAPPED);
+        break;
+
+      case "sweep":
+        sweep(
+          argMap.getFloatList("loud_dB", new float[] { -40.0f }),
+          argMap.getFloatList("close_s", new float[] { 0.2f }),
+          argMap.getFloatList("duration_s", new float[] { 0.09f }),
+          argMap.getFloatList("maxClick_s", new float[] { 0.2f }),
+          argMap.getInt("windowSize", 1024),
+          AnalysisCache.fromArgs(argMap));
         break;
 
       case "freq":
-        frequencyAnalysis(audio,
+        frequencyAnalysis(getAudio(),
           argMap.getInt("windowSize", 1024));
         break;
 
       case "freqBins":
-        frequencyAnalysisBins(audio,
+        frequencyAnalysisBins(getAudio(),
           argMap.getInt("windowSize", 1024));
         break;
 
@@ -447,44 +1572,375 @@ public class SoundEdit {
   }
 
   // Print a progress report to stderr saying what the program is doing.
-  private static void progressReport(String info)
+  /*package*/ static void progressReport(String info)
   {
     System.err.println(info);
   }
 
-  public static void main(String args[])
+  // Open `fname` for a later `parseCommand`.  The caller must `close`
+  // the result.  See `runFile` for the other parameters.
+  /*package*/ static SoundEdit open(
+    String fname,
+    ResidentClips residentClips,
+    boolean parallel)
+      throws IOException, UnsupportedAudioFileException
   {
-    SoundEdit se = new SoundEdit();
+    AudioInputStream ais = AudioSystem.getAudioInputStream(new File(fname));
     try {
+      return new SoundEdit(fname, ais, residentClips, parallel);
+    }
+    catch (IOException e) {
+      ais.close();
+      throw e;
+    }
+  }
+
+  /*package*/ void close()
+    throws IOException
+  {
+    m_inputStream.close();
+
+    // A resident history outlives this command.
+    if (m_history != null && m_resident == null) {
+      m_history.close();
+    }
+  }
+
+  // Decode the input now rather than when a command first needs it,
+  // in the layout requested by `args`, the arguments of that command.
+  /*package*/ void decode(String[] args)
+    throws IOException
+  {
+    parseLayout(new ArgMap(args));
+    getAudio();
+  }
+
+  // Set `m_layout` from the "layout" parameter in `argMap`, if present.
+  private void parseLayout(ArgMap argMap)
+  {
+    String layout = argMap.getOptionalString("layout");
+    if (layout == null || layout.equals("auto")) {
+      // Keep the default.
+    }
+    else if (layout.equals("interleaved")) {
+      m_layout = AudioClip.Layout.INTERLEAVED;
+    }
+    else if (layout.equals("planar")) {
+      m_layout = AudioClip.Layout.PLANAR;
+    }
+    else {
+      throw new RuntimeException(
+        "Unknown layout: " + StringUtil.doubleQuote(layout));
+    }
+  }
+
+  // Make later commands leave their output for `writeDeferred`.
+  /*package*/ void deferWrites()
+  {
+    m_deferWrites = true;
+  }
+
+  // Write what a command left to be written, if anything, and let go
+  // of the samples.
+  /*package*/ void writeDeferred()
+    throws IOException
+  {
+    AudioClip audio = m_deferredAudio;
+    m_deferredAudio = null;
+    m_audio = null;
+    m_peakPyramid = null;
+
+    if (audio != null) {
+      m_deferWrites = false;
+      copyToFile(audio, m_deferredFname);
+    }
+  }
+
+  // Run `command` with `cmdArgs` on the input file `fname`, using and
+  // adding to `residentClips` if it is not null.  If `parallel`, use
+  // several threads for the analysis.  If `planner` is not null, let it
+  // choose how to run the command.
+  /*package*/ static void runFile(
+    String fname,
+    String command,
+    String[] cmdArgs,
+    ResidentClips residentClips,
+    boolean parallel,
+    MemoryPlanner planner)
+      throws IOException, UnsupportedAudioFileException
+  {
+    SoundEdit se = open(fname, residentClips, parallel);
+    se.m_planner = planner;
+    try {
+      se.parseCommand(command, cmdArgs);
+    }
+    finally {
+      se.close();
+    }
+  }
+
+  // Run the command, or chain of commands, in `args`, using and adding
+  // to `residentClips` if it is not null.  Return the process exit
+  // status.
+  /*package*/ static int run(String args[], ResidentClips residentClips)
+  {
+    try {
+      // The memory budget option, if any, comes first.
+      String maxMemory = null;
+      if (args.length >= 2 && args[0].equals(MAX_MEMORY_OPTION)) {
+        maxMemory = args[1];
+        args = Arrays.copyOfRange(args, 2, args.length);
+      }
+
       if (args.length < 2) {
         System.err.print(usageString);
-        System.exit(2);
+        return 2;
       }
 
       String fname = args[0];
-      String command = args[1];
-      String[] cmdArgs = Arrays.copyOfRange(args, 2, args.length);
+      List<String[]> chain =
+        splitChain(Arrays.copyOfRange(args, 1, args.length));
+      if (chain == null) {
+        System.err.print(usageString);
+        return 2;
+      }
 
-      try (AudioInputStream ais = AudioSystem.getAudioInputStream(new File(fname))) {
-        // The "bytes" command is special because it operates on the
-        // stream directly.
-        if (command.equals("bytes")) {
-          ArgMap argMap = new ArgMap(cmdArgs);
-          se.printBytes(ais,
-            argMap.getInt("max", 10));
+      // This applies to every command.
+      String phases = null;
+      for (int i=0; i < chain.size() && phases == null; ++i) {
+        phases = new ArgMap(commandArgs(chain.get(i))).getOptionalString("phases");
+      }
+      Phases.enable(phases);
+
+      for (String[] commandLine : chain) {
+        if (commandLine[0].equals("batch") && chain.size() > 1) {
+          throw new RuntimeException(
+            "\"batch\" cannot be chained with other commands.");
         }
-        else {
-          // All other commands operate on the clip.
-          progressReport("reading " + fname);
-          AudioClip audio = new AudioClip(ais);
-          progressReport("finished reading " + fname);
-          se.parseCommand(audio, command, cmdArgs);
+      }
+
+      if (chain.get(0)[0].equals("batch")) {
+        // This command is special because it runs the others, and
+        // counts the files it processes in `Metrics` itself.
+        int status = new BatchRunner(fname, commandArgs(chain.get(0))).run();
+        Phases.report(System.err);
+        return status;
+      }
+
+      // The commands of a chain share the decoded input and what is
+      // found in it, kept the same way `SoundServer` keeps them across
+      // requests, unless this is running in the server already.
+      MemoryPlanner planner = MemoryPlanner.fromOption(maxMemory);
+      ResidentClips chainClips = null;
+      if (residentClips == null && chain.size() > 1) {
+        chainClips = new ResidentClips(planner.getMaxBytes());
+        residentClips = chainClips;
+      }
+
+      try {
+        for (String[] commandLine : chain) {
+          if (chain.size() > 1) {
+            progressReport("running " + String.join(" ", commandLine));
+          }
+          runCommand(fname, commandLine[0], commandArgs(commandLine),
+            residentClips, planner);
+        }
+      }
+      finally {
+        if (chainClips != null) {
+          chainClips.clear();
         }
       }
+
+      Phases.report(System.err);
+      Metrics.FILES_PROCESSED.inc();
+      return 0;
     }
     catch (Exception e) {
       System.err.println(Util.getExceptionMessage(e));
-      System.exit(2);
+      Metrics.FILES_FAILED.inc();
+      return 2;
+    }
+  }
+
+  // Run `command`, other than "batch", with `cmdArgs` on `fname`.  See
+  // `runFile` for the other parameters.
+  private static void runCommand(
+    String fname,
+    String command,
+    String[] cmdArgs,
+    ResidentClips residentClips,
+    MemoryPlanner planner)
+      throws IOException, UnsupportedAudioFileException
+  {
+    if (command.equals("generate")) {
+      // This command is special because the file is its output.
+      ArgMap argMap = new ArgMap(cmdArgs);
+      String clicksFname = argMap.getOptionalString("clicks");
+      new SignalGenerator(argMap).generate(fname,
+        clicksFname != null? clicksFname : fname + ".clicks.txt");
+    }
+    else {
+      runFile(fname, command, cmdArgs, residentClips, false /*parallel*/,
+        planner);
+    }
+  }
+
+  // Split `args`, the arguments after the file name, into commands
+  // separated by `CHAIN_SEPARATOR`, each a command name followed by
+  // its parameters.  Return null if any command is empty.
+  private static List<String[]> splitChain(String[] args)
+  {
+    List<String[]> chain = new ArrayList<String[]>();
+    int start = 0;
+    for (int i=0; i <= args.length; ++i) {
+      if (i == args.length || args[i].equals(CHAIN_SEPARATOR)) {
+        if (i == start) {
+          return null;
+        }
+        chain.add(Arrays.copyOfRange(args, start, i));
+        start = i+1;
+      }
+    }
+    return chain;
+  }
+
+  // Return the parameters of `commandLine`, a command name followed by
+  // its parameters.
+  private static String[] commandArgs(String[] commandLine)
+  {
+    return Arrays.copyOfRange(commandLine, 1, commandLine.length);
+  }
+
+  public static void main(String args[])
+  {
+    if (args.length >= 1 && args[0].equals("--server")) {
+      SoundServer.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+
+    // If a server is running, let it do the work.
+    String socket = System.getenv(SoundServer.SOCKET_ENV_VAR);
+    if (socket != null && new File(socket).exists()) {
+      System.exit(SoundClient.run(socket, args));
+    }
+
+    int status = run(args, null /*residentClips*/);
+    if (status != 0) {
+      System.exit(status);
+    }
+  }
+
+  // ------------------------- Private classes -------------------------
+  // Silences the frames of a block of the input that are not near a
+  // retained sound, as described at `declick`.  Blocks can be visited
+  // in any order, since the nearest sound is looked up at the start of
+  // each.
+  private class DeclickRenderer implements EditHistory.BlockEditor {
+    private SoundTable m_sounds;
+
+    private int m_closenessThreshold_frames;
+
+    // Report progress every this many frames.
+    private long m_progressPeriod_frames;
+
+    private long m_numFrames;
+
+    private int m_numChannels;
+
+    // Index of the retained sound we are closest to, or -1 if none.
+    private int m_curSound;
+
+    // Retained sound after that one, if any.
+    private int m_nextSound;
+
+    public DeclickRenderer(
+      SoundPartitionParams params,
+      SoundClassifier classifier,
+      AnalysisCache cache)
+        throws IOException
+    {
+      AudioClip audio = getAudio();
+      m_closenessThreshold_frames =
+        (int)(params.m_closenessThreshold_s * audio.getFrameRate());
+      m_progressPeriod_frames = (long)(60.0 * audio.getFrameRate());
+      m_numFrames = audio.numFrames();
+      m_numChannels = audio.numChannels();
+
+      m_sounds = getSounds(params, cache);
+      filterSounds(m_sounds,
+        audio.getFrameRate(), classifier, true /*useSpectrum*/);
+    }
+
+    @Override
+    public boolean edit(long blockStart, int blockFrames, float[] block)
+    {
+      AnalysisEvents.RenderBlock event = new AnalysisEvents.RenderBlock();
+      event.begin();
+      event.startFrame = blockStart;
+
+      // Within the block, the nearest sound only ever moves on to the
+      // next one.
+      m_curSound = m_sounds.findNearestRetained(blockStart);
+      m_nextSound =
+        (m_curSound >= 0? m_sounds.nextRetained(m_curSound+1) : -1);
+
+      boolean changed = false;
+      for (int i=0; i < blockFrames; ++i) {
+        long frameNum = blockStart + i;
+        if (frameNum % m_progressPeriod_frames == 0) {
+          progressReport("declick: processing frame " + frameNum +
+                         " of " + m_numFrames);
+        }
+
+        // Advance to next sound?
+        if (nextIsCloser(m_sounds, m_curSound, m_nextSound, frameNum)) {
+          // Yes.
+          m_curSound = m_nextSound;
+          m_nextSound = m_sounds.nextRetained(m_curSound+1);
+        }
+
+        // Amount by which to amplify the samples in this frame.
+        float amplification;
+
+        if (m_curSound >= 0) {
+          long distance = m_sounds.distanceToEndpoint(m_curSound, frameNum);
+          if (distance < m_closenessThreshold_frames/2) {
+            // Retain full amplitude.
+            amplification = 1.0f;
+          }
+          else if (distance > m_closenessThreshold_frames) {
+            // Silence entirely.
+            amplification = 0.0f;
+          }
+          else {
+            // Scale linearly.
+            amplification =
+              ((m_closenessThreshold_frames - distance) * 2) /
+              (float)m_closenessThreshold_frames;
+          }
+        }
+        else {
+          // Not near a sound, silence.
+          amplification = 0.0f;
+        }
+
+        if (amplification != 1.0f) {
+          int base = i * m_numChannels;
+          for (int c=0; c < m_numChannels; ++c) {
+            block[base + c] *= amplification;
+          }
+          changed = true;
+        }
+
+        if (amplification == 0.0f) {
+          event.silencedFrames++;
+        }
+      }
+
+      event.endFrame = blockStart + blockFrames;
+      event.commit();
+      return changed;
     }
   }
 }
@@ -2,6 +2,8 @@
 
 package snded;
 
+import util.StringUtil;
+
 
 // Class with the parameters used to partition an input audio clip into
 // discrete sounds that can then be individually assessed as part of
@@ -25,6 +27,16 @@ public class SoundPartitionParams {
   //
   public float m_closenessThreshold_s = 0.2f;
 
+  // Window size used when computing the power spectrum of each sound.
+  // See `PowerSpectrum.m_windowSize`.
+  public int m_spectrumWindowSize = 1024;
+
+  // If positive, detect sounds using `EnvelopeDetector` with an
+  // envelope of this many blocks per second.  Otherwise, use the
+  // `PeakPyramid`.  This only affects how the sounds are found, not
+  // which ones, so it is not part of `getKeyString()`.
+  public float m_envelopeRate_Hz = 0;
+
   // ------------------------- Public methods --------------------------
   // Initialize to defaults.
   public SoundPartitionParams()
@@ -38,6 +50,38 @@ public class SoundPartitionParams {
 
     m_closenessThreshold_s = argMap.getFloat("close_s",
       m_closenessThreshold_s);
+
+    m_spectrumWindowSize = argMap.getInt("windowSize",
+      m_spectrumWindowSize);
+
+    String detector = argMap.getOptionalString("detector");
+    if (detector == null || detector.equals("pyramid")) {
+      // Use the default.
+    }
+    else if (detector.equals("envelope")) {
+      m_envelopeRate_Hz = argMap.getFloat("envelope_Hz", 1000.0f);
+    }
+    else {
+      throw new RuntimeException(
+        "Unknown detector: " + StringUtil.doubleQuote(detector));
+    }
+  }
+
+  // Convert `m_closenessThreshold_s` to frames.
+  public int closenessThresholdFrames(float frameRate)
+  {
+    return (int)(m_closenessThreshold_s * frameRate);
+  }
+
+  // Return a string that uniquely identifies these parameter values,
+  // suitable for use as part of a cache key.  The float values are
+  // rendered exactly, as their bit patterns.
+  public String getKeyString()
+  {
+    return String.format("%1$08x-%2$08x-%3$d",
+      Float.floatToIntBits(m_loudnessThreshold_dB),
+      Float.floatToIntBits(m_closenessThreshold_s),
+      m_spectrumWindowSize);
   }
 }
 
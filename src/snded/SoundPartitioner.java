@@ -0,0 +1,70 @@
+// SoundPartitioner.java
+
+package snded;
+
+
+// Groups a sequence of loud frames into discrete `Sound`s.
+//
+// The frames must be supplied in increasing order.  A loud frame that
+// is within the closeness threshold of the end of the current sound
+// extends it; otherwise it starts a new one.  Frames that are not loud
+// do not need to be supplied at all, which is what allows the various
+// detectors to skip over quiet regions.
+//
+public class SoundPartitioner {
+  // -------------------------- Private data ---------------------------
+  // Maximum number of frames between loud frames in the same sound.
+  private int m_closenessThreshold_frames;
+
+  // Sounds that have been completed.
+  private SoundTable m_sounds = new SoundTable();
+
+  // Non-null if we have a current sound being accumulated.
+  private Sound m_curSound = null;
+
+  // ------------------------- Public methods --------------------------
+  public SoundPartitioner(int closenessThreshold_frames)
+  {
+    m_closenessThreshold_frames = closenessThreshold_frames;
+  }
+
+  public int getClosenessThresholdFrames()
+  {
+    return m_closenessThreshold_frames;
+  }
+
+  // Incorporate loud frame `frameNum`, whose loudness is `dB`.
+  public void addLoudFrame(long frameNum, double dB)
+  {
+    // Continue the current sound?
+    if ((m_curSound != null) &&
+        frameNum - m_curSound.m_endFrame <= m_closenessThreshold_frames) {
+      m_curSound.extend(frameNum, dB);
+    }
+
+    else {
+      if (m_curSound != null) {
+        // Emit the current sound.
+        m_sounds.add(m_curSound);
+      }
+
+      // Start a new sound.
+      m_curSound = new Sound(frameNum, frameNum, dB);
+    }
+  }
+
+  // Finish the final sound, if any, and return all of them.
+  public SoundTable finish()
+  {
+    if (m_curSound != null) {
+      // Emit the final sound.
+      m_sounds.add(m_curSound);
+      m_curSound = null;
+    }
+
+    return m_sounds;
+  }
+}
+
+
+// EOF
@@ -0,0 +1,302 @@
+// SoundServer.java
+
+package snded;
+
+import util.Util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+
+// Long-running server that executes `snded` commands, keeping decoded
+// clips and their analyses in memory between them.
+//
+// Interactive tuning means running many commands on the same input,
+// and each normally pays for JVM startup and decoding the whole file
+// before doing anything else.  The server pays those once per file.
+//
+// It accepts commands in one of two ways:
+//
+//   * On a Unix domain socket.  `SoundEdit.main` acts as a thin client
+//     when the environment variable named by `SOCKET_ENV_VAR` names an
+//     existing socket, so the usual command line works unchanged.  See
+//     `SoundClient` for the protocol.
+//
+//   * On stdin, one command per line, with the arguments separated by
+//     whitespace, exactly as they would follow "snded" on the command
+//     line.  The output goes to stdout, followed by a line
+//     "snded-exit: <status>".  This is convenient for driving the
+//     server from a script through a pipe.
+//
+// Commands run one at a time, in the order received.  Relative paths
+// are resolved against the client's working directory; that applies
+// to the input file and to the parameters in `PATH_PARAMS`.
+//
+public class SoundServer {
+  // --------------------------- Public data ---------------------------
+  // Environment variable with the path to the server's socket.
+  public static final String SOCKET_ENV_VAR = "SNDED_SOCKET";
+
+  // Kinds of frames in a socket response.  See `SoundClient`.
+  public static final int FRAME_EXIT = 0;
+  public static final int FRAME_STDOUT = 1;
+  public static final int FRAME_STDERR = 2;
+
+  // -------------------------- Private data ---------------------------
+  // Command parameters whose values are file names.
+  private static final Set<String> PATH_PARAMS =
+    Set.of("out", "cache", "clicks", "checkpoint", "journal");
+
+  // Clips and analyses kept between commands.
+  private ResidentClips m_clips;
+
+  // ------------------------- Public methods --------------------------
+  public SoundServer(long maxClipBytes)
+  {
+    m_clips = new ResidentClips(maxClipBytes);
+  }
+
+  // Accept connections on `socketPath` until killed.
+  public void serveSocket(Path socketPath)
+    throws IOException
+  {
+    // A socket file left by a server that was killed would make the
+    // bind fail.
+    Files.deleteIfExists(socketPath);
+
+    try (ServerSocketChannel server =
+           ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socketPath));
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        socketPath.toFile().delete();
+      }));
+
+      SoundEdit.progressReport("server: listening on " + socketPath);
+
+      while (true) {
+        try (SocketChannel channel = server.accept()) {
+          handleConnection(channel);
+        }
+        catch (IOException e) {
+          // The client went away; keep serving others.
+          SoundEdit.progressReport("server: " + Util.getExceptionMessage(e));
+        }
+      }
+    }
+  }
+
+  // Read commands from stdin until end of input.
+  public void serveStdin()
+    throws IOException
+  {
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    String cwd = new File("").getAbsolutePath();
+
+    BufferedReader reader =
+      new BufferedReader(new InputStreamReader(System.in));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+
+      int status = execute(cwd, line.split("\\s+"), stdout, stderr);
+      stdout.println("snded-exit: " + status);
+      stdout.flush();
+    }
+  }
+
+  // Usage: SoundServer [socket:string] [maxClips_MB:int(1024)]
+  //                    [metricsPort:int]
+  //
+  // Serves on `socket` if specified, otherwise stdin.  Serves metrics
+  // on `metricsPort` if specified.
+  public static void main(String args[])
+  {
+    try {
+      ArgMap argMap = new ArgMap(args);
+      String socket = argMap.getOptionalString("socket");
+      long maxClips_MB = argMap.getInt("maxClips_MB", 1024);
+      String metricsPort = argMap.getOptionalString("metricsPort");
+
+      if (metricsPort != null) {
+        Metrics.startServer(Integer.parseInt(metricsPort));
+      }
+
+      SoundServer server = new SoundServer(maxClips_MB << 20);
+      if (socket != null) {
+        server.serveSocket(Path.of(socket));
+      }
+      else {
+        server.serveStdin();
+        Metrics.stopServer();
+      }
+    }
+    catch (Exception e) {
+      System.err.println(Util.getExceptionMessage(e));
+      System.exit(2);
+    }
+  }
+
+  // ------------------------- Private methods -------------------------
+  // Read one command from `channel`, run it, and send back its output
+  // and status.
+  private void handleConnection(SocketChannel channel)
+    throws IOException
+  {
+    DataInputStream in =
+      new DataInputStream(Channels.newInputStream(channel));
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+    String cwd = in.readUTF();
+    String[] args = new String[in.readInt()];
+    for (int i=0; i < args.length; ++i) {
+      args[i] = in.readUTF();
+    }
+
+    PrintStream stdout = new PrintStream(
+      new BufferedOutputStream(new FrameOutputStream(out, FRAME_STDOUT)));
+    PrintStream stderr = new PrintStream(
+      new FrameOutputStream(out, FRAME_STDERR), true /*autoFlush*/);
+
+    int status = execute(cwd, args, stdout, stderr);
+
+    stdout.flush();
+    stderr.flush();
+    out.writeByte(FRAME_EXIT);
+    out.writeInt(status);
+    out.flush();
+  }
+
+  // Run the command in `args` from a client in `cwd`, sending its
+  // output to `stdout` and `stderr`.  Return its exit status.
+  private int execute(
+    String cwd,
+    String[] args,
+    PrintStream stdout,
+    PrintStream stderr)
+  {
+    SoundEdit.progressReport("server: running " + String.join(" ", args));
+
+    // The commands print to `System.out` and `System.err`, so point
+    // those at the client while this one runs.
+    PrintStream savedOut = System.out;
+    PrintStream savedErr = System.err;
+    System.setOut(stdout);
+    System.setErr(stderr);
+
+    Metrics.QUEUE_DEPTH.add(1);
+
+    int status;
+    try {
+      status = SoundEdit.run(resolvePaths(cwd, args), m_clips);
+    }
+    catch (Throwable t) {
+      // Keep the server alive through assertion failures and the like.
+      stderr.println(t);
+      status = 2;
+    }
+    finally {
+      stdout.flush();
+      System.setOut(savedOut);
+      System.setErr(savedErr);
+      Metrics.QUEUE_DEPTH.add(-1);
+    }
+
+    m_clips.evict();
+    SoundEdit.progressReport("server: finished with status " + status +
+      "; resident: " + m_clips.numEntries() + " files, " +
+      (m_clips.totalBytes() >> 20) + " MB");
+    return status;
+  }
+
+  // Return a copy of `args` with the relative file names made
+  // absolute with respect to `cwd`.
+  private static String[] resolvePaths(String cwd, String[] args)
+  {
+    String[] ret = args.clone();
+
+    // Skip the memory budget option, if present.
+    int first = 0;
+    if (ret.length >= 2 && ret[0].equals(SoundEdit.MAX_MEMORY_OPTION)) {
+      first = 2;
+    }
+
+    if (ret.length >= first + 1) {
+      ret[first] = resolvePath(cwd, ret[first]);
+    }
+    for (int i = first + 2; i < ret.length; ++i) {
+      int colon = ret[i].indexOf(':');
+      if (colon > 0 && PATH_PARAMS.contains(ret[i].substring(0, colon))) {
+        ret[i] = ret[i].substring(0, colon+1) +
+          resolvePath(cwd, ret[i].substring(colon+1));
+      }
+    }
+    return ret;
+  }
+
+  private static String resolvePath(String cwd, String fname)
+  {
+    File f = new File(fname);
+    return f.isAbsolute()? fname : new File(cwd, fname).getPath();
+  }
+
+  // ------------------------- Private classes -------------------------
+  // Stream that sends what is written to it as frames of one kind.
+  private static class FrameOutputStream extends OutputStream {
+    private DataOutputStream m_out;
+    private int m_kind;
+
+    public FrameOutputStream(DataOutputStream out, int kind)
+    {
+      m_out = out;
+      m_kind = kind;
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (len > 0) {
+        m_out.writeByte(m_kind);
+        m_out.writeInt(len);
+        m_out.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush()
+      throws IOException
+    {
+      m_out.flush();
+    }
+  }
+}
+
+
+// EOF
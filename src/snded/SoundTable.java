@@ -0,0 +1,288 @@
+// SoundTable.java
+
+package snded;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+// A sequence of sounds, stored as parallel primitive arrays.
+//
+// Noisy recordings can yield hundreds of thousands of sounds, and
+// representing each as a `Sound` object with its own spectrum objects
+// costs a lot of heap and GC time.  This class instead stores each
+// attribute in its own array, indexed by sound number, and keeps only
+// the binned spectrum.
+//
+// Sounds are added in increasing frame order and do not overlap, so
+// they can be looked up by frame number with a binary search.
+//
+public class SoundTable {
+  // --------------------------- Public data ---------------------------
+  // Number of spectrum bins stored per sound.  This is what
+  // `BinnedPowerSpectrum` computes.
+  public static final int NUM_BINS = 5;
+
+  // -------------------------- Private data ---------------------------
+  // Number of sounds.
+  private int m_size = 0;
+
+  // For each sound, its first and last loud frames, as in
+  // `Sound.m_startFrame` and `Sound.m_endFrame`.
+  private long[] m_startFrames;
+  private long[] m_endFrames;
+
+  // For each sound, `Sound.m_maxLoudness_dB`.
+  private double[] m_maxLoudness_dB;
+
+  // For each sound, `NUM_BINS` consecutive elements with the maximum
+  // decibels in each bin of its spectrum.  Only meaningful if the
+  // corresponding bit in `m_hasSpectrum` is set.
+  private float[] m_binDecibels;
+
+  // For each sound, `BinnedPowerSpectrum.getExcessLow_dB()`.  This is
+  // kept at full precision (rather than recomputed from the float bins)
+  // because the click classification depends on its sign.
+  private double[] m_excessLow_dB;
+
+  // Set of sounds for which a spectrum has been recorded.
+  private BitSet m_hasSpectrum = new BitSet();
+
+  // Set of sounds that the classifier has decided to retain.  See
+  // `SoundEdit.filterSounds`.
+  private BitSet m_retain = new BitSet();
+
+  // ------------------------- Public methods --------------------------
+  public SoundTable()
+  {
+    this(16);
+  }
+
+  public SoundTable(int initialCapacity)
+  {
+    initialCapacity = Math.max(1, initialCapacity);
+    m_startFrames = new long[initialCapacity];
+    m_endFrames = new long[initialCapacity];
+    m_maxLoudness_dB = new double[initialCapacity];
+    m_binDecibels = new float[initialCapacity * NUM_BINS];
+    m_excessLow_dB = new double[initialCapacity];
+  }
+
+  // Number of sounds.
+  public int size()
+  {
+    return m_size;
+  }
+
+  // Append a sound, returning its index.  It must start after the end
+  // of the previous sound.
+  public int add(long startFrame, long endFrame, double maxLoudness_dB)
+  {
+    assert(startFrame <= endFrame);
+    assert(m_size == 0 || m_endFrames[m_size-1] < startFrame);
+
+    if (m_size == m_startFrames.length) {
+      int newCapacity = m_size * 2;
+      m_startFrames = Arrays.copyOf(m_startFrames, newCapacity);
+      m_endFrames = Arrays.copyOf(m_endFrames, newCapacity);
+      m_maxLoudness_dB = Arrays.copyOf(m_maxLoudness_dB, newCapacity);
+      m_binDecibels = Arrays.copyOf(m_binDecibels, newCapacity * NUM_BINS);
+      m_excessLow_dB = Arrays.copyOf(m_excessLow_dB, newCapacity);
+    }
+
+    m_startFrames[m_size] = startFrame;
+    m_endFrames[m_size] = endFrame;
+    m_maxLoudness_dB[m_size] = maxLoudness_dB;
+    return m_size++;
+  }
+
+  // Append `s`, returning its index.
+  public int add(Sound s)
+  {
+    return add(s.m_startFrame, s.m_endFrame, s.m_maxLoudness_dB);
+  }
+
+  public long getStartFrame(int i)
+  {
+    return m_startFrames[i];
+  }
+
+  public long getEndFrame(int i)
+  {
+    return m_endFrames[i];
+  }
+
+  public double getMaxLoudness_dB(int i)
+  {
+    return m_maxLoudness_dB[i];
+  }
+
+  // Number of frames in sound `i`.  Always positive.
+  public long frameDuration(int i)
+  {
+    return m_endFrames[i] - m_startFrames[i] + 1;
+  }
+
+  public double timeDuration(int i, double frameRate)
+  {
+    return Sound.framesToTime(frameDuration(i), frameRate);
+  }
+
+  // Return the distance from `frameNum` to the nearest endpoint of
+  // sound `i`, as in `Sound.distanceToEndpoint`.
+  public long distanceToEndpoint(int i, long frameNum)
+  {
+    if (frameNum < m_startFrames[i]) {
+      return m_startFrames[i] - frameNum;
+    }
+    else if (frameNum > m_endFrames[i]) {
+      return frameNum - m_endFrames[i];
+    }
+    else {
+      return 0;
+    }
+  }
+
+  // Return the index of the retained sound nearest to `frameNum`, or
+  // -1 if none is retained.  If two are equally near, return the
+  // earlier one.
+  public int findNearestRetained(long frameNum)
+  {
+    // Find the last sound that starts at or before `frameNum`.
+    int i = Arrays.binarySearch(m_startFrames, 0, m_size, frameNum);
+    if (i < 0) {
+      // Not found; `-i-1` is the insertion point.
+      i = -i - 2;
+    }
+
+    // Sounds do not overlap, so the nearest retained one is either the
+    // last retained one starting at or before `frameNum`, or the first
+    // starting after it.
+    int before = (i >= 0? m_retain.previousSetBit(i) : -1);
+    int after = nextRetained(i+1);
+    if (before < 0) {
+      return after;
+    }
+    if (after >= 0 &&
+        distanceToEndpoint(after, frameNum) < distanceToEndpoint(before, frameNum)) {
+      return after;
+    }
+    return before;
+  }
+
+  // Record the binned spectrum of sound `i`.
+  public void setSpectrum(int i, BinnedPowerSpectrum bps)
+  {
+    assert(bps.numBins() == NUM_BINS);
+    for (int b=0; b < NUM_BINS; ++b) {
+      m_binDecibels[i*NUM_BINS + b] = (float)bps.getMaxForBin(b);
+    }
+    m_excessLow_dB[i] = bps.getExcessLow_dB();
+    m_hasSpectrum.set(i);
+  }
+
+  // Record the spectrum of sound `i` from its stored representation.
+  public void setSpectrum(int i, float[] binDecibels, double excessLow_dB)
+  {
+    System.arraycopy(binDecibels, 0, m_binDecibels, i*NUM_BINS, NUM_BINS);
+    m_excessLow_dB[i] = excessLow_dB;
+    m_hasSpectrum.set(i);
+  }
+
+  public boolean hasSpectrum(int i)
+  {
+    return m_hasSpectrum.get(i);
+  }
+
+  // Maximum decibels in `bin` of the spectrum of sound `i`.  Requires
+  // `hasSpectrum(i)`.
+  public float getBinDecibels(int i, int bin)
+  {
+    assert(hasSpectrum(i));
+    return m_binDecibels[i*NUM_BINS + bin];
+  }
+
+  // See `BinnedPowerSpectrum.getExcessLow_dB`.  Requires
+  // `hasSpectrum(i)`.
+  public double getExcessLow_dB(int i)
+  {
+    assert(hasSpectrum(i));
+    return m_excessLow_dB[i];
+  }
+
+  // See `BinnedPowerSpectrum.getLikelyClick`.  Requires
+  // `hasSpectrum(i)`.
+  public boolean getLikelyClick(int i)
+  {
+    return getExcessLow_dB(i) < 0;
+  }
+
+  public boolean getRetain(int i)
+  {
+    return m_retain.get(i);
+  }
+
+  public void setRetain(int i, boolean retain)
+  {
+    m_retain.set(i, retain);
+  }
+
+  // Index of the first retained sound at or after `i`, or -1 if none.
+  public int nextRetained(int i)
+  {
+    int ret = m_retain.nextSetBit(i);
+    return ret < m_size? ret : -1;
+  }
+
+  // Number of retained sounds.
+  public int numRetained()
+  {
+    return m_retain.cardinality();
+  }
+
+  // Approximate number of bytes of heap used by this table.
+  public long estimateBytes()
+  {
+    long perSound = 2 * Long.BYTES + 2 * Double.BYTES + NUM_BINS * Float.BYTES;
+    return (long)m_startFrames.length * perSound + 2 * (m_size / 8);
+  }
+
+  // Print details of sound `i`, including duration in seconds.
+  public void printWithDuration(
+    int i,
+    float frameRate,
+    SoundClassifier classifier)
+  {
+    assert(frameRate > 0);
+
+    System.out.println("sound{");
+
+    System.out.println(
+      "  interval_s: (" + Sound.framesToTimeString(m_startFrames[i], frameRate) +
+      " " + Sound.framesToTimeString(m_endFrames[i], frameRate) + ")");
+
+    System.out.println(
+      "  duration_s: " + Sound.framesToTimeString(frameDuration(i), frameRate));
+
+    System.out.format(
+      "  maxLoudness_dB: %1$.3f\n", m_maxLoudness_dB[i]);
+
+    if (hasSpectrum(i)) {
+      System.out.format(
+        "  excessLow_dB: %1$.3f\n", getExcessLow_dB(i));
+
+      System.out.format(
+        "  likelyClick: %1$b\n", getLikelyClick(i));
+    }
+
+    boolean retain =
+      classifier.shouldRetain(this, i, frameRate, true /*useSpectrum*/);
+    System.out.format(
+      "  retain: %1$b\n", retain);
+
+    System.out.println("}");
+  }
+}
+
+
+// EOF
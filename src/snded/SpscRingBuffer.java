@@ -0,0 +1,139 @@
+// SpscRingBuffer.java
+
+package snded;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+// Bounded queue between exactly one producer thread and one consumer
+// thread, as used to join the stages of `DeclickPipeline`.
+//
+// The slots form a ring indexed by two ever-increasing counters: the
+// producer only writes `m_tail` and the consumer only writes `m_head`,
+// so neither needs a lock.  Publishing a counter with `lazySet` after
+// writing (or clearing) the slot is enough to make the slot contents
+// visible to the other side.
+//
+// A side that cannot proceed, because the ring is full or empty, spins
+// briefly, then yields, then parks for increasing intervals.  The
+// stages exchange large blocks, so waits are either very short or long
+// enough that the parking latency does not matter.
+//
+// The producer calls `close` after its last element, after which the
+// consumer's `take` returns null once the ring is drained.  Either side
+// can `abort` the ring, for example because a stage failed, after which
+// both sides' calls throw `CancellationException`.
+//
+public class SpscRingBuffer<T> {
+  // -------------------------- Private data ---------------------------
+  // Number of busy-wait iterations before yielding, and then before
+  // parking.
+  private static final int SPIN_LIMIT = 100;
+  private static final int YIELD_LIMIT = 200;
+
+  // Longest time to park at once while waiting.
+  private static final long MAX_PARK_ns = 1_000_000;
+
+  private Object[] m_slots;
+
+  // `m_slots.length - 1`, which is a power of 2 minus 1.
+  private int m_mask;
+
+  // Number of elements taken and put so far.
+  private AtomicLong m_head = new AtomicLong();
+  private AtomicLong m_tail = new AtomicLong();
+
+  // Set by `close` and `abort`.
+  private volatile boolean m_closed = false;
+  private volatile boolean m_aborted = false;
+
+  // ------------------------- Public methods --------------------------
+  // Make a ring that holds at least `capacity` elements.
+  public SpscRingBuffer(int capacity)
+  {
+    assert(capacity >= 1);
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    m_slots = new Object[size];
+    m_mask = size - 1;
+  }
+
+  // Append `element`, which must not be null, waiting for room if
+  // necessary.  Only the producer may call this.
+  public void put(T element)
+  {
+    assert(element != null);
+
+    long tail = m_tail.get();
+    for (int waits = 0; tail - m_head.get() == m_slots.length; ++waits) {
+      await(waits);
+    }
+    checkAborted();
+
+    m_slots[(int)tail & m_mask] = element;
+    m_tail.lazySet(tail + 1);
+  }
+
+  // Remove and return the oldest element, waiting for one if
+  // necessary.  Return null if the producer has closed the ring and
+  // everything has been taken.  Only the consumer may call this.
+  @SuppressWarnings("unchecked")
+  public T take()
+  {
+    long head = m_head.get();
+    for (int waits = 0; head == m_tail.get(); ++waits) {
+      if (m_closed && head == m_tail.get()) {
+        return null;
+      }
+      await(waits);
+    }
+    checkAborted();
+
+    int slot = (int)head & m_mask;
+    T element = (T)m_slots[slot];
+    m_slots[slot] = null;
+    m_head.lazySet(head + 1);
+    return element;
+  }
+
+  // Say there will be no more elements.  Only the producer may call
+  // this.
+  public void close()
+  {
+    m_closed = true;
+  }
+
+  // Make both sides give up.  Any thread may call this.
+  public void abort()
+  {
+    m_aborted = true;
+  }
+
+  // ------------------------- Private methods -------------------------
+  // Wait a little, for the `waits`th time in a row.
+  private void await(int waits)
+  {
+    checkAborted();
+    if (waits < SPIN_LIMIT) {
+      Thread.onSpinWait();
+    }
+    else if (waits < YIELD_LIMIT) {
+      Thread.yield();
+    }
+    else {
+      LockSupport.parkNanos(
+        Math.min(MAX_PARK_ns, 1000L << Math.min(20, waits - YIELD_LIMIT)));
+    }
+  }
+
+  private void checkAborted()
+  {
+    if (m_aborted) {
+      throw new CancellationException("pipeline aborted");
+    }
+  }
+}
+
+
+// EOF